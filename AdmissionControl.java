@@ -0,0 +1,170 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Decides what the server takes on under load, before any work is done for a request.
+// Connections beyond --max-connections are refused when accepted, so the per-connection executors
+// cannot grow without bound. Requests that do work go into one of two lanes, reads and writes, each
+// with its own limit on requests in progress. A request that finds its lane full is shed straight away
+// with 503 and Retry-After rather than queued: a PUT storm fills the write lane, and GETs still have
+// theirs. Optionally every client also draws from its own token bucket, and one over its rate is
+// answered 429.
+public class AdmissionControl {
+    private static final long BUCKET_IDLE = TimeUnit.MINUTES.toNanos(1); // Unused buckets are dropped after this
+
+    public enum Lane {
+        READ, WRITE,
+        NONE // Cheap or long-lived requests that are never shed: metrics, change feeds, replication, cluster
+    }
+
+    // Why a request or connection was turned away
+    public static final class Refusal {
+        public final int status;
+        public final String reason;
+        public final long retryAfter; // Seconds
+
+        Refusal(int status, String reason, long retryAfter) {
+            this.status = status;
+            this.reason = reason;
+            this.retryAfter = retryAfter;
+        }
+    }
+
+    private final int maxConnections;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger reads = new AtomicInteger();
+    private final AtomicInteger writes = new AtomicInteger();
+    private final int maxReads;
+    private final int maxWrites;
+    private final Refusal busy;
+    private final double rate; // Requests per second per client; 0 for no limit
+    private final double burst;
+    private final boolean byUserAgent;
+    private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+    public AdmissionControl(ServerConfig config) {
+        this.maxConnections = config.getInt("max-connections", 10000);
+        // Only with NIO on a fixed pool do requests, rather than connections, take a worker each. There
+        // writes may only take half of them, so reads always find one free.
+        boolean sharedWorkers = config.getIoMode() == ServerConfig.IoMode.NIO
+                && config.getExecutorMode() == ServerConfig.ExecutorMode.POOL;
+        this.maxReads = config.getInt("max-reads", 4096);
+        this.maxWrites = config.getInt("max-writes", sharedWorkers ? Math.max(1, config.getWorkers() / 2) : 1024);
+        this.busy = new Refusal(503, "Service Unavailable", config.getLong("retry-after", 1));
+        this.rate = Double.parseDouble(config.get("rate-limit", "0"));
+        this.burst = Math.max(1, Double.parseDouble(config.get("rate-burst", String.valueOf(rate))));
+        String key = config.get("rate-limit-by", "address");
+        if (!key.equals("address") && !key.equals("user-agent")) {
+            throw new IllegalArgumentException("Unknown --rate-limit-by: " + key);
+        }
+        this.byUserAgent = key.equals("user-agent");
+    }
+
+    // Called on the accept thread; a connection let in must be matched by connectionClosed()
+    public boolean openConnection() {
+        if (connections.incrementAndGet() > maxConnections) {
+            connections.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    public void connectionClosed() {
+        connections.decrementAndGet();
+    }
+
+    public Refusal connectionRefusal() {
+        return busy;
+    }
+
+    // Returns null if the request may go ahead, in which case release(lane) must follow once it is
+    // answered. Requests forwarded by another cluster node were counted against their client there.
+    public Refusal admit(HttpRequest request, Lane lane) {
+        if (lane == Lane.NONE) {
+            return null;
+        }
+        if (rate > 0 && request.getHeader(Cluster.FORWARDED) == null) {
+            Refusal limited = takeToken(clientKey(request));
+            if (limited != null) {
+                return limited;
+            }
+        }
+        AtomicInteger inLane = lane == Lane.WRITE ? writes : reads;
+        if (inLane.incrementAndGet() > (lane == Lane.WRITE ? maxWrites : maxReads)) {
+            inLane.decrementAndGet();
+            return busy;
+        }
+        return null;
+    }
+
+    public void release(Lane lane) {
+        if (lane != Lane.NONE) {
+            (lane == Lane.WRITE ? writes : reads).decrementAndGet();
+        }
+    }
+
+    public int getReadsInProgress() {
+        return reads.get();
+    }
+
+    public int getWritesInProgress() {
+        return writes.get();
+    }
+
+    public int getConnections() {
+        return connections.get();
+    }
+
+    // Clients behind one address (or on one machine, for load tests) are told apart by User-Agent
+    private String clientKey(HttpRequest request) {
+        if (byUserAgent) {
+            String userAgent = request.getHeader("User-Agent");
+            if (userAgent != null) {
+                return userAgent;
+            }
+        }
+        String address = request.getRemoteAddress();
+        return address != null ? address : "";
+    }
+
+    private Refusal takeToken(String client) {
+        long now = System.nanoTime();
+        TokenBucket bucket = buckets.computeIfAbsent(client, key -> new TokenBucket(now));
+        double wait = bucket.take(now);
+        if (wait <= 0) {
+            return null;
+        }
+        return new Refusal(429, "Too Many Requests", Math.max(1, (long) Math.ceil(wait)));
+    }
+
+    // Drops the buckets of clients that have gone quiet. Run periodically on the background scheduler.
+    public void removeIdleBuckets() {
+        long now = System.nanoTime();
+        buckets.values().removeIf(bucket -> bucket.isIdle(now));
+    }
+
+    private final class TokenBucket {
+        private double tokens = burst;
+        private long refilled;
+
+        TokenBucket(long now) {
+            this.refilled = now;
+        }
+
+        // Takes a token, or returns the seconds until one is available
+        synchronized double take(long now) {
+            tokens = Math.min(burst, tokens + (now - refilled) / 1e9 * rate);
+            refilled = now;
+            if (tokens >= 1) {
+                tokens--;
+                return 0;
+            }
+            return (1 - tokens) / rate;
+        }
+
+        synchronized boolean isIdle(long now) {
+            return now - refilled > BUCKET_IDLE;
+        }
+    }
+}
@@ -1,103 +1,463 @@
 import java.io.*;
+import java.lang.reflect.Method;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.PriorityBlockingQueue;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class AggregationServer {
     private static final int EXPIRY_TIME = 30000; // Weather data expires after 30 seconds
-    private static final Map<String, WeatherData> weatherDataMap = new ConcurrentHashMap<>();
-    private static final Map<String, Long> serverTimestamps = new ConcurrentHashMap<>();
-    private static final PriorityBlockingQueue<WeatherEntry> expiryQueue = new PriorityBlockingQueue<>();
-    private static LamportClock lamportClock = new LamportClock();
+    private static final int UNSTORABLE = 400; // Status of a station the feed or the log cannot encode
+    // Current data and update time of every station; only the apply pipeline touches it
+    private static StationStore stationStore;
+    private static final FeedCache feedCache = new FeedCache();
+    private static final StationIndex stationIndex = new StationIndex(1.0);
+    private static StationHistory stationHistory;
+    private static final long EXPIRY_TICK = 100; // Resolution of the expiry sweep
+    private static final TimingWheel expiryWheel = new TimingWheel(EXPIRY_TICK, EXPIRY_TIME, System.currentTimeMillis());
+    private static final ScheduledExecutorService backgroundTasks =
+            Executors.newSingleThreadScheduledExecutor(namedThreads("background"));
+    private static final LamportClock lamportClock = new LamportClock();
     private static final String PERSISTENCE_FILE = "weatherData.dat"; // Path to store data for persistence
+    private static final String WAL_FILE = "weatherData.wal"; // Prefix of the write-ahead log segments
+    private static final String STORE_FILE = "weatherData"; // Base name of the mapped store's files
+    private static final String VARY = "Accept, Accept-Encoding"; // GET responses depend on both
+    private static final long MAX_LONG_POLL = 60; // Seconds a change request may wait
+    private static final long EVENT_KEEP_ALIVE = 15000; // Longest silence on an event stream, in ms
+    // Builds long-poll responses woken by a change, off the apply thread that logs it
+    private static final ExecutorService changeNotifier = Executors.newSingleThreadExecutor(namedThreads("change-notifier"));
+    private static ChangeLog changeLog;
+    // Every change to the store is applied by this one thread, in Lamport clock order
+    private static ApplyPipeline pipeline;
+    private static WriteAheadLog wal;
+    private static ServerConfig config;
+    // Connection limit, request lanes and per-client rate limits
+    private static AdmissionControl admission;
+    // Blocking front end on a fixed pool: a connection holds its worker, even while idle
+    private static ThreadPoolExecutor connectionPool;
+    private static volatile Thread acceptThread;
+    private static final int KEEP_ALIVE_POLL = 100; // ms between checks for connections waiting on the pool
+    private static final long REPLICATION_HEARTBEAT = 1000; // Longest silence towards a replica, in ms
+    // Durable log records kept for replicas to stream
+    private static ReplicationLog replicationLog;
+    // Follows the primary while this server is a replica (--replica-of); null on a primary
+    private static volatile ReplicaFollower replica;
+    private static final int HANDOFF_BATCH = 1000; // Stations per request when handing a shard over
+    // This node's view of the cluster (--cluster or --join); null when running alone
+    private static Cluster cluster;
+    // Joins and rebalances, one at a time
+    private static final ExecutorService clusterTasks = Executors.newSingleThreadExecutor(namedThreads("cluster-tasks"));
 
     public static void main(String[] args) {
-        int port = 4567; // Default port
-        if (args.length > 0) {
-            port = Integer.parseInt(args[0]);
-        }
+        config = ServerConfig.parse(args);
+        int port = config.getPort();
+        Log.setLevel(Log.Level.valueOf(config.get("log-level", "info").toUpperCase()));
+        JSONParser.setDecoder(JSONParser.Decoder.valueOf(config.get("json-decoder", "streaming").toUpperCase()));
+        stationHistory = new StationHistory(config.getInt("history-size", 512));
+        stationStore = createStationStore(config.get("store", "map"));
+        admission = new AdmissionControl(config);
 
         // Load persisted weather data on startup
         loadPersistedData();
+        // Stations loaded at startup are not changes; versions start after the clock as it is now
+        changeLog = new ChangeLog(config.getInt("change-log-size", 10000), lamportClock.tick());
+        pipeline = new ApplyPipeline(new PipelineStore(), config.getLong("reorder-window", 0));
+        pipeline.start();
+        startBackgroundTasks();
+        startReplication();
+        startCluster(port);
+        registerGauges();
+
+        ExecutorService executor = createExecutor(config);
+
+        if (config.getIoMode() == ServerConfig.IoMode.NIO) {
+            try {
+                new NioServer(config, executor).run();
+            } catch (IOException e) {
+                Log.error("Server stopped", e);
+            } finally {
+                executor.shutdown();
+            }
+            return;
+        }
 
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Aggregation Server is running on port " + port);
+        if (config.getExecutorMode() == ServerConfig.ExecutorMode.POOL) {
+            connectionPool = (ThreadPoolExecutor) executor;
+        }
+        acceptThread = Thread.currentThread();
+        try (ServerSocket serverSocket = new ServerSocket(port, config.getBacklog())) {
+            Log.info("Aggregation Server is running on port " + port
+                    + " (executor: " + config.getExecutorMode().name().toLowerCase() + ")");
 
             while (true) {
                 try {
                     Socket clientSocket = serverSocket.accept();
-                    new ClientHandler(clientSocket).start();
+                    if (!admission.openConnection()) {
+                        refuseConnection(clientSocket);
+                        continue;
+                    }
+                    executor.execute(new ClientHandler(clientSocket));
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    Log.error("Failed to accept a connection", e);
                 }
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("Server stopped", e);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // Creates the executor that runs one ClientHandler per accepted connection
+    static ExecutorService createExecutor(ServerConfig config) {
+        switch (config.getExecutorMode()) {
+            case VIRTUAL:
+                // Looked up reflectively so the server still builds and runs on JDKs without virtual threads
+                try {
+                    Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                    return (ExecutorService) factory.invoke(null);
+                } catch (ReflectiveOperationException e) {
+                    Log.warn("Virtual threads require JDK 21+, falling back to one thread per connection.");
+                    return Executors.newCachedThreadPool(namedThreads("aggregation-conn"));
+                }
+            case THREAD:
+                return Executors.newCachedThreadPool(namedThreads("aggregation-conn"));
+            case POOL:
+            default:
+                // When all workers are busy and the queue is full the accept thread runs the handler itself.
+                // It stops accepting meanwhile, so further connections wait in the fixed-size listen backlog.
+                return new ThreadPoolExecutor(config.getWorkers(), config.getWorkers(),
+                        60L, TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<>(config.getQueueCapacity()),
+                        namedThreads("aggregation-worker"),
+                        new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+    }
+
+    static StationStore createStationStore(String kind) {
+        switch (kind) {
+            case "map":
+                return new MapStationStore();
+            case "columnar":
+                return new ColumnarStationStore();
+            case "mapped":
+                return openMappedStore();
+            default:
+                throw new IllegalArgumentException("Unknown store: " + kind);
+        }
+    }
+
+    // A store that fails validation is moved aside, and the server starts from the write-ahead log alone
+    private static MappedStationStore openMappedStore() {
+        try {
+            return new MappedStationStore(STORE_FILE);
+        } catch (IOException e) {
+            Log.warn("Station store is unusable (" + e.getMessage() + "), moving it aside.");
+            new File(STORE_FILE + ".map").renameTo(new File(STORE_FILE + ".map.corrupt"));
+            new File(STORE_FILE + ".heap").renameTo(new File(STORE_FILE + ".heap.corrupt"));
+        }
+        try {
+            return new MappedStationStore(STORE_FILE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create the station store", e);
         }
     }
 
-    // Load persisted data from the file
+    static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    // Reads a snapshot into the store. Returns the first write-ahead log segment it does not cover.
     @SuppressWarnings("unchecked")
+    static long readSnapshot(File file, StationStore store) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            Map<String, WeatherData> savedData = (Map<String, WeatherData>) ois.readObject();
+            Map<String, Long> savedTimestamps = (Map<String, Long>) ois.readObject();
+            long firstSegment = 0;
+            try {
+                firstSegment = (Long) ois.readObject();
+            } catch (EOFException e) {
+                // Snapshot written before the write-ahead log existed
+            }
+
+            for (WeatherData data : savedData.values()) {
+                Long timestamp = savedTimestamps.get(data.getId());
+                store.put(data, timestamp != null ? timestamp : System.currentTimeMillis());
+            }
+            return firstSegment;
+        }
+    }
+
+    // Writes a snapshot and fsyncs it
+    static void writeSnapshot(File file, Map<String, WeatherData> data, Map<String, Long> timestamps,
+                              long firstSegment) throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(file);
+             ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(fos))) {
+            oos.writeObject(data);
+            oos.writeObject(timestamps);
+            oos.writeObject(firstSegment);
+            oos.flush();
+            fos.getFD().sync();
+        }
+    }
+
+    // Load the last snapshot, then replay the write-ahead log written after it. A mapped store is its own
+    // snapshot; the snapshot file is only read to migrate into a newly created one.
     private static void loadPersistedData() {
         File file = new File(PERSISTENCE_FILE);
-        if (!file.exists()) return;
+        long firstSegment = 0;
+        MappedStationStore mappedStore = stationStore instanceof MappedStationStore
+                ? (MappedStationStore) stationStore : null;
 
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
-            Map<String, WeatherData> savedData = (Map<String, WeatherData>) ois.readObject();
-            Map<String, Long> savedTimestamps = (Map<String, Long>) ois.readObject();
+        if (mappedStore != null && !mappedStore.isCreated()) {
+            firstSegment = mappedStore.getFirstSegment();
+            Log.info("Mapped " + mappedStore.size() + " stations.");
+        } else if (file.exists()) {
+            try {
+                firstSegment = readSnapshot(file, stationStore);
+                Log.info("Loaded persisted data.");
+            } catch (Exception e) {
+                Log.error("Failed to load persisted data.", e);
+            }
+        }
+
+        long nextSegment = firstSegment;
+        try {
+            nextSegment = WriteAheadLog.replay(WAL_FILE, firstSegment, new WriteAheadLog.Replay() {
+                @Override
+                public void put(WeatherData data, long timestamp) {
+                    stationStore.put(data, timestamp);
+                }
+
+                @Override
+                public void remove(String id) {
+                    stationStore.remove(id);
+                }
 
-            weatherDataMap.putAll(savedData);
-            serverTimestamps.putAll(savedTimestamps);
+                @Override
+                public void touch(String id, long timestamp) {
+                    stationStore.touch(id, timestamp);
+                }
+            });
+        } catch (IOException e) {
+            Log.error("Failed to replay the write-ahead log.", e);
+        }
 
-            // Add all entries to the expiry queue
-            for (Map.Entry<String, Long> entry : savedTimestamps.entrySet()) {
-                expiryQueue.add(new WeatherEntry(entry.getKey(), entry.getValue()));
+        if (mappedStore != null && mappedStore.isCreated() && file.exists()) {
+            // Make the migrated stations durable before the snapshot file is ignored
+            try {
+                mappedStore.checkpoint(mappedStore.checkpointMark(), firstSegment);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot write the station store", e);
             }
+        }
+
+        // Build the feed and index, and schedule every loaded station for expiry
+        stationStore.forEach((data, timestamp) -> {
+            feedCache.put(data.getId(), FeedCache.encode(data));
+            stationIndex.put(data);
+            expiryWheel.schedule(data.getId(), timestamp);
+        });
+
+        try {
+            // Never append to a segment that may end in a torn record
+            wal = new WriteAheadLog(WAL_FILE, nextSegment, config.getBoolean("wal-sync", true));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open the write-ahead log", e);
+        }
+    }
+
+    // Sweeps expired stations and compacts the write-ahead log into a new snapshot in the background
+    private static void startBackgroundTasks() {
+        backgroundTasks.scheduleAtFixedRate(AggregationServer::removeExpiredEntries,
+                EXPIRY_TICK, EXPIRY_TICK, TimeUnit.MILLISECONDS);
+        long interval = config.getLong("snapshot-interval", 60000);
+        backgroundTasks.scheduleWithFixedDelay(AggregationServer::snapshot, interval, interval, TimeUnit.MILLISECONDS);
+        backgroundTasks.scheduleWithFixedDelay(admission::removeIdleBuckets, 60, 60, TimeUnit.SECONDS);
+    }
 
-            System.out.println("Loaded persisted data.");
+    // Every record this server logs, its own or one received from a primary, can be streamed on to replicas
+    private static void startReplication() {
+        replicationLog = new ReplicationLog(config.getLong("replication-log-bytes", 64L * 1024 * 1024));
+        wal.setListener(record -> replicationLog.append(record, lamportClock.get()));
+
+        String primary = config.get("replica-of", null);
+        if (primary == null) {
+            return;
+        }
+        try {
+            replica = new ReplicaFollower(primary, new ReplicaTarget());
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Invalid --replica-of: " + primary, e);
+        }
+        namedThreads("replica-follower").newThread(replica).start();
+        Log.info("Replicating from " + primary);
+    }
+
+    // Cluster mode: --cluster lists the nodes, or --join names any node of a running cluster.
+    // --node is this node's address as the other nodes reach it.
+    private static void startCluster(int port) {
+        String members = config.get("cluster", null);
+        String seed = config.get("join", null);
+        if (members == null && seed == null) {
+            return;
+        }
+        String self = Cluster.normalize(config.get("node", "localhost:" + port));
+        cluster = new Cluster(self, members == null ? Collections.<String>emptyList() : Arrays.asList(members.split(",")));
+        Log.info("Cluster node " + self + ", members " + cluster.getNodes());
+        if (seed != null) {
+            clusterTasks.execute(() -> joinCluster(Cluster.normalize(seed)));
+        }
+    }
+
+    // Asks a member to add this node. It tells the other members and answers with the new membership;
+    // every node then hands over the stations that now belong to someone else.
+    private static void joinCluster(String seed) {
+        String lastError = null;
+        while (true) {
+            try {
+                // Only join once this node is listening, since others forward requests as soon as it is in
+                cluster.send(cluster.getSelf(), "GET", "/cluster", new HashMap<>(), null);
+                HttpClientConnection.Response response = cluster.send(seed, "POST", "/cluster/join",
+                        textHeaders(), cluster.getSelf().getBytes(StandardCharsets.UTF_8));
+                if (response.getStatus() != 200) {
+                    throw new Cluster.NodeException(seed, "answered " + response.getStatus(), null);
+                }
+                cluster.setMembers(lines(response.getBodyAsString()));
+                Log.info("Joined the cluster, members " + cluster.getNodes());
+                rebalance();
+                return;
+            } catch (IOException e) {
+                String error = String.valueOf(e.getMessage());
+                if (!error.equals(lastError)) {
+                    Log.warn("Cannot join the cluster yet: " + error);
+                }
+                lastError = error;
+            }
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Values read from the server's state whenever /metrics is scraped
+    private static void registerGauges() {
+        Metrics.gauge("weather_stations", "Stations currently held", feedCache::size);
+        Metrics.gauge("weather_expiry_queue_depth", "Stations scheduled to expire", expiryWheel::size);
+        Metrics.gauge("weather_lamport_clock", "Current Lamport clock", lamportClock::get);
+        Metrics.gauge("weather_change_log_version", "Latest change feed version", changeLog::getLatestVersion);
+        Metrics.gauge("weather_reads_in_progress", "Requests in the read lane", admission::getReadsInProgress);
+        Metrics.gauge("weather_writes_in_progress", "Requests in the write lane", admission::getWritesInProgress);
+    }
+
+    // True while this server is a replica that has not been promoted
+    private static boolean isFollowing() {
+        ReplicaFollower following = replica;
+        return following != null && following.isRunning();
+    }
+
+    static void snapshot() {
+        if (wal.isSegmentEmpty()) {
+            return;
+        }
+        if (stationStore instanceof MappedStationStore) {
+            checkpoint((MappedStationStore) stationStore);
+            return;
+        }
+
+        long firstSegment;
+        Map<String, WeatherData> dataCopy = new HashMap<>();
+        Map<String, Long> timestampCopy = new HashMap<>();
+        // Running on the pipeline thread guarantees every record in the retired segments is reflected in the copies
+        try {
+            firstSegment = pipeline.execute(() -> {
+                try {
+                    long first = wal.roll();
+                    // The snapshot format stays a pair of maps whichever store is in use
+                    stationStore.forEach((data, timestamp) -> {
+                        dataCopy.put(data.getId(), data);
+                        timestampCopy.put(data.getId(), timestamp);
+                    });
+                    return first;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).get();
         } catch (Exception e) {
-            e.printStackTrace();
-            System.out.println("Failed to load persisted data.");
+            Log.error("Snapshot failed", e);
+            return;
         }
+
+        if (persistData(dataCopy, timestampCopy, firstSegment)) {
+            wal.deleteSegmentsBefore(firstSegment);
+        }
+    }
+
+    // Flushes the mapped store in place of writing a snapshot. The mark is taken with the log roll on the
+    // pipeline thread, so the retired segments only hold changes the flush covers; later writes are
+    // not waited for.
+    private static void checkpoint(MappedStationStore store) {
+        long[] mark;
+        try {
+            mark = pipeline.execute(() -> {
+                try {
+                    long first = wal.roll();
+                    return new long[] {first, store.checkpointMark()};
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).get();
+            long start = System.nanoTime();
+            store.checkpoint(mark[1], mark[0]);
+            Metrics.SNAPSHOT_PERSIST.observeSince(start);
+        } catch (Exception e) {
+            Log.error("Checkpoint failed", e);
+            return;
+        }
+        wal.deleteSegmentsBefore(mark[0]);
     }
 
-    // Persist data to file (Atomic File Replacement)
-    private static synchronized void persistData() {
+    // Persist a snapshot to file (Atomic File Replacement). Returns true once it is durable.
+    private static boolean persistData(Map<String, WeatherData> data, Map<String, Long> timestamps, long firstSegment) {
+        long start = System.nanoTime();
         File tempFile = new File(PERSISTENCE_FILE + ".tmp");
         File actualFile = new File(PERSISTENCE_FILE);
-        
+
         try {
-            // Write to temp file directly without checking parent directory
-            try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(tempFile))) {
-                oos.writeObject(new HashMap<>(weatherDataMap));
-                oos.writeObject(new HashMap<>(serverTimestamps));
-                oos.flush();
-            }
-            
-            // Atomic replacement
-            if (actualFile.exists()) {
-                actualFile.delete();
-            }
-            
-            if (tempFile.renameTo(actualFile)) {
-                System.out.println("Weather data persisted successfully.");
-            } else {
-                System.err.println("Failed to rename temp file to actual file.");
-                // If rename fails, try to copy the contents
-                try (FileInputStream fis = new FileInputStream(tempFile);
-                     FileOutputStream fos = new FileOutputStream(actualFile)) {
-                    byte[] buffer = new byte[1024];
-                    int length;
-                    while ((length = fis.read(buffer)) > 0) {
-                        fos.write(buffer, 0, length);
-                    }
-                    System.out.println("Weather data persisted using copy method.");
-                }
-            }
+            writeSnapshot(tempFile, data, timestamps, firstSegment);
+
+            // Replacing in one step means a crash leaves either the old or the new snapshot, never neither
+            Files.move(tempFile.toPath(), actualFile.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            Metrics.SNAPSHOT_PERSIST.observeSince(start);
+            Log.debug("Weather data persisted successfully.");
+            return true;
         } catch (IOException e) {
-            e.printStackTrace();
-            System.err.println("Failed to persist data: " + e.getMessage());
+            Log.error("Failed to persist data: " + e.getMessage(), e);
+            return false;
         } finally {
             // Clean up temp file if it still exists
             if (tempFile.exists()) {
@@ -106,161 +466,1450 @@ public class AggregationServer {
         }
     }
 
-    // ClientHandler: Handles client connections
-    private static class ClientHandler extends Thread {
-        private final Socket clientSocket;
-    
-        public ClientHandler(Socket socket) {
-            this.clientSocket = socket;
+    // Dispatches a parsed request to its handler and waits for the response
+    static HttpResponse handleRequest(HttpRequest request) {
+        return handleRequestAsync(request).join();
+    }
+
+    // Dispatches a parsed request to its handler. Shared by the blocking and NIO front ends. A long-poll
+    // completes once something changes; every other request is answered on the calling thread.
+    static CompletableFuture<HttpResponse> handleRequestAsync(HttpRequest request) {
+        String method = metricsMethod(request.getMethod());
+        AdmissionControl.Lane lane = lane(request);
+        AdmissionControl.Refusal refusal = admission.admit(request, lane);
+        CompletableFuture<HttpResponse> answered;
+        if (refusal != null) {
+            Metrics.SHED.increment(lane.name().toLowerCase(), Integer.toString(refusal.status));
+            answered = CompletableFuture.completedFuture(refusalResponse(refusal));
+        } else {
+            answered = dispatch(request).whenComplete((response, e) -> admission.release(lane));
         }
-    
-        @Override
-        public void run() {
-            try (
-                InputStream input = clientSocket.getInputStream();
-                BufferedReader in = new BufferedReader(new InputStreamReader(input));
-                OutputStream output = clientSocket.getOutputStream();
-                BufferedWriter out = new BufferedWriter(new OutputStreamWriter(output))
-            ) {
-                String inputLine = in.readLine();
-                if (inputLine == null) {
-                    return;
-                }
-    
-                String[] requestParts = inputLine.split(" ");
-                if (requestParts.length < 2) {
-                    sendErrorResponse(out, "HTTP/1.1 400 Bad Request");
-                    return;
-                }
-    
-                String method = requestParts[0];
-                String resource = requestParts[1];
-    
-                // Read headers
-                String lamportHeader = null;
-                int contentLength = 0;
-                String line;
-                while ((line = in.readLine()) != null && !line.isEmpty()) {
-                    if (line.startsWith("Lamport-Clock:")) {
-                        lamportHeader = line.split(": ")[1];
-                    } else if (line.startsWith("Content-Length:")) {
-                        contentLength = Integer.parseInt(line.split(": ")[1].trim());
-                    }
+        return answered.thenApply(response -> {
+            Metrics.REQUESTS.increment(method, Integer.toString(response.getStatus()));
+            if (Log.isEnabled(Log.Level.DEBUG)) {
+                Log.debug(request.getMethod() + " " + request.getTarget() + " " + response.getStatus());
+            }
+            return response;
+        });
+    }
+
+    // Writes wait on the apply pipeline and the log, so they get a lane of their own. Requests that
+    // hold a connection open, the metrics scrape and cluster traffic are never shed.
+    private static AdmissionControl.Lane lane(HttpRequest request) {
+        String method = request.getMethod();
+        String path = request.getPath();
+        if (path.startsWith("/cluster") || "/metrics".equalsIgnoreCase(path) || "/events".equalsIgnoreCase(path)
+                || "/replication".equalsIgnoreCase(path) || "/promote".equalsIgnoreCase(path)) {
+            return AdmissionControl.Lane.NONE;
+        }
+        if ("PUT".equalsIgnoreCase(method) || "POST".equalsIgnoreCase(method)) {
+            return AdmissionControl.Lane.WRITE;
+        }
+        if ("/weather.json".equalsIgnoreCase(path) && isChangesRequest(request)) {
+            return AdmissionControl.Lane.NONE;
+        }
+        return AdmissionControl.Lane.READ;
+    }
+
+    static HttpResponse refusalResponse(AdmissionControl.Refusal refusal) {
+        return statusResponse(refusal.status, refusal.reason).header("Retry-After", refusal.retryAfter);
+    }
+
+    // The answer to a connection over --max-connections, sent without reading its request
+    static HttpResponse connectionRefusal() {
+        Metrics.REFUSED_CONNECTIONS.increment();
+        return refusalResponse(admission.connectionRefusal()).header("Connection", "close");
+    }
+
+    // The response fits in the socket's send buffer, so the accept thread does not wait on the client
+    private static void refuseConnection(Socket socket) {
+        try (Socket refused = socket; OutputStream output = refused.getOutputStream()) {
+            connectionRefusal().writeTo(output);
+        } catch (IOException e) {
+            Log.debug("Failed to refuse a connection: " + e.getMessage());
+        }
+    }
+
+    // Called by the NIO front end for each accepted connection; false if it is over the limit
+    static boolean openConnection() {
+        return admission.openConnection();
+    }
+
+    static void connectionClosed() {
+        admission.connectionClosed();
+    }
+
+    // Methods outside the few the server knows are counted together, so clients cannot add metrics
+    private static String metricsMethod(String method) {
+        switch (method.toUpperCase()) {
+            case "GET":
+            case "PUT":
+            case "POST":
+                return method.toUpperCase();
+            default:
+                return "OTHER";
+        }
+    }
+
+    // Counted once the response is known
+    private static CompletableFuture<HttpResponse> dispatch(HttpRequest request) {
+        try {
+            // Receiving a request is an event; merge the sender's clock if it sent one
+            String lamportHeader = request.getHeader("Lamport-Clock");
+            if (lamportHeader != null) {
+                try {
+                    lamportClock.receive(Long.parseLong(lamportHeader.trim()));
+                } catch (NumberFormatException e) {
+                    return CompletableFuture.completedFuture(statusResponse(400, "Bad Request"));
+                }
+            } else {
+                lamportClock.tick();
+            }
+
+            // Compressed request bodies are decoded here, so handlers only ever see plain bodies
+            String contentEncoding = request.getHeader("Content-Encoding");
+            if (contentEncoding != null && !contentEncoding.trim().equalsIgnoreCase("identity")) {
+                if (!HttpCompression.isSupported(contentEncoding.trim())) {
+                    return CompletableFuture.completedFuture(statusResponse(415, "Unsupported Media Type")
+                            .header("Accept-Encoding", "gzip, deflate"));
                 }
-    
-                if (lamportHeader != null) {
-                    lamportClock.update(Integer.parseInt(lamportHeader));
+                try {
+                    request = request.withBody(HttpCompression.decompress(request.getBody(),
+                            contentEncoding.trim(), HttpRequestParser.MAX_BODY_LENGTH));
+                } catch (IOException e) {
+                    return CompletableFuture.completedFuture(statusResponse(400, "Bad Request")
+                            .header("Content-Type", "text/plain")
+                            .body(e.getMessage()));
                 }
-    
-                if ("PUT".equalsIgnoreCase(method) && "/weather.json".equalsIgnoreCase(resource)) {
-                    handlePutRequest(in, out, contentLength);
-                } else if ("GET".equalsIgnoreCase(method) && "/weather.json".equalsIgnoreCase(resource)) {
-                    handleGetRequest(out);
-                } else {
-                    sendErrorResponse(out, "HTTP/1.1 400 Bad Request");
+            }
+
+            String method = request.getMethod();
+            boolean isFeed = "/weather.json".equalsIgnoreCase(request.getPath());
+            if (isFollowing()) {
+                HttpResponse refused = refuseOnReplica(request);
+                if (refused != null) {
+                    return CompletableFuture.completedFuture(refused);
                 }
-    
+            }
+            HttpResponse response;
+            if ("PUT".equalsIgnoreCase(method) && isFeed) {
+                response = handlePutRequest(request);
+            } else if ("GET".equalsIgnoreCase(method) && isFeed && isChangesRequest(request)) {
+                return handleChangesRequest(request);
+            } else if ("GET".equalsIgnoreCase(method) && isFeed) {
+                long start = System.nanoTime();
+                response = handleGetRequest(request);
+                Metrics.GET_SERIALIZE.observeSince(start);
+            } else if ("GET".equalsIgnoreCase(method) && "/events".equalsIgnoreCase(request.getPath())) {
+                response = handleEventsRequest(request);
+            } else if ("GET".equalsIgnoreCase(method) && "/history.json".equalsIgnoreCase(request.getPath())) {
+                response = handleHistoryRequest(request);
+            } else if ("POST".equalsIgnoreCase(method) && "/heartbeat".equalsIgnoreCase(request.getPath())) {
+                response = handleHeartbeat(request);
+            } else if ("GET".equalsIgnoreCase(method) && "/replication".equalsIgnoreCase(request.getPath())) {
+                response = handleReplicationRequest(request);
+            } else if ("GET".equalsIgnoreCase(method) && "/metrics".equalsIgnoreCase(request.getPath())) {
+                response = statusResponse(200, "OK")
+                        .header("Content-Type", "text/plain; version=0.0.4")
+                        .body(Metrics.render());
+            } else if ("POST".equalsIgnoreCase(method) && "/promote".equalsIgnoreCase(request.getPath())) {
+                response = handlePromote();
+            } else if (cluster != null && request.getPath().startsWith("/cluster")) {
+                response = handleClusterRequest(request);
+            } else {
+                response = statusResponse(400, "Bad Request");
+            }
+            return CompletableFuture.completedFuture(response);
+        } catch (Exception e) {
+            Log.error("Request failed: " + request.getMethod() + " " + request.getTarget(), e);
+            return CompletableFuture.completedFuture(statusResponse(500, "Internal Server Error"));
+        }
+    }
+
+    // A replica only serves reads, and only while it has heard from its primary recently enough.
+    // Refusals name the primary, so clients with a list of servers move on. Returns null to serve.
+    private static HttpResponse refuseOnReplica(HttpRequest request) {
+        String method = request.getMethod();
+        String path = request.getPath();
+        if ("PUT".equalsIgnoreCase(method) || "/heartbeat".equalsIgnoreCase(path)) {
+            return statusResponse(421, "Misdirected Request")
+                    .header("Replica-Of", replica.getPrimaryUrl());
+        }
+        if ("GET".equalsIgnoreCase(method) && !"/replication".equalsIgnoreCase(path)
+                && replica.getLag() > config.getLong("max-staleness", 5000)) {
+            return statusResponse(503, "Service Unavailable")
+                    .header("Replica-Of", replica.getPrimaryUrl())
+                    .header("Retry-After", 1);
+        }
+        return null;
+    }
+
+    // Decides whether the connection stays open after this response, and says so in its headers
+    static boolean keepAlive(HttpRequest request, HttpResponse response, int requestsServed) {
+        return keepAlive(request, response, requestsServed, true);
+    }
+
+    // As above; with holdConnection false the connection closes after this response regardless
+    static boolean keepAlive(HttpRequest request, HttpResponse response, int requestsServed, boolean holdConnection) {
+        boolean keepAlive = holdConnection && config.isKeepAlive() && request.isKeepAlive()
+                && requestsServed < config.getMaxRequestsPerConnection();
+        if (!keepAlive) {
+            response.header("Connection", "close");
+        } else if ("HTTP/1.0".equalsIgnoreCase(request.getVersion())) {
+            response.header("Connection", "keep-alive");
+        }
+        return keepAlive;
+    }
+
+    // A response stamped with the Lamport timestamp of its send event. The value is the one tick()
+    // assigned, so concurrent requests can never send each other's timestamps.
+    static HttpResponse statusResponse(int status, String reason) {
+        HttpResponse response = new HttpResponse(status, reason)
+                .header("Lamport-Clock", lamportClock.tick());
+        ReplicaFollower following = replica;
+        if (following != null && following.isRunning()) {
+            // Tells readers how far behind the primary a replica's answer may be
+            response.header("Replicated-Clock", following.getPrimaryClock());
+            long lag = following.getLag();
+            if (lag != Long.MAX_VALUE) {
+                response.header("Replica-Lag", lag);
+            }
+        }
+        return response;
+    }
+
+    private static HttpResponse handlePutRequest(HttpRequest request) {
+        if (request.getBody().length == 0) {
+            return statusResponse(204, "No Content");
+        }
+        WeatherData data = null;
+        if (BinaryWeatherFormat.matches(request.getHeader("Content-Type"))) {
+            // A binary message with one station answers like a single JSON PUT, with more like a batch
+            List<WeatherData> stations;
+            long start = System.nanoTime();
+            try {
+                stations = BinaryWeatherFormat.decode(request.getBody());
+            } catch (IllegalArgumentException e) {
+                return statusResponse(400, "Bad Request");
+            }
+            Metrics.BODY_DECODE.observeSince(start);
+            if (stations.size() != 1) {
+                return handleBatchPutRequest(request, stations);
+            }
+            data = stations.get(0);
+        } else if (isBatch(request)) {
+            List<WeatherData> stations;
+            long start = System.nanoTime();
+            try {
+                String contentType = request.getHeader("Content-Type");
+                boolean ndjson = contentType != null && contentType.startsWith("application/x-ndjson");
+                stations = JSONParser.parseWeatherDataBatch(request.getBody(), ndjson);
             } catch (Exception e) {
-                e.printStackTrace();
-                try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream()))) {
-                    sendErrorResponse(out, "HTTP/1.1 500 Internal Server Error");
-                } catch (IOException ignored) {
-                    // Ignore close exception
+                return statusResponse(400, "Bad Request");
+            }
+            Metrics.BODY_DECODE.observeSince(start);
+            return handleBatchPutRequest(request, stations);
+        }
+
+        try {
+            if (data == null) {
+                long start = System.nanoTime();
+                data = JSONParser.parseWeatherData(request.getBody());
+                Metrics.BODY_DECODE.observeSince(start);
+            } else {
+                JSONParser.validate(data);
+            }
+        } catch (JsonSyntaxException | IllegalArgumentException e) {
+            // Malformed JSON, or a value out of range
+            return statusResponse(400, "Bad Request");
+        }
+
+        try {
+            if (isValidWeatherData(data)) {
+                // Completes only once the record has been group-committed to the log
+                int status = routeStations(request, Collections.singletonList(data))[0];
+
+                if (status == ApplyPipeline.STALE) {
+                    return statusResponse(409, "Conflict");
                 }
-            } finally {
+                if (status == UNSTORABLE) {
+                    return statusResponse(400, "Bad Request");
+                }
+                return status == 201 ? statusResponse(201, "Created") : statusResponse(200, "OK");
+            } else {
+                return statusResponse(400, "Bad Request");
+            }
+        } catch (Exception e) {
+            Cluster.NodeException nodeFailure = nodeFailure(e);
+            if (nodeFailure != null) {
+                return nodeUnavailable(nodeFailure);
+            }
+            Log.error("Request failed: " + request.getMethod() + " " + request.getTarget(), e);
+            return statusResponse(500, "Internal Server Error");
+        }
+    }
+
+    // A batch is a JSON array of stations, or newline-delimited JSON objects
+    private static boolean isBatch(HttpRequest request) {
+        String contentType = request.getHeader("Content-Type");
+        if (contentType != null && contentType.startsWith("application/x-ndjson")) {
+            return true;
+        }
+        for (byte b : request.getBody()) {
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                return b == '[';
+            }
+        }
+        return false;
+    }
+
+    // Applies every valid station in one log record and answers with a status per station:
+    // [{"id":"IDS60901","status":201}, {"index":1,"status":400,"error":"..."}]
+    private static HttpResponse handleBatchPutRequest(HttpRequest request, List<WeatherData> stations) {
+        JsonArray results = new JsonArray();
+        List<WeatherData> accepted = new ArrayList<>(stations.size());
+        List<JsonObject> acceptedResults = new ArrayList<>(stations.size());
+        for (int i = 0; i < stations.size(); i++) {
+            JsonObject result = new JsonObject();
+            WeatherData data = stations.get(i);
+            try {
+                JSONParser.validate(data);
+                result.addProperty("id", data.getId());
+                accepted.add(data);
+                acceptedResults.add(result);
+            } catch (IllegalArgumentException e) {
+                result.addProperty("index", i);
+                result.addProperty("status", 400);
+                result.addProperty("error", e.getMessage());
+            }
+            results.add(result);
+        }
+
+        try {
+            if (!accepted.isEmpty()) {
+                int[] statuses = routeStations(request, accepted);
+                for (int i = 0; i < statuses.length; i++) {
+                    acceptedResults.get(i).addProperty("status", statuses[i]);
+                    if (statuses[i] == ApplyPipeline.STALE) {
+                        acceptedResults.get(i).addProperty("error", "Stale update: a newer Lamport clock was already applied");
+                    } else if (statuses[i] == UNSTORABLE) {
+                        acceptedResults.get(i).addProperty("error", "Station cannot be stored");
+                    }
+                }
+            }
+        } catch (Exception e) {
+            Cluster.NodeException nodeFailure = nodeFailure(e);
+            if (nodeFailure != null) {
+                return nodeUnavailable(nodeFailure);
+            }
+            Log.error("Request failed: " + request.getMethod() + " " + request.getTarget(), e);
+            return statusResponse(500, "Internal Server Error");
+        }
+
+        return statusResponse(accepted.isEmpty() ? 400 : 200, accepted.isEmpty() ? "Bad Request" : "OK")
+                .header("Content-Type", "application/json")
+                .body(results.toString());
+    }
+
+    // The Lamport clock that orders an update; senders without one are applied in arrival order
+    private static long updateClock(HttpRequest request) {
+        String lamportHeader = request.getHeader("Lamport-Clock");
+        return lamportHeader != null ? Long.parseLong(lamportHeader.trim()) : ApplyPipeline.UNORDERED;
+    }
+
+    // Queues stations for the apply pipeline. Encoding happens here, on the request thread, to keep the
+    // single writer short, and so a station that cannot be encoded gets UNSTORABLE without holding up
+    // the others. The future yields a status per station once the applied ones are durable.
+    private static CompletableFuture<int[]> storeStations(List<WeatherData> stations, long clock) {
+        int[] statuses = new int[stations.size()];
+        List<WeatherData> encoded = new ArrayList<>(stations.size());
+        List<FeedCache.Fragment> fragments = new ArrayList<>(stations.size());
+        List<byte[]> records = new ArrayList<>(stations.size());
+        for (int i = 0; i < stations.size(); i++) {
+            WeatherData data = stations.get(i);
+            try {
+                FeedCache.Fragment fragment = FeedCache.encode(data);
+                records.add(WriteAheadLog.encodeStation(data));
+                fragments.add(fragment);
+                encoded.add(data);
+            } catch (IllegalArgumentException e) {
+                statuses[i] = UNSTORABLE;
+            }
+        }
+        if (encoded.size() == stations.size()) {
+            return pipeline.submit(stations, fragments, records, clock);
+        }
+        if (encoded.isEmpty()) {
+            return CompletableFuture.completedFuture(statuses);
+        }
+        return pipeline.submit(encoded, fragments, records, clock).thenApply(applied -> {
+            for (int i = 0, next = 0; i < statuses.length; i++) {
+                if (statuses[i] != UNSTORABLE) {
+                    statuses[i] = applied[next++];
+                }
+            }
+            return statuses;
+        });
+    }
+
+    // Stores the stations this node owns and forwards the rest to their owners, all in parallel.
+    // Returns a status per station, in order. Requests forwarded by another node are stored here.
+    private static int[] routeStations(HttpRequest request, List<WeatherData> stations) throws Exception {
+        long clock = updateClock(request);
+        if (cluster == null || request.getHeader(Cluster.FORWARDED) != null) {
+            return storeStations(stations, clock).get();
+        }
+        List<String> ids = new ArrayList<>(stations.size());
+        for (WeatherData data : stations) {
+            ids.add(data.getId());
+        }
+        int[] statuses = new int[stations.size()];
+        List<CompletableFuture<Void>> parts = new ArrayList<>();
+        for (Map.Entry<String, List<Integer>> owned : partition(ids).entrySet()) {
+            List<Integer> indices = owned.getValue();
+            List<WeatherData> part = new ArrayList<>(indices.size());
+            for (int index : indices) {
+                part.add(stations.get(index));
+            }
+            CompletableFuture<int[]> stored = cluster.getSelf().equals(owned.getKey())
+                    ? storeStations(part, clock)
+                    : forwardStations(owned.getKey(), part, request);
+            parts.add(stored.thenAccept(partStatuses -> {
+                for (int i = 0; i < partStatuses.length; i++) {
+                    statuses[indices.get(i)] = partStatuses[i];
+                }
+            }));
+        }
+        CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).get();
+        return statuses;
+    }
+
+    // Positions of the ids grouped by the node that owns them
+    private static Map<String, List<Integer>> partition(List<String> ids) {
+        Map<String, List<Integer>> owned = new LinkedHashMap<>();
+        for (int i = 0; i < ids.size(); i++) {
+            owned.computeIfAbsent(cluster.ownerOf(ids.get(i)), node -> new ArrayList<>()).add(i);
+        }
+        return owned;
+    }
+
+    // Sends stations to their owner as one batch PUT carrying the sender's clock
+    private static CompletableFuture<int[]> forwardStations(String node, List<WeatherData> stations, HttpRequest request) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Content-Type", "application/json");
+        String lamportHeader = request.getHeader("Lamport-Clock");
+        if (lamportHeader != null) {
+            headers.put("Lamport-Clock", lamportHeader.trim());
+        }
+        return cluster.sendAsync(node, "PUT", "/weather.json", headers, FeedCache.encodeFeed(stations, false))
+                .thenApply(response -> {
+                    receiveClock(response);
+                    if (response.getStatus() != 200) {
+                        throw new CompletionException(new Cluster.NodeException(node, "answered " + response.getStatus(), null));
+                    }
+                    JsonArray results = JsonParser.parseString(response.getBodyAsString()).getAsJsonArray();
+                    int[] statuses = new int[results.size()];
+                    for (int i = 0; i < statuses.length; i++) {
+                        statuses[i] = results.get(i).getAsJsonObject().get("status").getAsInt();
+                    }
+                    return statuses;
+                });
+    }
+
+    // Merges the clock another node sent with its answer
+    private static void receiveClock(HttpClientConnection.Response response) {
+        String lamportHeader = response.getHeader("Lamport-Clock");
+        if (lamportHeader != null) {
+            try {
+                lamportClock.receive(Long.parseLong(lamportHeader.trim()));
+            } catch (NumberFormatException e) {
+                // A node that sends a broken clock just does not advance ours
+            }
+        }
+    }
+
+    // The failure of another node behind an exception, if that is what it was
+    private static Cluster.NodeException nodeFailure(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof Cluster.NodeException) {
+                return (Cluster.NodeException) cause;
+            }
+        }
+        return null;
+    }
+
+    private static HttpResponse nodeUnavailable(Cluster.NodeException e) {
+        return statusResponse(502, "Bad Gateway")
+                .header("Content-Type", "text/plain")
+                .body(e.getMessage());
+    }
+
+    private static Map<String, String> textHeaders() {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Content-Type", "text/plain");
+        return headers;
+    }
+
+    private static List<String> lines(String text) {
+        List<String> lines = new ArrayList<>();
+        for (String line : text.split("\n")) {
+            if (!line.trim().isEmpty()) {
+                lines.add(line.trim());
+            }
+        }
+        return lines;
+    }
+
+    // The store as the apply pipeline sees it; only ever called on the pipeline thread
+    private static class PipelineStore implements ApplyPipeline.Store {
+        @Override
+        public boolean apply(WeatherData data, FeedCache.Fragment fragment, long timestamp, long clock) {
+            return applyStation(data, fragment, timestamp, clock);
+        }
+
+        @Override
+        public CompletableFuture<Void> persist(List<WeatherData> stations, List<byte[]> records, long timestamp) {
+            return wal.appendStations(stations, records, timestamp);
+        }
+
+        @Override
+        public WeatherData get(String id) {
+            return stationStore.get(id);
+        }
+
+        @Override
+        public long getTimestamp(String id) {
+            return stationStore.getTimestamp(id);
+        }
+
+        @Override
+        public void restore(String id, WeatherData data, long timestamp, int observations) {
+            if (data == null) {
+                removeStation(id);
+                return;
+            }
+            FeedCache.Fragment fragment = FeedCache.encode(data);
+            stationStore.put(data, timestamp);
+            feedCache.put(id, fragment);
+            changeLog.append(lamportClock.tick(), id, fragment);
+            stationIndex.put(data);
+            stationHistory.dropNewest(id, observations);
+            expiryWheel.schedule(id, timestamp);
+        }
+    }
+
+    // Stores a station and updates everything derived from it. Pipeline thread only.
+    private static boolean applyStation(WeatherData data, FeedCache.Fragment fragment, long timestamp, long clock) {
+        boolean created = stationStore.put(data, timestamp);
+        feedCache.put(data.getId(), fragment);
+        changeLog.append(lamportClock.tick(), data.getId(), fragment);
+        stationIndex.put(data);
+        // Updates without a clock of their own are placed at the server's current clock
+        stationHistory.record(data, clock == ApplyPipeline.UNORDERED ? lamportClock.get() : clock, timestamp);
+        expiryWheel.schedule(data.getId(), timestamp);
+        return created;
+    }
+
+    // Removes a station and everything derived from it; the caller logs the removal. Pipeline thread only.
+    private static boolean removeStation(String id) {
+        if (!stationStore.remove(id)) {
+            return false;
+        }
+        feedCache.remove(id);
+        changeLog.append(lamportClock.tick(), id, null);
+        stationIndex.remove(id);
+        stationHistory.remove(id);
+        pipeline.forget(id);
+        return true;
+    }
+
+    // Applies the primary's log on a replica. Records are applied on the pipeline thread, like local
+    // writes, and logged here as well, so the replica restarts from its own copy and can feed replicas
+    // of its own.
+    private static class ReplicaTarget implements ReplicaFollower.Target, WriteAheadLog.Replay {
+        // Only used on the pipeline thread
+        private long recordClock;
+        private Set<String> snapshotIds; // Stations in the snapshot being received, else null
+
+        @Override
+        public void snapshotStarted() {
+            pipeline.execute(() -> {
+                snapshotIds = new HashSet<>();
+                return null;
+            });
+        }
+
+        @Override
+        public CompletableFuture<?> apply(byte[] record, long clock) {
+            lamportClock.receive(clock);
+            return pipeline.execute(() -> {
+                recordClock = clock;
                 try {
-                    clientSocket.close();
+                    WriteAheadLog.decodeRecord(record, this);
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    throw new UncheckedIOException(e);
+                }
+                return wal.appendRecord(record);
+            }).thenCompose(durable -> durable);
+        }
+
+        // Stations the primary no longer has were removed while this replica was away
+        @Override
+        public void snapshotEnded() {
+            pipeline.execute(() -> {
+                List<String> gone = new ArrayList<>();
+                stationStore.forEach((data, timestamp) -> {
+                    if (!snapshotIds.contains(data.getId())) {
+                        gone.add(data.getId());
+                    }
+                });
+                for (String id : gone) {
+                    removeStation(id);
+                    wal.appendRemove(id);
                 }
+                snapshotIds = null;
+                return null;
+            });
+        }
+
+        @Override
+        public void heartbeat(long clock) {
+            lamportClock.receive(clock);
+        }
+
+        @Override
+        public void put(WeatherData data, long timestamp) {
+            applyStation(data, FeedCache.encode(data), timestamp, recordClock);
+            if (snapshotIds != null) {
+                snapshotIds.add(data.getId());
             }
         }
 
-        private static void sendErrorResponse(BufferedWriter out, String statusLine) throws IOException {
-            lamportClock.increment();
-            out.write(statusLine + "\r\n");
-            out.write("Lamport-Clock: " + lamportClock.getClock() + "\r\n");
-            out.write("\r\n");
-            out.flush();
+        @Override
+        public void remove(String id) {
+            removeStation(id);
         }
 
-        private static void handlePutRequest(BufferedReader in, BufferedWriter out, int contentLength) throws IOException {
-            if (contentLength == 0) {
-                sendErrorResponse(out, "HTTP/1.1 204 No Content");
-                return;
+        @Override
+        public void touch(String id, long timestamp) {
+            if (stationStore.touch(id, timestamp)) {
+                expiryWheel.schedule(id, timestamp);
             }
-    
-            // Read the body based on Content-Length
-            char[] body = new char[contentLength];
-            int bytesRead = in.read(body, 0, contentLength);
-            if (bytesRead != contentLength) {
-                sendErrorResponse(out, "HTTP/1.1 400 Bad Request");
-                return;
+        }
+    }
+
+    // Keeps stations alive without re-sending their data. The body lists station ids, one per line.
+    // Answers {"refreshed":n,"unknown":[ids]}; unknown stations have expired or were never uploaded,
+    // so the content server has to PUT them again. In a cluster each owner refreshes its own stations.
+    private static HttpResponse handleHeartbeat(HttpRequest request) {
+        List<String> ids = lines(request.getBodyAsString());
+        List<String> local = ids;
+        Map<String, CompletableFuture<HttpClientConnection.Response>> forwarded = new LinkedHashMap<>();
+        if (cluster != null && request.getHeader(Cluster.FORWARDED) == null) {
+            local = new ArrayList<>();
+            for (Map.Entry<String, List<Integer>> owned : partition(ids).entrySet()) {
+                List<String> part = new ArrayList<>();
+                for (int index : owned.getValue()) {
+                    part.add(ids.get(index));
+                }
+                if (cluster.getSelf().equals(owned.getKey())) {
+                    local = part;
+                } else {
+                    forwarded.put(owned.getKey(), cluster.sendAsync(owned.getKey(), "POST", "/heartbeat", textHeaders(),
+                            String.join("\n", part).getBytes(StandardCharsets.UTF_8)));
+                }
             }
-    
+        }
+
+        List<String> touched = local;
+        List<String> refreshed = new ArrayList<>();
+        JsonArray unknown = new JsonArray();
+        int refreshedElsewhere = 0;
+        try {
+            pipeline.execute(() -> {
+                long now = System.currentTimeMillis();
+                for (String id : touched) {
+                    if (stationStore.touch(id, now)) {
+                        expiryWheel.schedule(id, now);
+                        refreshed.add(id);
+                    } else {
+                        unknown.add(id);
+                    }
+                }
+                return refreshed.isEmpty()
+                        ? CompletableFuture.<Void>completedFuture(null)
+                        : wal.appendTouch(refreshed, now);
+            }).thenCompose(durable -> durable).get();
+            for (Map.Entry<String, CompletableFuture<HttpClientConnection.Response>> pending : forwarded.entrySet()) {
+                HttpClientConnection.Response response = pending.getValue().get();
+                receiveClock(response);
+                if (response.getStatus() != 200) {
+                    throw new Cluster.NodeException(pending.getKey(), "answered " + response.getStatus(), null);
+                }
+                JsonObject answer = JsonParser.parseString(response.getBodyAsString()).getAsJsonObject();
+                refreshedElsewhere += answer.get("refreshed").getAsInt();
+                unknown.addAll(answer.getAsJsonArray("unknown"));
+            }
+        } catch (Exception e) {
+            Cluster.NodeException nodeFailure = nodeFailure(e);
+            if (nodeFailure != null) {
+                return nodeUnavailable(nodeFailure);
+            }
+            Log.error("Request failed: " + request.getMethod() + " " + request.getTarget(), e);
+            return statusResponse(500, "Internal Server Error");
+        }
+
+        JsonObject result = new JsonObject();
+        result.addProperty("refreshed", refreshed.size() + refreshedElsewhere);
+        result.add("unknown", unknown);
+        return statusResponse(200, "OK")
+                .header("Content-Type", "application/json")
+                .body(result.toString());
+    }
+
+    private static boolean isValidWeatherData(WeatherData data) {
+        return data.getId() != null;
+    }
+
+    private static HttpResponse handleGetRequest(HttpRequest request) {
+        Map<String, String> parameters;
+        try {
+            parameters = request.getQueryParameters();
+        } catch (IllegalArgumentException e) {
+            return statusResponse(400, "Bad Request");
+        }
+        // JSON unless the client asks for the binary format, compressed if it accepts gzip or deflate
+        boolean binary = BinaryWeatherFormat.matches(request.getHeader("Accept"));
+        String contentType = binary ? BinaryWeatherFormat.CONTENT_TYPE : "application/json";
+        String coding = HttpCompression.negotiate(request.getHeader("Accept-Encoding"));
+        boolean forwarded = request.getHeader(Cluster.FORWARDED) != null;
+        if (cluster != null && !forwarded) {
+            return handleClusterGet(request, parameters, binary, coding);
+        }
+        if (!parameters.isEmpty()) {
+            return handleQuery(parameters, binary, coding);
+        }
+
+        // Read before the feed, so a client following changes from it may see some twice but misses none
+        long feedVersion = changeLog.getLatestVersion();
+
+        // Clients polling with the ETag of the current version get an empty 304 instead of the feed,
+        // whichever coding they last received it in
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            String etag = feedCache.currentEtag(binary);
+            if (ifNoneMatch.equals(etag) || ifNoneMatch.equals(HttpCompression.etag(etag, HttpCompression.GZIP))
+                    || ifNoneMatch.equals(HttpCompression.etag(etag, HttpCompression.DEFLATE))) {
+                return statusResponse(304, "Not Modified")
+                        .header("ETag", ifNoneMatch)
+                        .header("Vary", VARY)
+                        .header("Feed-Version", feedVersion);
+            }
+        }
+
+        // Large feeds are streamed from the station fragments so no request holds the whole feed.
+        // A compressed stream is compressed as it is written, for this request only. Nodes gathering a
+        // cluster feed always get the streamed form, whose binary fragments can be spliced.
+        if (forwarded || feedCache.size() > config.getInt("stream-threshold", 10000)) {
+            HttpResponse response = statusResponse(200, "OK")
+                    .header("Content-Type", contentType)
+                    .header("Vary", VARY)
+                    .header("Feed-Version", feedVersion);
+            if (coding == null || !isCompressionEnabled()) {
+                return response.stream(feedCache.streamParts(binary));
+            }
+            return response.header("Content-Encoding", coding)
+                    .stream(HttpCompression.compress(feedCache.streamParts(binary), coding));
+        }
+
+        // The compressed feed is made once per version and coding and shared like the feed itself
+        FeedCache.Feed feed = feedCache.getFeed(binary);
+        HttpResponse response = statusResponse(200, "OK")
+                .header("Content-Type", contentType)
+                .header("Vary", VARY)
+                .header("Feed-Version", feedVersion);
+        if (shouldCompress(coding, feed.getBytes().length)) {
+            return response.header("Content-Encoding", coding)
+                    .header("ETag", HttpCompression.etag(feed.getEtag(), coding))
+                    .body(feed.getBytes(coding));
+        }
+        return response.header("ETag", feed.getEtag())
+                .body(feed.getBytes());
+    }
+
+    // A GET in cluster mode. A single station comes from its owner; the feed and other queries are
+    // gathered from every node in parallel and merged. The merged feed has no ETag: no one node knows
+    // whether the others changed.
+    private static HttpResponse handleClusterGet(HttpRequest request, Map<String, String> parameters,
+                                                 boolean binary, String coding) {
+        StationQuery query = null;
+        if (!parameters.isEmpty()) {
             try {
-                WeatherData data = JSONParser.parseWeatherData(new String(body));
-                
-                if (isValidWeatherData(data)) {
-                    boolean isNewEntry = !weatherDataMap.containsKey(data.getId());
-                    weatherDataMap.put(data.getId(), data);
-                    serverTimestamps.put(data.getId(), System.currentTimeMillis());
-                    expiryQueue.add(new WeatherEntry(data.getId(), System.currentTimeMillis()));
-    
-                    // Persist the data on every successful PUT
-                    persistData();
-                    
-                    lamportClock.increment();
-                    String status = isNewEntry ? "HTTP/1.1 201 Created" : "HTTP/1.1 200 OK";
-                    out.write(status + "\r\n");
-                    out.write("Lamport-Clock: " + lamportClock.getClock() + "\r\n");
-                    out.write("\r\n");
-                    out.flush();
-                } else {
-                    sendErrorResponse(out, "HTTP/1.1 400 Bad Request");
+                query = StationQuery.parse(parameters);
+            } catch (IllegalArgumentException e) {
+                return statusResponse(400, "Bad Request")
+                        .header("Content-Type", "text/plain")
+                        .body(e.getMessage());
+            }
+            if (query.getId() != null) {
+                return cluster.isLocal(query.getId())
+                        ? handleQuery(parameters, binary, coding)
+                        : relay(cluster.ownerOf(query.getId()), request);
+            }
+        }
+
+        // Query results are decoded to be merged, so they are gathered as JSON whatever the client wants
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Accept", binary && query == null ? BinaryWeatherFormat.CONTENT_TYPE : "application/json");
+        Map<String, CompletableFuture<HttpClientConnection.Response>> shards = new LinkedHashMap<>();
+        for (String node : cluster.getPeers()) {
+            shards.put(node, cluster.sendAsync(node, "GET", request.getTarget(), headers, null));
+        }
+        List<byte[]> bodies = new ArrayList<>(shards.size());
+        try {
+            for (Map.Entry<String, CompletableFuture<HttpClientConnection.Response>> shard : shards.entrySet()) {
+                HttpClientConnection.Response response = shard.getValue().join();
+                receiveClock(response);
+                if (response.getStatus() != 200) {
+                    throw new Cluster.NodeException(shard.getKey(), "answered " + response.getStatus(), null);
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
-                sendErrorResponse(out, "HTTP/1.1 500 Internal Server Error");
+                bodies.add(response.getBody());
+            }
+        } catch (Cluster.NodeException e) {
+            return nodeUnavailable(e);
+        } catch (CompletionException e) {
+            Cluster.NodeException nodeFailure = nodeFailure(e);
+            if (nodeFailure == null) {
+                throw e;
             }
+            return nodeUnavailable(nodeFailure);
         }
 
-        private static boolean isValidWeatherData(WeatherData data) {
-            return data.getId() != null;
+        HttpResponse response = statusResponse(200, "OK")
+                .header("Content-Type", binary ? BinaryWeatherFormat.CONTENT_TYPE : "application/json")
+                .header("Vary", VARY);
+        if (query == null) {
+            // Every node's stations spliced into one feed, streamed without assembling it
+            List<byte[]> contents = feedCache.fragmentParts(binary);
+            for (byte[] body : bodies) {
+                contents.add(Cluster.feedContent(body, binary));
+            }
+            Iterator<byte[]> parts = Cluster.mergeFeeds(contents, binary).iterator();
+            if (coding == null || !isCompressionEnabled()) {
+                return response.stream(parts);
+            }
+            return response.header("Content-Encoding", coding)
+                    .stream(HttpCompression.compress(parts, coding));
         }
 
-        private static void handleGetRequest(BufferedWriter out) throws IOException {
-            lamportClock.increment();
+        bodies.add(feedCache.select(query.execute(stationIndex), false));
+        List<WeatherData> stations = new ArrayList<>();
+        for (byte[] body : bodies) {
+            stations.addAll(JSONParser.parseWeatherDataBatch(body, false));
+        }
+        double[] near = query.getNear();
+        if (near != null) {
+            // Each node sent its own nearest; the closest of those overall are the answer
+            stations.sort(Comparator.comparingDouble(data -> StationIndex.distanceKm(near[0], near[1], data.getLat(), data.getLon())));
+            stations = new ArrayList<>(stations.subList(0, Math.min(stations.size(), query.getCount())));
+        }
+        byte[] body = FeedCache.encodeFeed(stations, binary);
+        if (shouldCompress(coding, body.length)) {
+            return response.header("Content-Encoding", coding)
+                    .body(HttpCompression.compress(body, coding));
+        }
+        return response.body(body);
+    }
 
-            removeExpiredEntries();
+    // Passes a request on to the node that owns its station and answers with that node's response
+    private static HttpResponse relay(String node, HttpRequest request) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        for (String name : new String[] {"Accept", "Content-Type", "Lamport-Clock"}) {
+            String value = request.getHeader(name);
+            if (value != null) {
+                headers.put(name, value.trim());
+            }
+        }
+        byte[] body = request.getBody().length == 0 ? null : request.getBody();
+        HttpClientConnection.Response answer;
+        try {
+            answer = cluster.send(node, request.getMethod(), request.getTarget(), headers, body);
+        } catch (Cluster.NodeException e) {
+            return nodeUnavailable(e);
+        }
+        receiveClock(answer);
+        HttpResponse response = statusResponse(answer.getStatus(), answer.getReason());
+        String contentType = answer.getHeader("Content-Type");
+        if (contentType != null) {
+            response.header("Content-Type", contentType);
+        }
+        return answer.getBody().length == 0 ? response : response.body(answer.getBody());
+    }
 
-            List<WeatherData> recentData = new ArrayList<>(weatherDataMap.values());
+    private static boolean isChangesRequest(HttpRequest request) {
+        try {
+            return request.getQueryParameters().containsKey("since");
+        } catch (IllegalArgumentException e) {
+            return false; // handleGetRequest answers 400
+        }
+    }
+
+    // Changes to the feed after a version: GET /weather.json?since=<version>[&wait=<seconds>]
+    // Answers {"version":v,"updated":[stations],"removed":[ids]}, where v is the version to ask from
+    // next. With wait, a request that finds nothing new is held until something changes or the wait
+    // (at most MAX_LONG_POLL) runs out. The held request occupies no thread on the NIO front end.
+    private static CompletableFuture<HttpResponse> handleChangesRequest(HttpRequest request) {
+        Map<String, String> parameters = request.getQueryParameters();
+        String coding = HttpCompression.negotiate(request.getHeader("Accept-Encoding"));
+        long since;
+        long wait;
+        try {
+            since = Long.parseLong(parameters.get("since"));
+            wait = Long.parseLong(parameters.getOrDefault("wait", "0"));
+            if (wait < 0) {
+                throw new IllegalArgumentException("wait must not be negative");
+            }
+        } catch (IllegalArgumentException e) { // Includes NumberFormatException
+            return CompletableFuture.completedFuture(statusResponse(400, "Bad Request")
+                    .header("Content-Type", "text/plain")
+                    .body(e.getMessage()));
+        }
+        if (wait == 0 || !changeLog.covers(since) || changeLog.getLatestVersion() > since) {
+            return CompletableFuture.completedFuture(changesResponse(since, coding));
+        }
 
-            String jsonResponse = "[\n";
-            for (int i = 0; i < recentData.size(); i++) {
-                jsonResponse += JSONParser.convertToJSON(recentData.get(i));
-                if (i < recentData.size() - 1) jsonResponse += ",";
+        CompletableFuture<HttpResponse> response = new CompletableFuture<>();
+        Runnable waiter = () -> changeNotifier.execute(() -> response.complete(changesResponse(since, coding)));
+        changeLog.whenChangedAfter(since, waiter);
+        backgroundTasks.schedule(() -> {
+            if (changeLog.cancel(waiter)) {
+                response.complete(changesResponse(since, coding));
             }
-            jsonResponse += "]";
+        }, Math.min(wait, MAX_LONG_POLL), TimeUnit.SECONDS);
+        return response;
+    }
 
-            out.write("HTTP/1.1 200 OK\r\n");
-            out.write("Content-Type: application/json\r\n");
-            out.write("Lamport-Clock: " + lamportClock.getClock() + "\r\n");
-            out.write("\r\n");
-            out.write(jsonResponse);
+    private static HttpResponse changesResponse(long since, String coding) {
+        List<ChangeLog.Change> changes = changeLog.since(since);
+        if (changes == null) {
+            return changesGone(since);
+        }
+        long version = changes.isEmpty() ? since : changes.get(changes.size() - 1).getVersion();
+        byte[] body = ChangeLog.encodeDelta(version, changes);
+        HttpResponse response = statusResponse(200, "OK")
+                .header("Content-Type", "application/json")
+                .header("Feed-Version", version);
+        if (shouldCompress(coding, body.length)) {
+            return response.header("Content-Encoding", coding)
+                    .body(HttpCompression.compress(body, coding));
         }
+        return response.body(body);
+    }
 
-        private static void removeExpiredEntries() {
-            long currentTime = System.currentTimeMillis();
+    // The version is older than the change log, or from before a restart
+    private static HttpResponse changesGone(long since) {
+        return statusResponse(410, "Gone")
+                .header("Content-Type", "text/plain")
+                .body("Changes since " + since + " are not available, fetch /weather.json again");
+    }
 
-            while (!expiryQueue.isEmpty() && currentTime - expiryQueue.peek().timestamp > EXPIRY_TIME) {
-                WeatherEntry entry = expiryQueue.poll();
-                weatherDataMap.remove(entry.id);
-                serverTimestamps.remove(entry.id);
+    // Server-sent events: GET /events[?since=<version>]. Without a version the stream starts from now;
+    // an EventSource that reconnects resumes from its Last-Event-ID.
+    private static HttpResponse handleEventsRequest(HttpRequest request) {
+        long cursor;
+        try {
+            String since = request.getQueryParameters().get("since");
+            if (since == null) {
+                since = request.getHeader("Last-Event-ID");
             }
+            cursor = since == null ? changeLog.getLatestVersion() : Long.parseLong(since.trim());
+        } catch (IllegalArgumentException e) { // Includes NumberFormatException
+            return statusResponse(400, "Bad Request");
+        }
+        if (!changeLog.covers(cursor)) {
+            return changesGone(cursor);
+        }
+        // Keep-alives come often enough that the idle timeout never closes a quiet stream
+        long keepAlive = Math.max(1000, Math.min(EVENT_KEEP_ALIVE, config.getIdleTimeout() / 2));
+        return statusResponse(200, "OK")
+                .header("Content-Type", "text/event-stream")
+                .header("Cache-Control", "no-cache")
+                .header("Feed-Version", cursor)
+                .live(new ChangeStream(changeLog, cursor, backgroundTasks, keepAlive));
+    }
 
-            // Persist updated data after removal of expired entries
-            persistData();
+    // Streams this server's log to a replica: GET /replication?epoch=<epoch>&from=<position>. A replica
+    // the log cannot resume from, such as one connecting for the first time, is sent a snapshot first.
+    private static HttpResponse handleReplicationRequest(HttpRequest request) throws Exception {
+        String epoch;
+        long from;
+        try {
+            Map<String, String> parameters = request.getQueryParameters();
+            epoch = parameters.getOrDefault("epoch", "");
+            from = Long.parseLong(parameters.getOrDefault("from", "0"));
+        } catch (IllegalArgumentException e) { // Includes NumberFormatException
+            return statusResponse(400, "Bad Request");
+        }
+
+        long cursor = from;
+        List<ReplicationStream.Station> snapshot = null;
+        if (!replicationLog.covers(epoch, from)) {
+            // On the pipeline thread every record up to the position is already applied. Records after
+            // it may be too; the replica applies those again, which leaves the same state.
+            List<ReplicationStream.Station> stations = new ArrayList<>(feedCache.size());
+            cursor = pipeline.execute(() -> {
+                stationStore.forEach((data, timestamp) -> stations.add(new ReplicationStream.Station(data, timestamp)));
+                return replicationLog.getLatestSeq();
+            }).get();
+            snapshot = stations;
+        }
+        return statusResponse(200, "OK")
+                .header("Content-Type", "application/octet-stream")
+                .header("Replication-Epoch", replicationLog.getEpoch())
+                .live(new ReplicationStream(replicationLog, cursor, snapshot, lamportClock::get,
+                        backgroundTasks, REPLICATION_HEARTBEAT));
+    }
+
+    // Makes a replica the primary: POST /promote. It stops following and takes writes from then on.
+    // Whoever promotes it must make sure the old primary is really gone, or both take writes.
+    private static HttpResponse handlePromote() {
+        ReplicaFollower following = replica;
+        if (following == null || !following.isRunning()) {
+            return statusResponse(409, "Conflict")
+                    .header("Content-Type", "text/plain")
+                    .body("Not a replica");
+        }
+        following.stop();
+        Log.info("Promoted to primary, no longer replicating from " + following.getPrimaryUrl());
+        return statusResponse(200, "OK");
+    }
+
+    // Requests between cluster nodes:
+    //   GET /cluster            this node's view, {"self":..,"nodes":[..]}
+    //   POST /cluster/join      adds the node in the body and answers with the members, one per line
+    //   PUT /cluster/members    replaces the membership with the nodes in the body, one per line
+    //   PUT /cluster/handoff    stations this node now owns, as write-ahead log PUT records
+    private static HttpResponse handleClusterRequest(HttpRequest request) throws Exception {
+        String method = request.getMethod();
+        String path = request.getPath();
+        if ("GET".equalsIgnoreCase(method) && "/cluster".equals(path)) {
+            JsonObject result = new JsonObject();
+            result.addProperty("self", cluster.getSelf());
+            JsonArray nodes = new JsonArray();
+            cluster.getNodes().forEach(nodes::add);
+            result.add("nodes", nodes);
+            return statusResponse(200, "OK")
+                    .header("Content-Type", "application/json")
+                    .body(result.toString());
+        }
+        if ("POST".equalsIgnoreCase(method) && "/cluster/join".equals(path)) {
+            return handleJoin(Cluster.normalize(request.getBodyAsString()));
+        }
+        if ("PUT".equalsIgnoreCase(method) && "/cluster/members".equals(path)) {
+            List<String> members = lines(request.getBodyAsString());
+            if (members.isEmpty()) {
+                return statusResponse(400, "Bad Request");
+            }
+            if (cluster.setMembers(members)) {
+                Log.info("Cluster members " + cluster.getNodes());
+                clusterTasks.execute(AggregationServer::rebalance);
+            }
+            return statusResponse(200, "OK");
+        }
+        if ("PUT".equalsIgnoreCase(method) && "/cluster/handoff".equals(path)) {
+            return handleHandoff(request.getBody());
+        }
+        return statusResponse(400, "Bad Request");
+    }
+
+    // Adds a node and tells the other members before answering, so by the time the new node knows it
+    // is in, every node routes to it. Joins should be made one at a time.
+    private static HttpResponse handleJoin(String joining) {
+        if (joining.isEmpty()) {
+            return statusResponse(400, "Bad Request");
+        }
+        List<String> members;
+        synchronized (cluster) {
+            members = new ArrayList<>(cluster.getNodes());
+            if (!members.contains(joining)) {
+                members.add(joining);
+            }
+            if (cluster.setMembers(members)) {
+                Log.info(joining + " joined the cluster, members " + cluster.getNodes());
+            }
+        }
+        byte[] body = String.join("\n", members).getBytes(StandardCharsets.UTF_8);
+        for (String node : cluster.getPeers()) {
+            if (node.equals(joining)) {
+                continue;
+            }
+            try {
+                cluster.send(node, "PUT", "/cluster/members", textHeaders(), body);
+            } catch (Cluster.NodeException e) {
+                Log.warn("Cannot tell " + node + " about the new member: " + e.getMessage());
+            }
+        }
+        clusterTasks.execute(AggregationServer::rebalance);
+        return statusResponse(200, "OK")
+                .header("Content-Type", "text/plain")
+                .body(body);
+    }
+
+    // Hands the stations this node no longer owns to their owners after a membership change. Each
+    // goes with its update time, so it expires when it would have here. A station is only removed
+    // here if it was not updated while it was being handed over. Runs on the cluster task thread.
+    private static void rebalance() {
+        Map<String, List<WeatherData>> moving = new LinkedHashMap<>();
+        Map<String, Long> timestamps = new HashMap<>();
+        try {
+            pipeline.execute(() -> {
+                stationStore.forEach((data, timestamp) -> {
+                    String owner = cluster.ownerOf(data.getId());
+                    if (!owner.equals(cluster.getSelf())) {
+                        moving.computeIfAbsent(owner, node -> new ArrayList<>()).add(data);
+                        timestamps.put(data.getId(), timestamp);
+                    }
+                });
+                return null;
+            }).get();
+        } catch (Exception e) {
+            Log.error("Rebalance failed", e);
+            return;
+        }
+
+        for (Map.Entry<String, List<WeatherData>> handoff : moving.entrySet()) {
+            String owner = handoff.getKey();
+            List<WeatherData> stations = handoff.getValue();
+            int handed = 0;
+            for (int start = 0; start < stations.size(); start += HANDOFF_BATCH) {
+                List<WeatherData> batch = stations.subList(start, Math.min(stations.size(), start + HANDOFF_BATCH));
+                ByteArrayOutputStream records = new ByteArrayOutputStream();
+                for (WeatherData data : batch) {
+                    byte[] record = WriteAheadLog.encodePut(data, timestamps.get(data.getId()));
+                    records.write(record, 0, record.length);
+                }
+                try {
+                    HttpClientConnection.Response response = cluster.send(owner, "PUT", "/cluster/handoff",
+                            new HashMap<>(), records.toByteArray());
+                    if (response.getStatus() != 200) {
+                        throw new Cluster.NodeException(owner, "answered " + response.getStatus(), null);
+                    }
+                } catch (Cluster.NodeException e) {
+                    // The rest stay here, still part of the gathered feed, until the next membership change
+                    Log.warn("Handoff stopped: " + e.getMessage());
+                    break;
+                }
+                pipeline.execute(() -> {
+                    for (WeatherData data : batch) {
+                        if (stationStore.getTimestamp(data.getId()) == timestamps.get(data.getId())) {
+                            removeStation(data.getId());
+                            wal.appendRemove(data.getId());
+                        }
+                    }
+                    return null;
+                });
+                handed += batch.size();
+            }
+            if (handed > 0) {
+                Log.info("Handed " + handed + " stations to " + owner);
+            }
+        }
+    }
+
+    // Stations handed over by their previous owner. One this node already has was updated here since,
+    // so the copy here is kept. Answers {"accepted":n}.
+    private static HttpResponse handleHandoff(byte[] body) throws Exception {
+        List<byte[]> records = new ArrayList<>();
+        List<WeatherData> stations = new ArrayList<>();
+        List<Long> timestamps = new ArrayList<>();
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(body);
+            while (buffer.hasRemaining()) {
+                // Each record is its payload length, a checksum and the payload
+                int length = buffer.remaining() >= 8 ? buffer.getInt(buffer.position()) : -1;
+                if (length < 0 || length > buffer.remaining() - 8) {
+                    throw new IOException("Truncated handoff record");
+                }
+                byte[] record = new byte[8 + length];
+                buffer.get(record);
+                WriteAheadLog.decodeRecord(record, new WriteAheadLog.Replay() {
+                    @Override
+                    public void put(WeatherData data, long timestamp) {
+                        records.add(record);
+                        stations.add(data);
+                        timestamps.add(timestamp);
+                    }
+
+                    @Override
+                    public void remove(String id) {
+                        // Only PUT records are handed over
+                    }
+
+                    @Override
+                    public void touch(String id, long timestamp) {
+                        // Only PUT records are handed over
+                    }
+                });
+            }
+        } catch (IOException e) {
+            return statusResponse(400, "Bad Request")
+                    .header("Content-Type", "text/plain")
+                    .body(e.getMessage());
+        }
+
+        List<FeedCache.Fragment> fragments = new ArrayList<>(stations.size());
+        for (WeatherData data : stations) {
+            fragments.add(FeedCache.encode(data));
+        }
+        int[] accepted = new int[1];
+        pipeline.execute(() -> {
+            List<CompletableFuture<Void>> durable = new ArrayList<>();
+            for (int i = 0; i < stations.size(); i++) {
+                if (stationStore.getTimestamp(stations.get(i).getId()) < 0) {
+                    applyStation(stations.get(i), fragments.get(i), timestamps.get(i), ApplyPipeline.UNORDERED);
+                    durable.add(wal.appendRecord(records.get(i)));
+                    accepted[0]++;
+                }
+            }
+            return CompletableFuture.allOf(durable.toArray(new CompletableFuture<?>[0]));
+        }).thenCompose(durable -> durable).get();
+
+        JsonObject result = new JsonObject();
+        result.addProperty("accepted", accepted[0]);
+        return statusResponse(200, "OK")
+                .header("Content-Type", "application/json")
+                .body(result.toString());
+    }
+
+    private static boolean isCompressionEnabled() {
+        return config.getInt("compression-threshold", 1024) >= 0;
+    }
+
+    // Bodies under the threshold go out as they are: compressing them costs more than it saves
+    private static boolean shouldCompress(String coding, int length) {
+        return coding != null && isCompressionEnabled() && length >= config.getInt("compression-threshold", 1024);
+    }
+
+    // Aggregates one field of a station's recent history:
+    // GET /history.json?id=IDS60901&field=airTemp[&window=<seconds>][&since-clock=<lamport>]
+    // Answers {"id":..,"field":..,"count":n,"min":..,"max":..,"avg":..,"first":..,"last":..,
+    // "fromTime":..,"toTime":..,"fromClock":..,"toClock":..}; statistics are omitted when the window is empty.
+    private static HttpResponse handleHistoryRequest(HttpRequest request) {
+        String id;
+        StationHistory.Field field;
+        long fromTime = Long.MIN_VALUE;
+        long fromClock = Long.MIN_VALUE;
+        try {
+            Map<String, String> parameters = request.getQueryParameters();
+            id = parameters.get("id");
+            if (id == null || parameters.get("field") == null) {
+                throw new IllegalArgumentException("History needs id and field");
+            }
+            field = StationHistory.Field.forName(parameters.get("field"));
+            if (parameters.containsKey("window")) {
+                long windowSeconds = Long.parseLong(parameters.get("window"));
+                if (windowSeconds <= 0) {
+                    throw new IllegalArgumentException("window must be a positive number of seconds");
+                }
+                fromTime = System.currentTimeMillis() - windowSeconds * 1000;
+            }
+            if (parameters.containsKey("since-clock")) {
+                fromClock = Long.parseLong(parameters.get("since-clock"));
+            }
+        } catch (IllegalArgumentException e) { // Includes NumberFormatException
+            return statusResponse(400, "Bad Request")
+                    .header("Content-Type", "text/plain")
+                    .body(e.getMessage());
+        }
+        if (cluster != null && request.getHeader(Cluster.FORWARDED) == null && !cluster.isLocal(id)) {
+            return relay(cluster.ownerOf(id), request);
+        }
+
+        StationHistory.Aggregate aggregate = stationHistory.aggregate(id, field, fromTime, fromClock);
+        if (aggregate == null) {
+            return statusResponse(404, "Not Found");
+        }
+        JsonObject result = new JsonObject();
+        result.addProperty("id", id);
+        result.addProperty("field", field.getJsonName());
+        result.addProperty("count", aggregate.getCount());
+        if (aggregate.getCount() > 0) {
+            result.addProperty("min", aggregate.getMin());
+            result.addProperty("max", aggregate.getMax());
+            result.addProperty("avg", aggregate.getAvg());
+            result.addProperty("first", aggregate.getFirst());
+            result.addProperty("last", aggregate.getLast());
+            result.addProperty("fromTime", aggregate.getFromTime());
+            result.addProperty("toTime", aggregate.getToTime());
+            result.addProperty("fromClock", aggregate.getFromClock());
+            result.addProperty("toClock", aggregate.getToClock());
+        }
+        return statusResponse(200, "OK")
+                .header("Content-Type", "application/json")
+                .body(result.toString());
+    }
+
+    // Filtered read served from the secondary indexes, e.g. ?state=SA or ?near=-34.9,138.6&n=5
+    private static HttpResponse handleQuery(Map<String, String> parameters, boolean binary, String coding) {
+        StationQuery query;
+        try {
+            query = StationQuery.parse(parameters);
+        } catch (IllegalArgumentException e) {
+            return statusResponse(400, "Bad Request")
+                    .header("Content-Type", "text/plain")
+                    .body(e.getMessage());
+        }
+
+        byte[] body = feedCache.select(query.execute(stationIndex), binary);
+        HttpResponse response = statusResponse(200, "OK")
+                .header("Content-Type", binary ? BinaryWeatherFormat.CONTENT_TYPE : "application/json")
+                .header("Vary", VARY);
+        if (shouldCompress(coding, body.length)) {
+            return response.header("Content-Encoding", coding)
+                    .body(HttpCompression.compress(body, coding));
+        }
+        return response.body(body);
+    }
+
+    // Removes stations whose content server has been silent for EXPIRY_TIME. Runs on the background scheduler.
+    private static void removeExpiredEntries() {
+        if (isFollowing()) {
+            return; // A replica removes stations when its primary does
+        }
+        long currentTime = System.currentTimeMillis();
+
+        List<String> due = expiryWheel.advance(currentTime);
+        if (due.isEmpty()) {
+            return;
+        }
+        pipeline.execute(() -> {
+            for (String id : due) {
+                // Re-check in case a PUT refreshed the station after the wheel fired
+                long updated = stationStore.getTimestamp(id);
+                if (updated < 0 || currentTime - updated <= EXPIRY_TIME) {
+                    continue;
+                }
+                removeStation(id);
+                wal.appendRemove(id);
+                Metrics.EXPIRED.increment();
+            }
+            return null;
+        });
+    }
+
+    // ClientHandler: Handles a client connection, run as a task on the connection executor
+    private static class ClientHandler implements Runnable {
+        private final Socket clientSocket;
+
+        public ClientHandler(Socket socket) {
+            this.clientSocket = socket;
+        }
+
+        // Serves requests on the connection until the client or the keep-alive policy closes it
+        @Override
+        public void run() {
+            Metrics.CONNECTIONS_OPENED.increment();
+            Metrics.ACTIVE_CONNECTIONS.increment();
+            String remoteAddress = clientSocket.getInetAddress().getHostAddress();
+            try (
+                InputStream input = clientSocket.getInputStream();
+                OutputStream output = new BufferedOutputStream(clientSocket.getOutputStream())
+            ) {
+                clientSocket.setSoTimeout(config.getIdleTimeout());
+                HttpRequestParser parser = new HttpRequestParser();
+                ByteBuffer buffer = ByteBuffer.allocate(8192);
+                buffer.flip();
+                int served = 0;
+                while (true) {
+                    if (served > 0 && connectionPool != null && !buffer.hasRemaining() && !awaitRequest(input, buffer)) {
+                        return;
+                    }
+                    HttpRequest request;
+                    try {
+                        request = readRequest(input, parser, buffer);
+                    } catch (HttpRequestParser.BadRequestException e) {
+                        statusResponse(400, "Bad Request").header("Connection", "close").writeTo(output);
+                        return;
+                    } catch (SocketTimeoutException e) {
+                        return; // Idle for longer than the idle timeout
+                    }
+                    if (request == null) {
+                        return;
+                    }
+
+                    HttpResponse response = handleRequest(request.withRemoteAddress(remoteAddress));
+                    // Serving on the accept thread (the pool's caller-runs fallback) stalls every new
+                    // connection, so that thread answers one request and moves on
+                    boolean keepAlive = keepAlive(request, response, ++served,
+                            Thread.currentThread() != acceptThread && !workersWanted());
+                    // A pipelined request already in the buffer is answered before flushing
+                    response.writeTo(output, !keepAlive || !buffer.hasRemaining());
+                    if (!keepAlive) {
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                Log.warn("Connection failed: " + e.getMessage());
+            } finally {
+                Metrics.ACTIVE_CONNECTIONS.decrement();
+                admission.connectionClosed();
+                try {
+                    clientSocket.close();
+                } catch (IOException e) {
+                    Log.warn("Failed to close a connection: " + e.getMessage());
+                }
+            }
+        }
+
+        // Waits on an idle keep-alive connection for its next request while the worker could be serving
+        // someone else. Gives the worker back (returns false) as soon as a connection is queued for the
+        // pool, or once the connection has been idle for --keep-alive-timeout.
+        private boolean awaitRequest(InputStream input, ByteBuffer buffer) throws IOException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getInt("keep-alive-timeout", 2000));
+            clientSocket.setSoTimeout(KEEP_ALIVE_POLL);
+            try {
+                while (true) {
+                    try {
+                        buffer.clear();
+                        int n = input.read(buffer.array());
+                        if (n == -1) {
+                            return false;
+                        }
+                        buffer.limit(n);
+                        return true;
+                    } catch (SocketTimeoutException e) {
+                        buffer.limit(0);
+                        if (workersWanted() || System.nanoTime() - deadline > 0) {
+                            return false;
+                        }
+                    }
+                }
+            } finally {
+                clientSocket.setSoTimeout(config.getIdleTimeout());
+            }
+        }
+
+        private static boolean workersWanted() {
+            return connectionPool != null && !connectionPool.getQueue().isEmpty();
+        }
+
+        // Reads the next request, starting with bytes left over from the previous one. Returns null
+        // if the client closed the connection first.
+        private static HttpRequest readRequest(InputStream input, HttpRequestParser parser, ByteBuffer buffer) throws IOException {
+            while (true) {
+                if (buffer.hasRemaining()) {
+                    HttpRequest request = parser.parse(buffer);
+                    if (request != null) {
+                        return request;
+                    }
+                }
+                buffer.clear();
+                int n = input.read(buffer.array());
+                if (n == -1) {
+                    return null;
+                }
+                buffer.limit(n);
+            }
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,339 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+// Single-writer stage that applies every change to the station store.
+// Request threads put changes on a lock-free queue and wait on a future; one thread drains it. Station
+// updates go through a reorder buffer ordered by Lamport clock: the oldest clock is applied once it has
+// waited out the reordering window, so an update that arrives a little late is still applied before
+// newer ones. An update older than the last one applied to its station is rejected as stale. Updates
+// released together are handed to the write-ahead log as one record. Because only this thread mutates
+// the store, no locks are needed and the log order matches the apply order. Until its record is
+// durable, a round remembers what each station was before it; if the record cannot be written, the
+// stations are put back before the round's updates fail.
+public class ApplyPipeline {
+    public static final int STALE = 409;
+    public static final long UNORDERED = -1; // Clock of updates whose sender has none
+    private static final int SPIN_LIMIT = 1000;
+    private static final int MAX_WAITING = 10000; // Updates held for reordering before the oldest is forced out
+
+    // The store the pipeline writes to; called on the pipeline thread only
+    public interface Store {
+        // Applies one station and returns true if it was not in the store before. clock is the
+        // update's Lamport clock, or UNORDERED.
+        boolean apply(WeatherData data, FeedCache.Fragment fragment, long timestamp, long clock);
+
+        // Logs the stations applied in one round, encoded by WriteAheadLog.encodeStation; completes
+        // once they are durable
+        CompletableFuture<Void> persist(List<WeatherData> stations, List<byte[]> records, long timestamp);
+
+        // The station as stored, or null if it is not in the store
+        WeatherData get(String id);
+
+        long getTimestamp(String id);
+
+        // Puts a station back as it was before updates that could not be logged, or removes it if data
+        // is null. observations is how many of those updates its history recorded.
+        void restore(String id, WeatherData data, long timestamp, int observations);
+    }
+
+    // A queued change: either station updates sharing one clock, or a task to run in queue order
+    private static final class Change {
+        final long arrival = System.nanoTime();
+        long sequence; // Arrival order, breaks ties between equal clocks
+        final List<WeatherData> stations;
+        final List<FeedCache.Fragment> fragments;
+        final List<byte[]> records;
+        final long clock;
+        final CompletableFuture<int[]> statuses;
+        final Supplier<?> task;
+        final CompletableFuture<Object> taskResult;
+
+        Change(List<WeatherData> stations, List<FeedCache.Fragment> fragments, List<byte[]> records, long clock) {
+            this.stations = stations;
+            this.fragments = fragments;
+            this.records = records;
+            this.clock = clock;
+            this.statuses = new CompletableFuture<>();
+            this.task = null;
+            this.taskResult = null;
+        }
+
+        Change(Supplier<?> task) {
+            this.stations = null;
+            this.fragments = null;
+            this.records = null;
+            this.clock = 0;
+            this.statuses = null;
+            this.task = task;
+            this.taskResult = new CompletableFuture<>();
+        }
+    }
+
+    // Stations applied together and logged as one record
+    private static final class Round {
+        final long timestamp;
+        final List<WeatherData> stations = new ArrayList<>();
+        final List<byte[]> records = new ArrayList<>();
+        final List<Long> clocks = new ArrayList<>(); // Each station's clock once applied, null if none
+        final Map<Change, int[]> results = new HashMap<>();
+        Throwable error; // Why the record could not be written, once settled
+
+        Round(long timestamp) {
+            this.timestamp = timestamp;
+        }
+    }
+
+    // A station as it was before the rounds changing it that are not durable yet
+    private static final class Undo {
+        WeatherData data; // null if the station was not stored
+        long timestamp;
+        Long clock;
+        int observations; // Updates applied since, each recorded in the station's history
+        Round last; // The latest round that changed it
+
+        Undo(WeatherData data, long timestamp, Long clock) {
+            this.data = data;
+            this.timestamp = timestamp;
+            this.clock = clock;
+        }
+    }
+
+    private final Store store;
+    private final long windowNanos;
+    private final Queue<Change> queue = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Change> waiting = new PriorityQueue<>((a, b) -> a.clock != b.clock
+            ? Long.compare(a.clock, b.clock)
+            : Long.compare(a.sequence, b.sequence));
+    private final List<Change> unordered = new ArrayList<>();
+    private long sequence;
+    private final Map<String, Long> stationClocks = new HashMap<>(); // Pipeline thread only
+    private final Map<String, Undo> undurable = new HashMap<>(); // Pipeline thread only
+    private final Queue<Round> settled = new ConcurrentLinkedQueue<>(); // Rounds whose log write finished
+    private final Thread writer;
+    private volatile boolean sleeping;
+
+    public ApplyPipeline(Store store, long windowMillis) {
+        this.store = store;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.writer = new Thread(this::run, "apply-pipeline");
+        writer.setDaemon(true);
+    }
+
+    public void start() {
+        writer.start();
+    }
+
+    // Queues station updates carrying the given Lamport clock, or UNORDERED to apply them on arrival
+    // without ordering or staleness checks. records are the stations encoded by
+    // WriteAheadLog.encodeStation. The future yields a status per station: 201 created, 200 replaced,
+    // or STALE, and completes once the applied stations are durable. It fails if they could not be
+    // logged, once they have been put back as they were.
+    public CompletableFuture<int[]> submit(List<WeatherData> stations, List<FeedCache.Fragment> fragments,
+                                           List<byte[]> records, long clock) {
+        Change change = new Change(stations, fragments, records, clock);
+        enqueue(change);
+        return change.statuses;
+    }
+
+    // Runs the task on the pipeline thread after every change queued before it has been applied
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> execute(Supplier<T> task) {
+        Change change = new Change(task);
+        enqueue(change);
+        return (CompletableFuture<T>) change.taskResult;
+    }
+
+    // Forgets a station's clock once it has left the store. Call from a task.
+    public void forget(String id) {
+        stationClocks.remove(id);
+        undurable.remove(id); // Its removal is logged on its own, so it is never put back
+    }
+
+    private void enqueue(Change change) {
+        queue.add(change);
+        wake();
+    }
+
+    private void wake() {
+        if (sleeping) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private void run() {
+        while (true) {
+            settle();
+            Change change;
+            while ((change = queue.poll()) != null) {
+                change.sequence = sequence++;
+                if (change.task != null) {
+                    // Everything queued before the task is applied before it runs
+                    flush();
+                    try {
+                        change.taskResult.complete(change.task.get());
+                    } catch (RuntimeException e) {
+                        change.taskResult.completeExceptionally(e);
+                    }
+                } else if (change.clock == UNORDERED) {
+                    unordered.add(change);
+                } else {
+                    waiting.add(change);
+                }
+            }
+            applyUpdates(unordered);
+            unordered.clear();
+
+            // Release updates from the oldest clock on while it has waited out the window
+            long now = System.nanoTime();
+            List<Change> ready = new ArrayList<>();
+            while (!waiting.isEmpty()
+                    && (waiting.size() > MAX_WAITING || now - waiting.peek().arrival >= windowNanos)) {
+                ready.add(waiting.poll());
+            }
+            applyUpdates(ready);
+
+            // Under load the next change usually arrives within microseconds; spinning briefly avoids
+            // paying for a park and unpark on every one
+            for (int spin = 0; spin < SPIN_LIMIT && queue.isEmpty() && settled.isEmpty(); spin++) {
+                Thread.onSpinWait();
+            }
+            if (!queue.isEmpty() || !settled.isEmpty()) {
+                continue;
+            }
+
+            sleeping = true;
+            // Re-check after announcing the sleep, or a change queued in between would wait for the next one
+            if (queue.isEmpty() && settled.isEmpty()) {
+                if (waiting.isEmpty()) {
+                    LockSupport.park(this);
+                } else {
+                    LockSupport.parkNanos(this, windowNanos - (now - waiting.peek().arrival));
+                }
+            }
+            sleeping = false;
+        }
+    }
+
+    private void flush() {
+        applyUpdates(unordered);
+        unordered.clear();
+        List<Change> all = new ArrayList<>(waiting.size());
+        while (!waiting.isEmpty()) {
+            all.add(waiting.poll());
+        }
+        applyUpdates(all);
+    }
+
+    // Applies updates in the given order and logs the applied stations as one record
+    private void applyUpdates(List<Change> updates) {
+        if (updates.isEmpty()) {
+            return;
+        }
+        Round round = new Round(System.currentTimeMillis());
+        for (Change change : updates) {
+            int[] statuses = new int[change.stations.size()];
+            try {
+                for (int i = 0; i < statuses.length; i++) {
+                    WeatherData data = change.stations.get(i);
+                    String id = data.getId();
+                    Long last = stationClocks.get(id);
+                    if (change.clock != UNORDERED && last != null && change.clock < last) {
+                        statuses[i] = STALE;
+                        continue;
+                    }
+                    Undo undo = undurable.get(id);
+                    if (undo == null) {
+                        WeatherData previous = store.get(id);
+                        undo = new Undo(previous, previous == null ? 0 : store.getTimestamp(id), last);
+                    }
+                    if (change.clock != UNORDERED) {
+                        stationClocks.put(id, change.clock);
+                    }
+                    statuses[i] = store.apply(data, change.fragments.get(i), round.timestamp, change.clock) ? 201 : 200;
+                    undo.observations++;
+                    undo.last = round;
+                    undurable.put(id, undo);
+                    round.stations.add(data);
+                    round.records.add(change.records.get(i));
+                    round.clocks.add(stationClocks.get(id));
+                }
+                round.results.put(change, statuses);
+            } catch (RuntimeException e) {
+                change.statuses.completeExceptionally(e);
+            }
+        }
+
+        if (round.stations.isEmpty()) {
+            for (Map.Entry<Change, int[]> result : round.results.entrySet()) {
+                result.getKey().statuses.complete(result.getValue());
+            }
+            return;
+        }
+        CompletableFuture<Void> durable;
+        try {
+            durable = store.persist(round.stations, round.records, round.timestamp);
+        } catch (RuntimeException e) {
+            durable = new CompletableFuture<>();
+            durable.completeExceptionally(e);
+        }
+        durable.whenComplete((ignored, error) -> {
+            if (error == null) {
+                for (Map.Entry<Change, int[]> result : round.results.entrySet()) {
+                    result.getKey().statuses.complete(result.getValue());
+                }
+            }
+            // The pipeline thread forgets what the round changed, or puts it back if it failed
+            round.error = error;
+            settled.add(round);
+            wake();
+        });
+    }
+
+    // Handles rounds whose log write finished, in log order. A station whose latest change has been
+    // logged is durable. One whose latest change could not be logged goes back to how it was before the
+    // first change that is not durable; if a later round changed it since, the later round decides.
+    private void settle() {
+        Round round;
+        while ((round = settled.poll()) != null) {
+            for (int i = 0; i < round.stations.size(); i++) {
+                WeatherData data = round.stations.get(i);
+                String id = data.getId();
+                Undo undo = undurable.get(id);
+                if (undo == null) {
+                    continue; // Removed since, or already put back for an earlier entry of this round
+                }
+                if (undo.last == round) {
+                    undurable.remove(id);
+                    if (round.error != null) {
+                        store.restore(id, undo.data, undo.timestamp, undo.observations);
+                        if (undo.clock == null) {
+                            stationClocks.remove(id);
+                        } else {
+                            stationClocks.put(id, undo.clock);
+                        }
+                    }
+                } else if (round.error == null) {
+                    // Durable now, so a later round that fails goes back to this
+                    undo.data = data;
+                    undo.timestamp = round.timestamp;
+                    undo.clock = round.clocks.get(i);
+                    undo.observations--;
+                }
+            }
+            if (round.error != null) {
+                for (Change change : round.results.keySet()) {
+                    change.statuses.completeExceptionally(round.error);
+                }
+            }
+        }
+    }
+}
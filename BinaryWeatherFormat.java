@@ -0,0 +1,272 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compact binary encoding of stations, sent as application/x-weather-binary instead of JSON.
+//
+// A message is the magic "WXB1", then each station as a 1 byte followed by its fields in WeatherData
+// order, then a 0 byte. There are no field names. Integers are zigzag varints. Doubles are varints
+// too, scaled by 1, 10 or 100 when that makes them whole, which covers the one-decimal readings the
+// Bureau publishes; anything else is written as 8 raw bytes. A string is a varint tag: 0 for null,
+// 1 for a literal that is also added to the message's dictionary, 2 for a literal that is not, or
+// 3 + n for dictionary entry n. Literals are a varint byte length and UTF-8.
+//
+// Repetitive fields (state, time zone, local time, cloud, wind direction) go through the dictionary,
+// so a feed sends each distinct value once. Fragments encode one station with plain literals only, so
+// any concatenation of fragments between a header and a trailer is a valid message.
+public class BinaryWeatherFormat {
+    public static final String CONTENT_TYPE = "application/x-weather-binary";
+
+    private static final byte[] MAGIC = {'W', 'X', 'B', '1'};
+    private static final byte[] END = {0};
+    private static final int STATION = 1;
+    private static final int NULL = 0;
+    private static final int SHARED_LITERAL = 1;
+    private static final int LITERAL = 2;
+    private static final int FIRST_REFERENCE = 3;
+
+    // True if a Content-Type or Accept header names the binary format
+    public static boolean matches(String header) {
+        return header != null && header.contains(CONTENT_TYPE);
+    }
+
+    // Builds one message. Not thread-safe.
+    public static class Writer {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final Map<String, Integer> dictionary;
+
+        public Writer() {
+            this(true);
+        }
+
+        private Writer(boolean useDictionary) {
+            dictionary = useDictionary ? new HashMap<>() : null;
+        }
+
+        public Writer write(WeatherData data) {
+            out.write(STATION);
+            writeString(data.getId(), false);
+            writeString(data.getName(), false);
+            writeString(data.getState(), true);
+            writeString(data.getTimeZone(), true);
+            writeDouble(data.getLat());
+            writeDouble(data.getLon());
+            writeString(data.getLocalDateTime(), true);
+            writeString(data.getLocalDateTimeFull(), false);
+            writeDouble(data.getAirTemp());
+            writeDouble(data.getApparentTemp());
+            writeString(data.getCloud(), true);
+            writeDouble(data.getDewPoint());
+            writeDouble(data.getPressure());
+            writeVarint(zigzag(data.getRelHum()));
+            writeString(data.getWindDir(), true);
+            writeVarint(zigzag(data.getWindSpeedKmh()));
+            writeVarint(zigzag(data.getWindSpeedKt()));
+            return this;
+        }
+
+        // The message so far, with the header and trailer
+        public byte[] toByteArray() {
+            byte[] body = out.toByteArray();
+            byte[] message = new byte[MAGIC.length + body.length + END.length];
+            System.arraycopy(MAGIC, 0, message, 0, MAGIC.length);
+            System.arraycopy(body, 0, message, MAGIC.length, body.length);
+            message[message.length - 1] = END[0];
+            return message;
+        }
+
+        private void writeString(String value, boolean shared) {
+            if (value == null) {
+                out.write(NULL);
+                return;
+            }
+            if (dictionary != null && shared) {
+                Integer index = dictionary.get(value);
+                if (index != null) {
+                    writeVarint(FIRST_REFERENCE + index);
+                    return;
+                }
+                dictionary.put(value, dictionary.size());
+                out.write(SHARED_LITERAL);
+            } else {
+                out.write(LITERAL);
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        private void writeDouble(double value) {
+            for (int scale = 0; scale < 3; scale++) {
+                double factor = scale == 0 ? 1 : scale == 1 ? 10 : 100;
+                long scaled = Math.round(value * factor);
+                if (Math.abs(scaled) < (1L << 52) && Double.compare(scaled / factor, value) == 0) {
+                    writeVarint(zigzag(scaled) << 2 | scale);
+                    return;
+                }
+            }
+            writeVarint(3);
+            long bits = Double.doubleToRawLongBits(value);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out.write((int) (bits >>> shift));
+            }
+        }
+
+        private void writeVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+    }
+
+    public static byte[] encode(List<WeatherData> stations) {
+        Writer writer = new Writer();
+        for (WeatherData data : stations) {
+            writer.write(data);
+        }
+        return writer.toByteArray();
+    }
+
+    // One station without dictionary references, for splicing into messages with header() and trailer()
+    public static byte[] encodeFragment(WeatherData data) {
+        Writer writer = new Writer(false);
+        writer.write(data);
+        return writer.out.toByteArray();
+    }
+
+    public static byte[] header() {
+        return MAGIC.clone();
+    }
+
+    public static byte[] trailer() {
+        return END.clone();
+    }
+
+    // Decodes a message. Throws IllegalArgumentException if it is malformed.
+    public static List<WeatherData> decode(byte[] message) {
+        ByteBuffer in = ByteBuffer.wrap(message);
+        List<String> dictionary = new ArrayList<>();
+        List<WeatherData> stations = new ArrayList<>();
+        try {
+            for (byte b : MAGIC) {
+                if (in.get() != b) {
+                    throw new IllegalArgumentException("Not a binary weather message");
+                }
+            }
+            while (true) {
+                int marker = in.get();
+                if (marker == 0) {
+                    break;
+                }
+                if (marker != STATION) {
+                    throw new IllegalArgumentException("Malformed binary weather message");
+                }
+                stations.add(readStation(in, dictionary));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated binary weather message");
+        }
+        if (in.hasRemaining()) {
+            throw new IllegalArgumentException("Trailing bytes after binary weather message");
+        }
+        return stations;
+    }
+
+    // Decodes a single fragment made by encodeFragment
+    public static WeatherData decodeFragment(byte[] fragment) {
+        ByteBuffer in = ByteBuffer.wrap(fragment);
+        in.get(); // Station marker
+        return readStation(in, null);
+    }
+
+    private static WeatherData readStation(ByteBuffer in, List<String> dictionary) {
+        WeatherData data = new WeatherData();
+        data.setId(readString(in, dictionary));
+        data.setName(readString(in, dictionary));
+        data.setState(readString(in, dictionary));
+        data.setTimeZone(readString(in, dictionary));
+        data.setLat(readDouble(in));
+        data.setLon(readDouble(in));
+        data.setLocalDateTime(readString(in, dictionary));
+        data.setLocalDateTimeFull(readString(in, dictionary));
+        data.setAirTemp(readDouble(in));
+        data.setApparentTemp(readDouble(in));
+        data.setCloud(readString(in, dictionary));
+        data.setDewPoint(readDouble(in));
+        data.setPressure(readDouble(in));
+        data.setRelHum(readInt(in));
+        data.setWindDir(readString(in, dictionary));
+        data.setWindSpdKmh(readInt(in));
+        data.setWindSpdKt(readInt(in));
+        return data;
+    }
+
+    private static String readString(ByteBuffer in, List<String> dictionary) {
+        long tag = readVarint(in);
+        if (tag == NULL) {
+            return null;
+        }
+        if (tag >= FIRST_REFERENCE) {
+            if (dictionary == null || tag - FIRST_REFERENCE >= dictionary.size()) {
+                throw new IllegalArgumentException("Unknown dictionary reference in binary weather message");
+            }
+            return dictionary.get((int) (tag - FIRST_REFERENCE));
+        }
+        long length = readVarint(in);
+        if (length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[(int) length];
+        in.get(bytes);
+        String value = new String(bytes, StandardCharsets.UTF_8);
+        if (tag == SHARED_LITERAL && dictionary != null) {
+            dictionary.add(value);
+        }
+        return value;
+    }
+
+    private static double readDouble(ByteBuffer in) {
+        long tag = readVarint(in);
+        int scale = (int) (tag & 3);
+        if (scale == 3) {
+            return Double.longBitsToDouble(in.getLong());
+        }
+        long scaled = unzigzag(tag >>> 2);
+        return scale == 0 ? scaled : scaled / (scale == 1 ? 10.0 : 100.0);
+    }
+
+    private static int readInt(ByteBuffer in) {
+        long value = unzigzag(readVarint(in));
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Integer out of range in binary weather message");
+        }
+        return (int) value;
+    }
+
+    private static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint too long in binary weather message");
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,170 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.JsonPrimitive;
+
+// Bounded log of the most recent station changes, so clients can follow the feed without downloading
+// it again. Every upsert and removal is appended by the apply thread with a version taken from the
+// server's Lamport clock, so versions only grow along the log. Once the log is full the oldest change
+// is dropped; a client asking for changes from before that point has to fetch the full feed again.
+public class ChangeLog {
+    // One upserted or removed station. The fragment is null for a removal.
+    public static class Change {
+        private final long version;
+        private final String id;
+        private final FeedCache.Fragment fragment;
+        private byte[] event; // Server-sent event form, made once and shared by every subscriber
+
+        Change(long version, String id, FeedCache.Fragment fragment) {
+            this.version = version;
+            this.id = id;
+            this.fragment = fragment;
+        }
+
+        public long getVersion() { return version; }
+        public String getId() { return id; }
+        public boolean isRemoval() { return fragment == null; }
+
+        // The station's JSON; null for a removal
+        public byte[] getJson() {
+            return fragment == null ? null : fragment.json;
+        }
+
+        // "id: <version>", "event: update" or "event: remove", then the data line
+        synchronized byte[] toEvent() {
+            if (event == null) {
+                String data = fragment == null
+                        ? "{\"id\":" + new JsonPrimitive(id) + "}"
+                        : new String(fragment.json, StandardCharsets.UTF_8);
+                event = ("id: " + version + "\nevent: " + (fragment == null ? "remove" : "update")
+                        + "\ndata: " + data + "\n\n").getBytes(StandardCharsets.UTF_8);
+            }
+            return event;
+        }
+    }
+
+    // {"version":v,"updated":[...],"removed":[...]} with each station's latest change only
+    public static byte[] encodeDelta(long version, List<Change> changes) {
+        Map<String, Change> latest = new LinkedHashMap<>();
+        for (Change change : changes) {
+            latest.remove(change.id);
+            latest.put(change.id, change);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StringBuilder removed = new StringBuilder();
+        write(out, "{\"version\":" + version + ",\"updated\":[");
+        boolean first = true;
+        for (Change change : latest.values()) {
+            if (change.fragment == null) {
+                removed.append(removed.length() == 0 ? "" : ",").append(new JsonPrimitive(change.id));
+                continue;
+            }
+            if (!first) {
+                out.write(',');
+            }
+            out.write(change.fragment.json, 0, change.fragment.json.length);
+            first = false;
+        }
+        write(out, "],\"removed\":[" + removed + "]}");
+        return out.toByteArray();
+    }
+
+    private static void write(ByteArrayOutputStream out, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private final Change[] ring;
+    private int start; // Index of the oldest change
+    private int count;
+    private long floor; // Changes at or before this version may be missing
+    private long latest;
+    private List<Runnable> waiters = new ArrayList<>();
+
+    // Keeps up to capacity changes. Changes at or before floor, such as stations loaded at startup,
+    // are not in the log.
+    public ChangeLog(int capacity, long floor) {
+        this.ring = new Change[Math.max(1, capacity)];
+        this.floor = floor;
+        this.latest = floor;
+    }
+
+    // Called by the apply thread. Waiters are woken outside the lock.
+    public void append(long version, String id, FeedCache.Fragment fragment) {
+        List<Runnable> woken;
+        synchronized (this) {
+            Change change = new Change(version, id, fragment);
+            if (count == ring.length) {
+                floor = ring[start].version;
+                ring[start] = change;
+                start = (start + 1) % ring.length;
+            } else {
+                ring[(start + count) % ring.length] = change;
+                count++;
+            }
+            latest = version;
+            if (waiters.isEmpty()) {
+                return;
+            }
+            woken = waiters;
+            waiters = new ArrayList<>();
+        }
+        for (Runnable waiter : woken) {
+            waiter.run();
+        }
+    }
+
+    public synchronized long getLatestVersion() {
+        return latest;
+    }
+
+    // True if the log can say what changed after the version: it is not older than the oldest change
+    // kept, and not newer than the latest (e.g. a version from before a restart)
+    public synchronized boolean covers(long version) {
+        return version >= floor && version <= latest;
+    }
+
+    // The changes after the version, oldest first, or null if the log does not cover it
+    public synchronized List<Change> since(long version) {
+        if (!covers(version)) {
+            return null;
+        }
+        // Versions grow along the ring, so the first newer change can be found by binary search
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (ring[(start + mid) % ring.length].version <= version) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        List<Change> changes = new ArrayList<>(count - low);
+        for (int i = low; i < count; i++) {
+            changes.add(ring[(start + i) % ring.length]);
+        }
+        return changes;
+    }
+
+    // Runs the waiter once a change after the version is logged, straight away if there already is
+    // one. Waiters run on the apply thread and must hand real work elsewhere.
+    public void whenChangedAfter(long version, Runnable waiter) {
+        synchronized (this) {
+            if (latest <= version) {
+                waiters.add(waiter);
+                return;
+            }
+        }
+        waiter.run();
+    }
+
+    // Forgets a waiter that has not run yet, e.g. when its long-poll times out. False if it already ran.
+    public synchronized boolean cancel(Runnable waiter) {
+        return waiters.remove(waiter);
+    }
+}
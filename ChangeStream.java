@@ -0,0 +1,98 @@
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// One server-sent event subscriber (GET /events). Each change after the subscriber's cursor goes out
+// as an event whose id is its version, so a reconnecting EventSource resumes with Last-Event-ID.
+// A subscriber that falls behind the change log gets a reset event and the stream ends. While nothing
+// changes, a comment is sent now and then so idle connections are not dropped on the way.
+public class ChangeStream implements HttpResponse.LiveStream {
+    private static final int MAX_EVENTS_PER_PART = 256;
+    private static final byte[] KEEP_ALIVE = ": keep-alive\n\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] RESET = "event: reset\ndata: {}\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private final ChangeLog log;
+    private final ScheduledExecutorService timer;
+    private final long keepAliveInterval;
+    private long cursor;
+    private long lastSent = System.currentTimeMillis();
+    private boolean finished;
+    private volatile boolean closed;
+
+    public ChangeStream(ChangeLog log, long cursor, ScheduledExecutorService timer, long keepAliveInterval) {
+        this.log = log;
+        this.cursor = cursor;
+        this.timer = timer;
+        this.keepAliveInterval = keepAliveInterval;
+    }
+
+    @Override
+    public synchronized byte[] poll() {
+        if (finished || closed) {
+            return null;
+        }
+        List<ChangeLog.Change> changes = log.since(cursor);
+        if (changes == null) {
+            finished = true;
+            return RESET;
+        }
+        long now = System.currentTimeMillis();
+        if (!changes.isEmpty()) {
+            // Events are encoded once per change and shared, so a part is only a concatenation
+            int count = Math.min(changes.size(), MAX_EVENTS_PER_PART);
+            int size = 0;
+            for (int i = 0; i < count; i++) {
+                size += changes.get(i).toEvent().length;
+            }
+            byte[] part = new byte[size];
+            int position = 0;
+            for (int i = 0; i < count; i++) {
+                byte[] event = changes.get(i).toEvent();
+                System.arraycopy(event, 0, part, position, event.length);
+                position += event.length;
+            }
+            cursor = changes.get(count - 1).getVersion();
+            lastSent = now;
+            return part;
+        }
+        if (now - lastSent >= keepAliveInterval) {
+            lastSent = now;
+            return KEEP_ALIVE;
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized boolean isFinished() {
+        return finished || closed;
+    }
+
+    // Ready on the next change or when a keep-alive is due, whichever comes first
+    @Override
+    public void onReady(Runnable listener) {
+        long after;
+        long delay;
+        synchronized (this) {
+            after = cursor;
+            delay = Math.max(0, keepAliveInterval - (System.currentTimeMillis() - lastSent));
+        }
+        AtomicBoolean fired = new AtomicBoolean();
+        Runnable fire = () -> {
+            if (fired.compareAndSet(false, true)) {
+                listener.run();
+            }
+        };
+        timer.schedule(() -> {
+            log.cancel(fire);
+            fire.run();
+        }, delay, TimeUnit.MILLISECONDS);
+        log.whenChangedAfter(after, fire);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+}
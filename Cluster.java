@@ -0,0 +1,183 @@
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Cluster mode: stations are partitioned across nodes by a consistent hash of their id (see
+// ClusterRing). Holds this node's view of the membership and talks to the other nodes. Requests
+// between nodes carry the Cluster-Forwarded header, so the receiving node answers from its own shard
+// instead of routing the request again.
+public class Cluster {
+    public static final String FORWARDED = "Cluster-Forwarded";
+    private static final int TIMEOUT = 10000;
+    private static final byte[] OPEN = "[\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CLOSE = "]".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] COMMA = ",".getBytes(StandardCharsets.UTF_8);
+
+    // Another node could not be reached or did not answer as expected
+    public static class NodeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public NodeException(String node, String message, Throwable cause) {
+            super("Node " + node + " failed: " + message, cause);
+        }
+    }
+
+    private final String self;
+    private volatile ClusterRing ring;
+    // Idle connections to each node; a connection is used by one request at a time
+    private final Map<String, Queue<HttpClientConnection>> idle = new ConcurrentHashMap<>();
+    private final ExecutorService requests = Executors.newCachedThreadPool(AggregationServer.namedThreads("cluster"));
+
+    // self is this node's address as the others reach it; it is always a member
+    public Cluster(String self, Collection<String> members) {
+        this.self = self;
+        this.ring = ringOf(members);
+    }
+
+    // host:port, without a scheme
+    public static String normalize(String address) {
+        String trimmed = address.trim();
+        return trimmed.startsWith("http://") ? trimmed.substring(7) : trimmed;
+    }
+
+    public String getSelf() {
+        return self;
+    }
+
+    public List<String> getNodes() {
+        return ring.getNodes();
+    }
+
+    public String ownerOf(String id) {
+        return ring.ownerOf(id);
+    }
+
+    public boolean isLocal(String id) {
+        return self.equals(ring.ownerOf(id));
+    }
+
+    // Every member but this node
+    public List<String> getPeers() {
+        List<String> peers = new ArrayList<>(ring.getNodes());
+        peers.remove(self);
+        return peers;
+    }
+
+    // Replaces the membership. Returns false if it is unchanged.
+    public synchronized boolean setMembers(Collection<String> members) {
+        ClusterRing updated = ringOf(members);
+        if (updated.getNodes().equals(ring.getNodes())) {
+            return false;
+        }
+        ring = updated;
+        return true;
+    }
+
+    private ClusterRing ringOf(Collection<String> members) {
+        List<String> nodes = new ArrayList<>();
+        for (String member : members) {
+            nodes.add(normalize(member));
+        }
+        if (!nodes.contains(self)) {
+            nodes.add(self);
+        }
+        return new ClusterRing(nodes);
+    }
+
+    // Sends a request to another node on a pooled connection and marks it as forwarded
+    public HttpClientConnection.Response send(String node, String method, String target,
+                                              Map<String, String> headers, byte[] body) throws NodeException {
+        Queue<HttpClientConnection> pool = idle.computeIfAbsent(node, key -> new ConcurrentLinkedQueue<>());
+        HttpClientConnection connection = pool.poll();
+        if (connection == null) {
+            try {
+                connection = new HttpClientConnection(node, TIMEOUT);
+            } catch (URISyntaxException e) {
+                throw new NodeException(node, "invalid address", e);
+            }
+        }
+        Map<String, String> marked = new LinkedHashMap<>(headers);
+        marked.put(FORWARDED, self);
+        try {
+            HttpClientConnection.Response response = connection.send(method, target, marked, body);
+            if (connection.isOpen()) {
+                pool.add(connection);
+            }
+            return response;
+        } catch (IOException e) {
+            connection.close();
+            throw new NodeException(node, e.getMessage(), e);
+        }
+    }
+
+    // The same, on the cluster's own threads, so requests to several nodes run in parallel
+    public CompletableFuture<HttpClientConnection.Response> sendAsync(String node, String method, String target,
+                                                                      Map<String, String> headers, byte[] body) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return send(node, method, target, headers, body);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, requests);
+    }
+
+    // The stations of a feed body without its framing: the inside of a JSON array, or the station
+    // records of a binary message. A binary message must have been sent without a dictionary, as
+    // streamed feeds are.
+    public static byte[] feedContent(byte[] body, boolean binary) {
+        if (binary) {
+            int start = BinaryWeatherFormat.header().length;
+            int end = body.length - BinaryWeatherFormat.trailer().length;
+            return end > start ? Arrays.copyOfRange(body, start, end) : new byte[0];
+        }
+        int start = 0;
+        while (start < body.length && body[start] != '[') {
+            start++;
+        }
+        int end = body.length - 1;
+        while (end > start && body[end] != ']') {
+            end--;
+        }
+        // Whitespace alone means an empty array
+        for (int i = start + 1; i < end; i++) {
+            if (body[i] != ' ' && body[i] != '\n' && body[i] != '\r' && body[i] != '\t') {
+                return Arrays.copyOfRange(body, start + 1, end);
+            }
+        }
+        return new byte[0];
+    }
+
+    // One feed from the stations of every shard. Each part is one station or a run of them, as
+    // returned by feedContent; empty parts are skipped.
+    public static List<byte[]> mergeFeeds(List<byte[]> contents, boolean binary) {
+        List<byte[]> parts = new ArrayList<>(contents.size() * 2 + 2);
+        parts.add(binary ? BinaryWeatherFormat.header() : OPEN);
+        boolean first = true;
+        for (byte[] content : contents) {
+            if (content.length == 0) {
+                continue;
+            }
+            if (!binary && !first) {
+                parts.add(COMMA);
+            }
+            parts.add(content);
+            first = false;
+        }
+        parts.add(binary ? BinaryWeatherFormat.trailer() : CLOSE);
+        return parts;
+    }
+}
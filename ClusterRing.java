@@ -0,0 +1,69 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+// Consistent hash ring placing station ids on cluster nodes. Each node sits at VIRTUAL_NODES points,
+// so stations spread evenly and a joining node takes a small share from every other node instead of
+// half of one node's. A station belongs to the first node point at or after its own hash. Every node
+// builds the same ring from the same member list.
+public class ClusterRing {
+    private static final int VIRTUAL_NODES = 128;
+
+    private final List<String> nodes;
+    private final long[] points; // Sorted hashes of the virtual nodes
+    private final String[] owners; // Node at each point
+
+    public ClusterRing(Collection<String> members) {
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(new TreeSet<>(members)));
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("A cluster needs at least one node");
+        }
+        long[][] placed = new long[nodes.size() * VIRTUAL_NODES][];
+        int count = 0;
+        for (int node = 0; node < nodes.size(); node++) {
+            for (int replica = 0; replica < VIRTUAL_NODES; replica++) {
+                placed[count++] = new long[] {hash(nodes.get(node) + "#" + replica), node};
+            }
+        }
+        Arrays.sort(placed, (a, b) -> Long.compare(a[0], b[0]));
+        points = new long[count];
+        owners = new String[count];
+        for (int i = 0; i < count; i++) {
+            points[i] = placed[i][0];
+            owners[i] = nodes.get((int) placed[i][1]);
+        }
+    }
+
+    // Members in a fixed order
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    public String ownerOf(String id) {
+        int index = Arrays.binarySearch(points, hash(id));
+        if (index < 0) {
+            index = -index - 1; // First point after the hash
+        }
+        return owners[index == points.length ? 0 : index];
+    }
+
+    // 64-bit FNV-1a with a final mix, so similar ids such as IDS60901 and IDS60902 land far apart.
+    // Has to stay the same across versions, or nodes would disagree about owners.
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
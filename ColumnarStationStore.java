@@ -0,0 +1,217 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Station table stored column-wise (--store=columnar). Each station occupies one slot across a set of
+// primitive arrays instead of being a WeatherData object with a boxed timestamp in two hash maps.
+// Low-cardinality strings (state, time zone, cloud, wind direction, local time) are dictionary-encoded
+// as int codes, and ids map to slots through a SlotIndex, so a million stations need no per-station
+// map entries and few per-station objects. WeatherData is built only when a caller asks for a station.
+// Freed slots are reused before the columns grow. Like every store it is used by one thread at a time.
+public class ColumnarStationStore implements StationStore {
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int NULL_CODE = -1;
+
+    // Interns a string column's distinct values. Codes are never reused, which is fine for columns
+    // with a handful of values; localDateTime has at most one per half hour of the day.
+    private static final class Dictionary {
+        private final Map<String, Integer> codes = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+
+        int encode(String value) {
+            if (value == null) {
+                return NULL_CODE;
+            }
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = values.size();
+                codes.put(value, code);
+                values.add(value);
+            }
+            return code;
+        }
+
+        String decode(int code) {
+            return code == NULL_CODE ? null : values.get(code);
+        }
+    }
+
+    private final Dictionary states = new Dictionary();
+    private final Dictionary timeZones = new Dictionary();
+    private final Dictionary clouds = new Dictionary();
+    private final Dictionary windDirs = new Dictionary();
+    private final Dictionary localDateTimes = new Dictionary();
+
+    private final SlotIndex slots = new SlotIndex();
+
+    // Columns, indexed by slot
+    private String[] names;
+    private String[] localDateTimeFulls;
+    private int[] stateCodes;
+    private int[] timeZoneCodes;
+    private int[] cloudCodes;
+    private int[] windDirCodes;
+    private int[] localDateTimeCodes;
+    private double[] lats;
+    private double[] lons;
+    private double[] airTemps;
+    private double[] apparentTemps;
+    private double[] dewPoints;
+    private double[] pressures;
+    private int[] relHums;
+    private int[] windSpeedsKmh;
+    private int[] windSpeedsKt;
+    private long[] timestamps;
+
+    public ColumnarStationStore() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        names = new String[capacity];
+        localDateTimeFulls = new String[capacity];
+        stateCodes = new int[capacity];
+        timeZoneCodes = new int[capacity];
+        cloudCodes = new int[capacity];
+        windDirCodes = new int[capacity];
+        localDateTimeCodes = new int[capacity];
+        lats = new double[capacity];
+        lons = new double[capacity];
+        airTemps = new double[capacity];
+        apparentTemps = new double[capacity];
+        dewPoints = new double[capacity];
+        pressures = new double[capacity];
+        relHums = new int[capacity];
+        windSpeedsKmh = new int[capacity];
+        windSpeedsKt = new int[capacity];
+        timestamps = new long[capacity];
+    }
+
+    private void growColumns() {
+        int capacity = names.length * 2;
+        names = Arrays.copyOf(names, capacity);
+        localDateTimeFulls = Arrays.copyOf(localDateTimeFulls, capacity);
+        stateCodes = Arrays.copyOf(stateCodes, capacity);
+        timeZoneCodes = Arrays.copyOf(timeZoneCodes, capacity);
+        cloudCodes = Arrays.copyOf(cloudCodes, capacity);
+        windDirCodes = Arrays.copyOf(windDirCodes, capacity);
+        localDateTimeCodes = Arrays.copyOf(localDateTimeCodes, capacity);
+        lats = Arrays.copyOf(lats, capacity);
+        lons = Arrays.copyOf(lons, capacity);
+        airTemps = Arrays.copyOf(airTemps, capacity);
+        apparentTemps = Arrays.copyOf(apparentTemps, capacity);
+        dewPoints = Arrays.copyOf(dewPoints, capacity);
+        pressures = Arrays.copyOf(pressures, capacity);
+        relHums = Arrays.copyOf(relHums, capacity);
+        windSpeedsKmh = Arrays.copyOf(windSpeedsKmh, capacity);
+        windSpeedsKt = Arrays.copyOf(windSpeedsKt, capacity);
+        timestamps = Arrays.copyOf(timestamps, capacity);
+    }
+
+    @Override
+    public boolean put(WeatherData data, long timestamp) {
+        int slot = slots.slotOf(data.getId());
+        boolean created = slot < 0;
+        if (created) {
+            slot = slots.add(data.getId());
+            if (slot == names.length) {
+                growColumns();
+            }
+        }
+        names[slot] = data.getName();
+        localDateTimeFulls[slot] = data.getLocalDateTimeFull();
+        stateCodes[slot] = states.encode(data.getState());
+        timeZoneCodes[slot] = timeZones.encode(data.getTimeZone());
+        cloudCodes[slot] = clouds.encode(data.getCloud());
+        windDirCodes[slot] = windDirs.encode(data.getWindDir());
+        localDateTimeCodes[slot] = localDateTimes.encode(data.getLocalDateTime());
+        lats[slot] = data.getLat();
+        lons[slot] = data.getLon();
+        airTemps[slot] = data.getAirTemp();
+        apparentTemps[slot] = data.getApparentTemp();
+        dewPoints[slot] = data.getDewPoint();
+        pressures[slot] = data.getPressure();
+        relHums[slot] = data.getRelHum();
+        windSpeedsKmh[slot] = data.getWindSpeedKmh();
+        windSpeedsKt[slot] = data.getWindSpeedKt();
+        timestamps[slot] = timestamp;
+        return created;
+    }
+
+    @Override
+    public WeatherData get(String id) {
+        int slot = slots.slotOf(id);
+        return slot < 0 ? null : materialize(slot);
+    }
+
+    private WeatherData materialize(int slot) {
+        WeatherData data = new WeatherData();
+        data.setId(slots.idAt(slot));
+        data.setName(names[slot]);
+        data.setState(states.decode(stateCodes[slot]));
+        data.setTimeZone(timeZones.decode(timeZoneCodes[slot]));
+        data.setLat(lats[slot]);
+        data.setLon(lons[slot]);
+        data.setLocalDateTime(localDateTimes.decode(localDateTimeCodes[slot]));
+        data.setLocalDateTimeFull(localDateTimeFulls[slot]);
+        data.setAirTemp(airTemps[slot]);
+        data.setApparentTemp(apparentTemps[slot]);
+        data.setCloud(clouds.decode(cloudCodes[slot]));
+        data.setDewPoint(dewPoints[slot]);
+        data.setPressure(pressures[slot]);
+        data.setRelHum(relHums[slot]);
+        data.setWindDir(windDirs.decode(windDirCodes[slot]));
+        data.setWindSpdKmh(windSpeedsKmh[slot]);
+        data.setWindSpdKt(windSpeedsKt[slot]);
+        return data;
+    }
+
+    @Override
+    public boolean contains(String id) {
+        return slots.slotOf(id) >= 0;
+    }
+
+    @Override
+    public long getTimestamp(String id) {
+        int slot = slots.slotOf(id);
+        return slot < 0 ? -1 : timestamps[slot];
+    }
+
+    @Override
+    public boolean touch(String id, long timestamp) {
+        int slot = slots.slotOf(id);
+        if (slot < 0) {
+            return false;
+        }
+        timestamps[slot] = timestamp;
+        return true;
+    }
+
+    @Override
+    public boolean remove(String id) {
+        int slot = slots.remove(id);
+        if (slot < 0) {
+            return false;
+        }
+        // Drop references so the strings can be collected; the primitives are overwritten on reuse
+        names[slot] = null;
+        localDateTimeFulls[slot] = null;
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return slots.size();
+    }
+
+    @Override
+    public void forEach(Visitor visitor) {
+        for (int slot = 0; slot < slots.slotLimit(); slot++) {
+            if (slots.idAt(slot) != null) {
+                visitor.visit(materialize(slot), timestamps[slot]);
+            }
+        }
+    }
+}
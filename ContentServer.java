@@ -1,44 +1,200 @@
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
 import com.google.gson.Gson;
-import com.google.gson.JsonSyntaxException;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
 
 public class ContentServer {
-    private static LamportClock lamportClock = new LamportClock();  // Assuming LamportClock is defined elsewhere
+    private static final LamportClock lamportClock = new LamportClock();
+
+    private static final int DEFAULT_BATCH_SIZE = 500;
+    private static final int DEFAULT_HEARTBEAT_INTERVAL = 10000; // A third of the server's expiry time
+    private static final int GZIP_THRESHOLD = 8192; // Bodies at least this big are sent gzipped
+    private static final int MAX_ATTEMPTS = 5; // Tries per upload while the server is shedding load
+    private static final long MIN_BACKOFF = 500;
+    private static final Gson gson = new Gson();
 
     public static void main(String[] args) {
         if (args.length < 2) {
-            System.out.println("Usage: java ContentServer <server_url> <file_path>");
+            System.out.println("Usage: java ContentServer <server_url>[,<server_url>...] <file_path>... [--batch-size=N] [--watch] [--heartbeat-interval=ms] [--format=json|binary]");
             return;
         }
 
         String serverUrl = args[0];
-        String filePath = args[1];
+        List<String> filePaths = new ArrayList<>();
+        int batchSize = DEFAULT_BATCH_SIZE;
+        boolean watch = false;
+        long heartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL;
+        boolean binary = false;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith("--batch-size=")) {
+                batchSize = Math.max(1, Integer.parseInt(args[i].substring("--batch-size=".length())));
+            } else if (args[i].equals("--watch")) {
+                watch = true;
+            } else if (args[i].startsWith("--heartbeat-interval=")) {
+                heartbeatInterval = Long.parseLong(args[i].substring("--heartbeat-interval=".length()));
+            } else if (args[i].startsWith("--format=")) {
+                String format = args[i].substring("--format=".length());
+                if (!format.equals("json") && !format.equals("binary")) {
+                    System.out.println("Unknown format: " + format);
+                    return;
+                }
+                binary = format.equals("binary");
+            } else if (args[i].startsWith("--")) {
+                System.out.println("Unknown option: " + args[i]);
+                return;
+            } else {
+                filePaths.add(args[i]);
+            }
+        }
+        if (filePaths.isEmpty()) {
+            System.out.println("Error: No input file given.");
+            return;
+        }
 
+        HttpClientConnection connection;
         try {
-            // Convert the file to JSON
-            String json = convertTextFileToJson(filePath);
-            if (json == null) {
-                System.out.println("Error: Missing 'id' field in input file. Aborting.");
-                return;
+            connection = new HttpClientConnection(serverUrl, 30000); // 30 second timeout
+        } catch (URISyntaxException e) {
+            System.out.println("Invalid server URL: " + e.getMessage());
+            return;
+        }
+
+        if (watch) {
+            new ContentServerDaemon(connection, filePaths, batchSize, heartbeatInterval, binary).run();
+            return;
+        }
+
+        // Records are read one at a time and sent in batches, so a file is never held in memory whole
+        int sent = 0;
+        for (String filePath : filePaths) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(filePath))) {
+                List<WeatherData> batch = new ArrayList<>(Math.min(batchSize, 1024));
+                WeatherData weatherData;
+                while ((weatherData = readRecord(reader)) != null) {
+                    // Check if 'id' is missing
+                    if (weatherData.getId() == null) {
+                        System.out.println("Error: Missing 'id' field in a record of " + filePath + ". Skipping it.");
+                        continue;
+                    }
+                    batch.add(weatherData);
+                    if (batch.size() == batchSize) {
+                        sendBatch(connection, batch, binary);
+                        sent += batch.size();
+                        batch.clear();
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    sendBatch(connection, batch, binary);
+                    sent += batch.size();
+                }
+            } catch (IOException e) {
+                System.out.println("Error reading the file: " + e.getMessage());
+            } catch (NumberFormatException e) {
+                System.out.println("Error parsing a numeric field: " + e.getMessage());
             }
+        }
+        connection.close();
+        if (sent == 0) {
+            System.out.println("Error: No record with an 'id' field in input file. Aborting.");
+        }
+    }
 
-            // Send the JSON data to the server
-            sendPutRequest(serverUrl, json);
-        } catch (IOException e) {
-            System.out.println("Error reading the file: " + e.getMessage());
-        } catch (JsonSyntaxException e) {
-            System.out.println("Error parsing weather data from JSON: " + e.getMessage());
+    // A single station goes as a plain object, several as a JSON array the server applies atomically.
+    // In the binary format both are one message.
+    private static void sendBatch(HttpClientConnection connection, List<WeatherData> batch, boolean binary) {
+        HttpClientConnection.Response response = binary
+                ? sendPutRequest(connection, BinaryWeatherFormat.encode(batch), BinaryWeatherFormat.CONTENT_TYPE)
+                : sendPutRequest(connection, toJson(batch));
+        // The reply carried the server's clock and the send merged it, so the stations resent now
+        // order after the update that beat them. A new process starts its clock at zero.
+        List<WeatherData> stale = new ArrayList<>();
+        for (int i : staleStations(response, batch.size())) {
+            stale.add(batch.get(i));
+        }
+        if (!stale.isEmpty()) {
+            System.out.println("Resending " + stale.size() + " stale station(s) with the server's clock");
+            if (binary) {
+                sendPutRequest(connection, BinaryWeatherFormat.encode(stale), BinaryWeatherFormat.CONTENT_TYPE);
+            } else {
+                sendPutRequest(connection, toJson(stale));
+            }
         }
     }
 
-    // Method to convert the text file to a JSON string
+    // Positions of the stations the server rejected as older than ones it already applied: a single
+    // PUT answered 409, or the batch results with status 409
+    static List<Integer> staleStations(HttpClientConnection.Response response, int count) {
+        List<Integer> stale = new ArrayList<>();
+        if (response == null) {
+            return stale;
+        }
+        if (count == 1) {
+            if (response.getStatus() == 409) {
+                stale.add(0);
+            }
+            return stale;
+        }
+        if (response.getStatus() == 200 && response.getBody().length > 0) {
+            JsonArray results = JsonParser.parseString(response.getBodyAsString()).getAsJsonArray();
+            for (int i = 0; i < results.size() && i < count; i++) {
+                JsonElement status = results.get(i).getAsJsonObject().get("status");
+                if (status != null && status.getAsInt() == 409) {
+                    stale.add(i);
+                }
+            }
+        }
+        return stale;
+    }
+
+    static String toJson(List<WeatherData> batch) {
+        return batch.size() == 1 ? gson.toJson(batch.get(0)) : gson.toJson(batch);
+    }
+
+    // Method to convert the text file to a JSON string; only the first record of a multi-station
+    // file is converted
     public static String convertTextFileToJson(String fileName) throws IOException {
-        BufferedReader reader = new BufferedReader(new FileReader(fileName));
-        WeatherData weatherData = new WeatherData();
+        WeatherData weatherData;
+        try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
+            weatherData = readRecord(reader);
+        }
+
+        // Check if 'id' is missing
+        if (weatherData == null || weatherData.getId() == null) {
+            return null;
+        }
+
+        // Convert the WeatherData object to JSON
+        return gson.toJson(weatherData);
+    }
+
+    // Reads the next record, a run of key:value lines ended by a blank line or the end of the file.
+    // Returns null when no records are left.
+    static WeatherData readRecord(BufferedReader reader) throws IOException {
+        WeatherData weatherData = null;
         String line;
 
         while ((line = reader.readLine()) != null) {
+            if (line.trim().isEmpty()) {
+                if (weatherData != null) {
+                    break;
+                }
+                continue; // Blank lines before a record
+            }
+            if (weatherData == null) {
+                weatherData = new WeatherData();
+            }
             String[] parts = line.split(":", 2); // Split only on the first ':'
             if (parts.length == 2) {
                 String key = parts[0].trim();
@@ -103,76 +259,100 @@ public class ContentServer {
                 }
             }
         }
-        reader.close();
+        return weatherData;
+    }
 
-        // Check if 'id' is missing
-        if (weatherData.getId() == null) {
-            return null;
-        }
- 
-        // Convert the WeatherData object to JSON
-        Gson gson = new Gson();
-        return gson.toJson(weatherData);
+    // Method to send a PUT request over the (reused) connection and print the response
+    static HttpClientConnection.Response sendPutRequest(HttpClientConnection connection, String jsonData) {
+        return sendPutRequest(connection, jsonData.getBytes(StandardCharsets.UTF_8), "application/json");
     }
 
-    // Method to send a PUT request using a socket connection
-    private static void sendPutRequest(String serverUrl, String jsonData) {
-        Socket socket = null;
+    static HttpClientConnection.Response sendPutRequest(HttpClientConnection connection, byte[] body, String contentType) {
         try {
-            // Parse the server URL
-            URI uri = new URI(serverUrl);
-            String host = uri.getHost();
-            int port = uri.getPort() == -1 ? 80 : uri.getPort();
-    
-            // Establish a socket connection
-            socket = new Socket(host, port);
-            socket.setSoTimeout(30000); // 30 second timeout
-            
-            OutputStream out = socket.getOutputStream();
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            
-            // Increment Lamport Clock
-            lamportClock.increment();
-            int lamportTime = lamportClock.getClock();
-    
-            // Build the PUT request message
-            String request = String.format("PUT /weather.json HTTP/1.1\r\n" +
-                                         "Host: %s\r\n" +
-                                         "User-Agent: ATOMClient/1/0\r\n" +
-                                         "Content-Type: application/json\r\n" +
-                                         "Lamport-Clock: %d\r\n" +
-                                         "Content-Length: %d\r\n" +
-                                         "\r\n" +
-                                         "%s",
-                                         host,
-                                         lamportTime,
-                                         jsonData.length(),
-                                         jsonData);
-            
-            // Send the PUT request
-            out.write(request.getBytes());
-            out.flush();
-    
-            // Read the response status line
-            String statusLine = in.readLine();
-            System.out.println("Response: " + statusLine);
-    
-            // Read headers
-            while ((request = in.readLine()) != null && !request.isEmpty()) {
-                System.out.println(request);
+            HttpClientConnection.Response response = send(connection, "PUT", "/weather.json", contentType, body);
+            long backoff = MIN_BACKOFF;
+            for (int attempt = 1; attempt < MAX_ATTEMPTS && isBusy(response); attempt++) {
+                long wait = retryDelay(response, backoff);
+                System.out.println("Server busy (" + response.getStatus() + " " + response.getReason()
+                        + "), retrying in " + wait + " ms");
+                Thread.sleep(wait);
+                backoff *= 2;
+                response = send(connection, "PUT", "/weather.json", contentType, body);
+            }
+            System.out.println("Response: HTTP/1.1 " + response.getStatus() + " " + response.getReason());
+            for (Map.Entry<String, String> header : response.getHeaders().entrySet()) {
+                System.out.println(header.getKey() + ": " + header.getValue());
+            }
+            // Batch responses carry a status per station
+            if (response.getBody().length > 0) {
+                System.out.println(response.getBodyAsString());
             }
-    
-        } catch (Exception e) {
+            return response;
+        } catch (IOException e) {
             System.out.println("Error sending PUT request: " + e.getMessage());
-            e.printStackTrace();
-        } finally {
-            if (socket != null) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    // The server shed the request (503) or the client is over its rate (429); worth trying again later
+    static boolean isBusy(HttpClientConnection.Response response) {
+        return response.getStatus() == 503 || response.getStatus() == 429;
+    }
+
+    // Milliseconds to wait before retrying: at least what the response's Retry-After asks for, or half
+    // the backoff if that is longer, plus up to another half of the backoff at random. Clients the
+    // server turned away together then do not all come back together.
+    static long retryDelay(HttpClientConnection.Response response, long backoff) {
+        long retryAfter = 0;
+        String header = response != null ? response.getHeader("Retry-After") : null;
+        if (header != null) {
+            try {
+                retryAfter = Long.parseLong(header.trim()) * 1000;
+            } catch (NumberFormatException e) {
+                // Otherwise an HTTP date
                 try {
-                    socket.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+                    ZonedDateTime at = ZonedDateTime.parse(header.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                    retryAfter = Duration.between(ZonedDateTime.now(), at).toMillis();
+                } catch (DateTimeParseException ignored) {
+                    // Unusable; the backoff alone applies
                 }
             }
         }
+        return Math.max(retryAfter, backoff / 2) + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    // Sends one PUT, ticking the Lamport clock for the send and merging the server's clock from the reply
+    static HttpClientConnection.Response put(HttpClientConnection connection, String jsonData) throws IOException {
+        return send(connection, "PUT", "/weather.json", "application/json", jsonData.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static HttpClientConnection.Response send(HttpClientConnection connection, String method, String target,
+                                              String contentType, byte[] body) throws IOException {
+        return send(connection, lamportClock, method, target, contentType, body);
+    }
+
+    // As above with a clock of the caller's, for several simulated content servers in one process
+    static HttpClientConnection.Response send(HttpClientConnection connection, LamportClock clock, String method,
+                                              String target, String contentType, byte[] body) throws IOException {
+        // Sending is an event; the request carries exactly the timestamp it was assigned
+        long timestamp = clock.tick();
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Content-Type", contentType);
+        headers.put("Lamport-Clock", String.valueOf(timestamp));
+        if (body != null && body.length >= GZIP_THRESHOLD) {
+            // Batches of readings compress several times over; single stations are not worth it
+            headers.put("Content-Encoding", HttpCompression.GZIP);
+            body = HttpCompression.compress(body, HttpCompression.GZIP);
+        }
+
+        HttpClientConnection.Response response = connection.send(method, target, headers, body);
+        String responseClock = response.getHeader("Lamport-Clock");
+        if (responseClock != null) {
+            clock.receive(Long.parseLong(responseClock));
+        }
+        return response;
     }
 }
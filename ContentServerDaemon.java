@@ -0,0 +1,317 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+// Long-running content server (ContentServer --watch). Watches the input files, uploads only the
+// stations whose fields changed since the server last acknowledged them, and between changes keeps
+// the stations alive with a heartbeat listing their ids instead of re-uploading them. Everything goes
+// over one connection; while the server is unreachable or shedding load, attempts back off exponentially
+// with jitter, and never retry sooner than the server's Retry-After.
+public class ContentServerDaemon {
+    private static final long SETTLE_TIME = 100; // Editors often write a file in several steps
+    private static final long MIN_BACKOFF = 500;
+    private static final long MAX_BACKOFF = 30000;
+
+    private final Gson gson = new Gson();
+    private final HttpClientConnection connection;
+    private final List<Path> files = new ArrayList<>();
+    private final int batchSize;
+    private final long heartbeatInterval;
+    private final boolean binary;
+
+    // Stations as last read from each file, as JSON; a station in several files takes the later file's
+    private final Map<Path, Map<String, String>> fileStations = new HashMap<>();
+    // Stations as last acknowledged by the server
+    private final Map<String, String> sent = new HashMap<>();
+    private final Set<Path> dirty = new HashSet<>();
+    private long backoff = 0;
+    private String lastError;
+    private HttpClientConnection.Response lastRefusal; // A 503 or 429 from the last failed attempt
+
+    public ContentServerDaemon(HttpClientConnection connection, List<String> filePaths, int batchSize,
+                               long heartbeatInterval, boolean binary) {
+        this.connection = connection;
+        for (String filePath : filePaths) {
+            files.add(Paths.get(filePath).toAbsolutePath().normalize());
+        }
+        this.batchSize = batchSize;
+        this.heartbeatInterval = heartbeatInterval;
+        this.binary = binary;
+        dirty.addAll(files);
+    }
+
+    public void run() {
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            Set<Path> directories = new HashSet<>();
+            for (Path file : files) {
+                if (directories.add(file.getParent())) {
+                    file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.OVERFLOW);
+                }
+            }
+            System.out.println("Watching " + files.size() + " file(s), heartbeat every " + heartbeatInterval + " ms");
+
+            long nextHeartbeat = System.currentTimeMillis() + heartbeatInterval;
+            while (true) {
+                reloadDirtyFiles();
+                boolean ok = uploadChanges();
+                if (ok && System.currentTimeMillis() >= nextHeartbeat) {
+                    ok = heartbeat();
+                    if (ok) {
+                        nextHeartbeat = System.currentTimeMillis() + heartbeatInterval;
+                    }
+                }
+
+                long wait;
+                if (ok) {
+                    backoff = 0;
+                    wait = Math.max(1, nextHeartbeat - System.currentTimeMillis());
+                } else {
+                    backoff = backoff == 0 ? MIN_BACKOFF : Math.min(MAX_BACKOFF, backoff * 2);
+                    wait = ContentServer.retryDelay(lastRefusal, backoff);
+                    System.out.println((lastRefusal != null ? "Server busy (" : "Server unavailable (")
+                            + lastError + "), retrying in " + wait + " ms");
+                    lastRefusal = null;
+                }
+                // Unacknowledged stations stay pending, and heartbeats that ask for a re-upload leave
+                // stations pending too; both are retried on the next pass
+                if (ok && hasPendingChanges()) {
+                    wait = 0;
+                }
+                if (wait > 0) {
+                    waitForChanges(watcher, wait);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Cannot watch the input files: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            connection.close();
+        }
+    }
+
+    // Waits until one of the input files changes or the timeout passes
+    private void waitForChanges(WatchService watcher, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long remaining = timeout;
+        while (dirty.isEmpty() && remaining > 0) {
+            WatchKey key = watcher.poll(remaining, TimeUnit.MILLISECONDS);
+            if (key != null) {
+                Thread.sleep(SETTLE_TIME);
+                do {
+                    collectChanges(key);
+                } while ((key = watcher.poll()) != null);
+            }
+            remaining = deadline - System.currentTimeMillis();
+        }
+    }
+
+    private void collectChanges(WatchKey key) {
+        Path directory = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                dirty.addAll(files);
+                continue;
+            }
+            // Other files in the same directories are ignored
+            Path changed = directory.resolve((Path) event.context());
+            if (files.contains(changed)) {
+                dirty.add(changed);
+            }
+        }
+        key.reset();
+    }
+
+    private void reloadDirtyFiles() {
+        for (Path file : dirty) {
+            Map<String, String> stations = new LinkedHashMap<>();
+            try (BufferedReader reader = new BufferedReader(new FileReader(file.toFile()))) {
+                WeatherData weatherData;
+                while ((weatherData = ContentServer.readRecord(reader)) != null) {
+                    if (weatherData.getId() == null) {
+                        System.out.println("Error: Missing 'id' field in a record of " + file + ". Skipping it.");
+                        continue;
+                    }
+                    stations.put(weatherData.getId(), gson.toJson(weatherData));
+                }
+                fileStations.put(file, stations);
+            } catch (IOException | NumberFormatException e) {
+                // Keep the previous contents; a half-written file is read again on its next change
+                System.out.println("Error reading " + file + ": " + e.getMessage());
+            }
+        }
+        dirty.clear();
+    }
+
+    private Map<String, String> desiredStations() {
+        Map<String, String> desired = new LinkedHashMap<>();
+        for (Path file : files) {
+            Map<String, String> stations = fileStations.get(file);
+            if (stations != null) {
+                desired.putAll(stations);
+            }
+        }
+        return desired;
+    }
+
+    private boolean hasPendingChanges() {
+        for (Map.Entry<String, String> station : desiredStations().entrySet()) {
+            if (!station.getValue().equals(sent.get(station.getKey()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Uploads stations whose JSON differs from what the server acknowledged. Returns false when the
+    // server could not be reached.
+    private boolean uploadChanges() {
+        Map<String, String> desired = desiredStations();
+        // Stations dropped from every file are no longer kept alive and expire on the server
+        sent.keySet().retainAll(desired.keySet());
+
+        List<String> ids = new ArrayList<>();
+        List<String> bodies = new ArrayList<>();
+        for (Map.Entry<String, String> station : desired.entrySet()) {
+            if (!station.getValue().equals(sent.get(station.getKey()))) {
+                ids.add(station.getKey());
+                bodies.add(station.getValue());
+                if (ids.size() == batchSize) {
+                    if (!upload(ids, bodies)) {
+                        return false;
+                    }
+                    ids.clear();
+                    bodies.clear();
+                }
+            }
+        }
+        return ids.isEmpty() || upload(ids, bodies);
+    }
+
+    private boolean upload(List<String> ids, List<String> bodies) {
+        return upload(ids, bodies, true);
+    }
+
+    // Stations rejected as stale are not marked sent, so heartbeats do not keep the server's newer copy
+    // alive on their behalf. The reply carried the server's clock and the send merged it, so with
+    // resendStale they go once more straight away, ordered after the update that beat them.
+    private boolean upload(List<String> ids, List<String> bodies, boolean resendStale) {
+        HttpClientConnection.Response response;
+        try {
+            if (binary) {
+                // Stations are tracked as JSON to detect changes; only the upload is binary
+                List<WeatherData> stations = new ArrayList<>(bodies.size());
+                for (String body : bodies) {
+                    stations.add(gson.fromJson(body, WeatherData.class));
+                }
+                response = ContentServer.send(connection, "PUT", "/weather.json",
+                        BinaryWeatherFormat.CONTENT_TYPE, BinaryWeatherFormat.encode(stations));
+            } else {
+                String json = bodies.size() == 1 ? bodies.get(0) : "[" + String.join(",", bodies) + "]";
+                response = ContentServer.put(connection, json);
+            }
+        } catch (IOException e) {
+            lastError = e.toString();
+            return false;
+        }
+
+        int status = response.getStatus();
+        if (status >= 500 || ContentServer.isBusy(response)) {
+            lastError = status + " " + response.getReason();
+            lastRefusal = ContentServer.isBusy(response) ? response : null;
+            return false;
+        }
+        List<Integer> stale = ContentServer.staleStations(response, ids.size());
+        if (bodies.size() == 1) {
+            if (status != 200 && status != 201) {
+                System.out.println("Station " + ids.get(0) + " rejected: " + status + " " + response.getReason());
+            }
+            // Other rejected stations are not retried until they change
+            if (stale.isEmpty()) {
+                sent.put(ids.get(0), bodies.get(0));
+            }
+        } else if ((status == 200 || status == 400) && response.getBody().length > 0) {
+            // Batch results follow the order of the stations sent
+            JsonArray results = JsonParser.parseString(response.getBodyAsString()).getAsJsonArray();
+            for (int i = 0; i < results.size() && i < ids.size(); i++) {
+                JsonObject result = results.get(i).getAsJsonObject();
+                if (result.has("error")) {
+                    System.out.println("Station " + ids.get(i) + " rejected: " + result.get("error").getAsString());
+                }
+                if (!stale.contains(i)) {
+                    sent.put(ids.get(i), bodies.get(i));
+                }
+            }
+        } else {
+            System.out.println("Upload rejected: " + status + " " + response.getReason());
+            for (int i = 0; i < ids.size(); i++) {
+                sent.put(ids.get(i), bodies.get(i));
+            }
+        }
+        System.out.println("Uploaded " + ids.size() + " changed station(s): " + status + " " + response.getReason());
+        if (resendStale && !stale.isEmpty()) {
+            List<String> staleIds = new ArrayList<>(stale.size());
+            List<String> staleBodies = new ArrayList<>(stale.size());
+            for (int i : stale) {
+                staleIds.add(ids.get(i));
+                staleBodies.add(bodies.get(i));
+            }
+            System.out.println("Resending " + stale.size() + " stale station(s) with the server's clock");
+            return upload(staleIds, staleBodies, false);
+        }
+        return true;
+    }
+
+    // Refreshes every acknowledged station. Stations the server no longer has (it restarted without
+    // them, or they expired) are dropped from the acknowledged set so the next pass re-uploads them.
+    private boolean heartbeat() {
+        if (sent.isEmpty()) {
+            return true;
+        }
+        byte[] body = String.join("\n", sent.keySet()).getBytes(StandardCharsets.UTF_8);
+        HttpClientConnection.Response response;
+        try {
+            response = ContentServer.send(connection, "POST", "/heartbeat", "text/plain", body);
+        } catch (IOException e) {
+            lastError = e.toString();
+            return false;
+        }
+        if (ContentServer.isBusy(response)) {
+            lastError = response.getStatus() + " " + response.getReason();
+            lastRefusal = response;
+            return false;
+        }
+        if (response.getStatus() != 200) {
+            System.out.println("Heartbeat failed: " + response.getStatus() + " " + response.getReason());
+            return response.getStatus() < 500;
+        }
+        JsonObject result = JsonParser.parseString(response.getBodyAsString()).getAsJsonObject();
+        for (JsonElement unknown : result.getAsJsonArray("unknown")) {
+            sent.remove(unknown.getAsString());
+        }
+        return true;
+    }
+}
@@ -0,0 +1,304 @@
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+// Differential check of the two PUT decoders (--json-decoder). Generates station documents, single
+// and batched, with the number forms, escapes, nulls, unknown fields and out-of-range values clients
+// send, NaN and Infinity among them, and damages some of them, then decodes each with both. They must
+// agree: the same stations, or both rejecting with an exception the server answers 400. The one allowed difference is a document
+// that is not strict JSON, which only Gson may accept. Gson also reads true, false and null in any
+// case, even when strict; the damage done to documents never changes their case. Exits with status 1
+// on any disagreement.
+//
+//   java DecoderCheck [--cases=N] [--seed=N]
+public class DecoderCheck {
+    private static final int MAX_REPORTED = 10;
+    private static final String[] STATES = {"SA", "NSW", "VIC", "QLD", "WA", "TAS", "NT", "ACT"};
+    private static final String[] ZONES = {"CST", "EST", "WST"};
+    private static final String[] CLOUDS = {"Clear", "Partly cloudy", "Mostly cloudy", "Cloudy", "Fog"};
+    private static final String[] WIND_DIRS = {"N", "NE", "E", "SE", "S", "SW", "W", "NW", "CALM"};
+    private static final String NAME_CHARS = "abcXYZ 019/-\u00e9\u4e2d";
+    private static final String[] NOT_FINITE = {"NaN", "Infinity", "-Infinity"};
+    private static final String DAMAGE_CHARS = "{}[],:\"\\ 0123456789-+.entfa";
+
+    private final Random random;
+    // Writes NaN and Infinity too, so batches, which are decoded unvalidated, still compare
+    private final Gson gson = new GsonBuilder().serializeSpecialFloatingPointValues().create();
+    private int disagreements;
+
+    DecoderCheck(long seed) {
+        this.random = new Random(seed);
+    }
+
+    public static void main(String[] args) {
+        ServerConfig options = ServerConfig.parse(args);
+        int cases = options.getInt("cases", 20000);
+        long seed = options.getLong("seed", 1);
+        DecoderCheck check = new DecoderCheck(seed);
+        int rejected = 0;
+        for (int i = 0; i < cases; i++) {
+            if (!check.run()) {
+                rejected++;
+            }
+        }
+        JSONParser.setDecoder(JSONParser.Decoder.STREAMING);
+        System.out.println(cases + " documents (seed " + seed + "), " + rejected + " rejected by both decoders, "
+                + check.disagreements + " disagreements");
+        if (check.disagreements > 0) {
+            System.exit(1);
+        }
+    }
+
+    // Decodes one generated document with both decoders. Returns false if both rejected it.
+    private boolean run() {
+        int kind = random.nextInt(4);
+        StringBuilder document = new StringBuilder();
+        if (kind == 0 || kind == 1) {
+            document.append(station());
+        } else if (kind == 2) {
+            document.append('[').append(space());
+            int count = random.nextInt(4);
+            for (int i = 0; i < count; i++) {
+                if (i > 0) {
+                    document.append(space()).append(',').append(space());
+                }
+                document.append(station());
+            }
+            document.append(space()).append(']');
+        } else {
+            int count = 1 + random.nextInt(3);
+            for (int i = 0; i < count; i++) {
+                // One station per line; string values never hold a raw newline
+                document.append(station().replace('\n', ' ')).append('\n');
+            }
+        }
+        String text = random.nextInt(4) == 0 ? damage(document.toString()) : document.toString();
+        boolean batch = kind >= 2;
+        boolean ndjson = kind == 3;
+
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        Outcome streaming = decode(JSONParser.Decoder.STREAMING, body, batch, ndjson);
+        Outcome gson = decode(JSONParser.Decoder.GSON, body, batch, ndjson);
+
+        if (streaming.failure instanceof RuntimeException && !isBadRequest(streaming.failure)) {
+            report(text, "the streaming decoder threw " + streaming.failure);
+        } else if (gson.failure instanceof RuntimeException && !isBadRequest(gson.failure)) {
+            report(text, "Gson threw " + gson.failure);
+        } else if (streaming.json != null && gson.json != null) {
+            if (!streaming.json.equals(gson.json)) {
+                report(text, "decoded differently:\n  streaming " + streaming.json + "\n  gson      " + gson.json);
+            }
+        } else if (streaming.json != null) {
+            report(text, "only the streaming decoder accepted it; Gson: " + gson.failure);
+        } else if (gson.json != null && isStrictJson(text, ndjson)) {
+            report(text, "only Gson accepted it; streaming: " + streaming.failure);
+        }
+        return streaming.json != null || gson.json != null;
+    }
+
+    // The stations decoded, as JSON so they compare field by field, or why the document was rejected
+    private static final class Outcome {
+        String json;
+        Throwable failure;
+    }
+
+    private Outcome decode(JSONParser.Decoder decoder, byte[] body, boolean batch, boolean ndjson) {
+        JSONParser.setDecoder(decoder);
+        Outcome outcome = new Outcome();
+        try {
+            outcome.json = batch
+                    ? gson.toJson(JSONParser.parseWeatherDataBatch(body, ndjson))
+                    : gson.toJson(JSONParser.parseWeatherData(body));
+        } catch (RuntimeException | StackOverflowError e) {
+            outcome.failure = e;
+        }
+        return outcome;
+    }
+
+    // What the server maps to 400 Bad Request
+    private static boolean isBadRequest(Throwable e) {
+        return e instanceof JsonParseException || e instanceof IllegalArgumentException;
+    }
+
+    private static boolean isStrictJson(String text, boolean ndjson) {
+        if (!ndjson) {
+            return isStrictJsonValue(text);
+        }
+        for (String line : text.split("\n")) {
+            if (!line.trim().isEmpty() && !isStrictJsonValue(line)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isStrictJsonValue(String text) {
+        try (JsonReader reader = new JsonReader(new StringReader(text))) {
+            reader.setLenient(false);
+            reader.skipValue();
+            return reader.peek() == JsonToken.END_DOCUMENT;
+        } catch (IOException | IllegalStateException e) {
+            return false;
+        }
+    }
+
+    private void report(String document, String problem) {
+        disagreements++;
+        if (disagreements <= MAX_REPORTED) {
+            System.out.println("Disagreement on " + gson.toJson(document) + ": " + problem);
+        }
+    }
+
+    // One station object with its fields in random order, some missing, null or duplicated, and
+    // unknown fields mixed in
+    private String station() {
+        List<String> members = new ArrayList<>();
+        if (random.nextInt(20) != 0) {
+            members.add(member("id", quoted("IDS" + random.nextInt(100000) + (random.nextInt(10) == 0 ? name() : ""))));
+        }
+        members.add(member("name", random.nextInt(10) == 0 ? "null" : quoted(name())));
+        members.add(member("state", quoted(pick(STATES))));
+        members.add(member("timeZone", quoted(pick(ZONES))));
+        members.add(member("lat", decimal(-95, 95)));
+        members.add(member("lon", decimal(-185, 185)));
+        members.add(member("localDateTime", quoted("15/04:00pm")));
+        members.add(member("localDateTimeFull", quoted("2023071516" + random.nextInt(10) + "000")));
+        members.add(member("airTemp", decimal(-40, 50)));
+        members.add(member("apparentTemp", decimal(-40, 50)));
+        members.add(member("cloud", quoted(pick(CLOUDS))));
+        members.add(member("dewPoint", decimal(-40, 40)));
+        members.add(member("pressure", decimal(-10, 1150)));
+        members.add(member("relHum", integer(-5, 110)));
+        members.add(member("windDir", quoted(pick(WIND_DIRS))));
+        members.add(member("windSpeedKmh", integer(-5, 520)));
+        members.add(member("windSpeedKt", integer(-5, 280)));
+        for (int i = random.nextInt(3); i > 0; i--) {
+            members.add(member("extra" + i, unknownValue(2)));
+        }
+        if (random.nextInt(10) == 0) {
+            members.add(members.get(random.nextInt(members.size())));
+        }
+        for (int i = members.size() - 1; i >= 0; i--) {
+            if (random.nextInt(8) == 0) {
+                members.remove(i);
+            }
+        }
+        Collections.shuffle(members, random);
+
+        StringBuilder object = new StringBuilder("{").append(space());
+        for (int i = 0; i < members.size(); i++) {
+            if (i > 0) {
+                object.append(space()).append(',').append(space());
+            }
+            object.append(members.get(i));
+        }
+        return object.append(space()).append('}').toString();
+    }
+
+    private String member(String name, String value) {
+        return quoted(name) + space() + ':' + space() + value;
+    }
+
+    // A number written the ways JSON allows, sometimes null, quoted, not finite or with more digits than
+    // a double holds
+    private String decimal(int min, int max) {
+        double value = min + random.nextDouble() * (max - min);
+        switch (random.nextInt(13)) {
+            case 0: return "null";
+            case 7: return quoted(pick(NOT_FINITE));
+            case 1: return quoted(String.valueOf(Math.round(value * 10) / 10.0));
+            case 2: return String.format("%.3e", value).replace(",", ".");
+            case 3: return String.format("%.1E", value).replace(",", ".");
+            case 4: return String.valueOf((long) value);
+            case 5: return (value < 0 ? "-" : "") + "0." + Math.abs((long) (value * 1e17)) + "123";
+            case 6: return String.valueOf(value);
+            default: return String.valueOf(Math.round(value * 10) / 10.0);
+        }
+    }
+
+    // An int, sometimes written with a fraction or exponent, quoted, fractional or beyond int range
+    private String integer(int min, int max) {
+        int value = min + random.nextInt(max - min + 1);
+        switch (random.nextInt(14)) {
+            case 0: return "null";
+            case 1: return quoted(String.valueOf(value));
+            case 2: return value + ".0";
+            case 3: return value + ".5";
+            case 4: return value + "e0";
+            case 5: return value + "0000000000";
+            case 6: return "-0";
+            default: return String.valueOf(value);
+        }
+    }
+
+    private String unknownValue(int depth) {
+        switch (random.nextInt(depth > 0 ? 7 : 5)) {
+            case 0: return "true";
+            case 1: return "false";
+            case 2: return "null";
+            case 3: return decimal(-1000, 1000);
+            case 4: return quoted("}]" + name());
+            case 5: return "[" + unknownValue(depth - 1) + "," + space() + unknownValue(depth - 1) + "]";
+            default: return "{" + member("nested", unknownValue(depth - 1)) + "}";
+        }
+    }
+
+    private String name() {
+        StringBuilder name = new StringBuilder();
+        for (int i = random.nextInt(12); i > 0; i--) {
+            name.append(NAME_CHARS.charAt(random.nextInt(NAME_CHARS.length())));
+        }
+        return name.toString();
+    }
+
+    // A JSON string literal, with some characters escaped that need not be
+    private String quoted(String value) {
+        StringBuilder literal = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                literal.append('\\').append(c);
+            } else if (c == '/' && random.nextBoolean()) {
+                literal.append("\\/");
+            } else if (c > 0x7F && random.nextBoolean()) {
+                literal.append(String.format("\\u%04x", (int) c));
+            } else {
+                literal.append(c);
+            }
+        }
+        return literal.append('"').toString();
+    }
+
+    private String space() {
+        switch (random.nextInt(8)) {
+            case 0: return " ";
+            case 1: return "\n\t";
+            case 2: return "\r\n  ";
+            default: return "";
+        }
+    }
+
+    private String pick(String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+
+    // Truncates the document, or deletes, inserts or replaces one character
+    private String damage(String document) {
+        int at = random.nextInt(document.length() + 1);
+        char c = DAMAGE_CHARS.charAt(random.nextInt(DAMAGE_CHARS.length()));
+        switch (random.nextInt(4)) {
+            case 0: return document.substring(0, at);
+            case 1: return at < document.length() ? document.substring(0, at) + document.substring(at + 1) : document;
+            case 2: return document.substring(0, at) + c + document.substring(at);
+            default: return at < document.length() ? document.substring(0, at) + c + document.substring(at + 1) : document;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Pre-encoded GET feed. Each station's JSON and binary forms are encoded once when it changes; the
+// full feed is assembled from those fragments at most once per data version and format, and shared
+// by every reader.
+public class FeedCache {
+    private static final byte[] OPEN = "[\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CLOSE = "]".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] COMMA = ",".getBytes(StandardCharsets.UTF_8);
+
+    // An immutable encoded feed together with the version it was built at. Its compressed forms are
+    // made by the first reader that asks for each coding and kept with the feed, so concurrent readers
+    // of one version share a single compression.
+    public static class Feed {
+        private final long version;
+        private final String etag;
+        private final byte[] bytes;
+        private volatile byte[] gzip;
+        private volatile byte[] deflate;
+
+        Feed(long version, String etag, byte[] bytes) {
+            this.version = version;
+            this.etag = etag;
+            this.bytes = bytes;
+        }
+
+        public long getVersion() { return version; }
+        public String getEtag() { return etag; }
+        public byte[] getBytes() { return bytes; }
+
+        // The feed in a content coding from HttpCompression
+        public byte[] getBytes(String coding) {
+            boolean isDeflate = HttpCompression.DEFLATE.equals(coding);
+            byte[] compressed = isDeflate ? deflate : gzip;
+            if (compressed != null) {
+                return compressed;
+            }
+            synchronized (this) {
+                compressed = isDeflate ? deflate : gzip;
+                if (compressed == null) {
+                    compressed = HttpCompression.compress(bytes, coding);
+                    if (isDeflate) {
+                        deflate = compressed;
+                    } else {
+                        gzip = compressed;
+                    }
+                }
+                return compressed;
+            }
+        }
+    }
+
+    // One station in both formats
+    public static class Fragment {
+        final byte[] json;
+        final byte[] binary;
+
+        Fragment(byte[] json, byte[] binary) {
+            this.json = json;
+            this.binary = binary;
+        }
+    }
+
+    private final Map<String, Fragment> fragments = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong();
+    // Distinguishes versions from different server runs so stale ETags never match after a restart
+    private final String epoch = Long.toHexString(System.currentTimeMillis());
+    private volatile Feed feed;
+    private volatile Feed binaryFeed;
+
+    // Encodes a station's fragments; done on the request thread, before the station reaches the apply pipeline
+    public static Fragment encode(WeatherData data) {
+        return new Fragment(JSONParser.convertToJSON(data).getBytes(StandardCharsets.UTF_8),
+                BinaryWeatherFormat.encodeFragment(data));
+    }
+
+    public void put(String id, Fragment fragment) {
+        fragments.put(id, fragment);
+        version.incrementAndGet();
+    }
+
+    public void remove(String id) {
+        if (fragments.remove(id) != null) {
+            version.incrementAndGet();
+        }
+    }
+
+    public int size() {
+        return fragments.size();
+    }
+
+    // Streams the feed straight from the station fragments without assembling it. Stations changed
+    // while the stream is being written may or may not be included. A streamed binary feed is spliced
+    // from the fragments, so it carries no dictionary.
+    public Iterator<byte[]> streamParts(boolean binary) {
+        if (binary) {
+            return streamBinaryParts();
+        }
+        Iterator<Fragment> stations = fragments.values().iterator();
+        return new Iterator<byte[]>() {
+            private boolean opened;
+            private boolean separate; // Next part is the comma before a station
+            private boolean closed;
+
+            @Override
+            public boolean hasNext() {
+                return !closed;
+            }
+
+            @Override
+            public byte[] next() {
+                if (!opened) {
+                    opened = true;
+                    return OPEN;
+                }
+                if (stations.hasNext()) {
+                    if (separate) {
+                        separate = false;
+                        return COMMA;
+                    }
+                    separate = true;
+                    return stations.next().json;
+                }
+                if (closed) {
+                    throw new NoSuchElementException();
+                }
+                closed = true;
+                return CLOSE;
+            }
+        };
+    }
+
+    private Iterator<byte[]> streamBinaryParts() {
+        Iterator<Fragment> stations = fragments.values().iterator();
+        return new Iterator<byte[]>() {
+            private boolean opened;
+            private boolean closed;
+
+            @Override
+            public boolean hasNext() {
+                return !closed;
+            }
+
+            @Override
+            public byte[] next() {
+                if (!opened) {
+                    opened = true;
+                    return BinaryWeatherFormat.header();
+                }
+                if (stations.hasNext()) {
+                    return stations.next().binary;
+                }
+                if (closed) {
+                    throw new NoSuchElementException();
+                }
+                closed = true;
+                return BinaryWeatherFormat.trailer();
+            }
+        };
+    }
+
+    public long getVersion() {
+        return version.get();
+    }
+
+    public String currentEtag(boolean binary) {
+        return etag(version.get(), binary);
+    }
+
+    // Returns the feed for the current version, rebuilding it if a station changed since the last build
+    public Feed getFeed(boolean binary) {
+        Feed current = binary ? binaryFeed : feed;
+        if (current != null && current.version == version.get()) {
+            return current;
+        }
+        synchronized (this) {
+            long buildVersion = version.get();
+            current = binary ? binaryFeed : feed;
+            if (current != null && current.version == buildVersion) {
+                return current;
+            }
+            Fragment[] parts = fragments.values().toArray(new Fragment[0]);
+            current = new Feed(buildVersion, etag(buildVersion, binary), binary ? assembleBinary(parts) : assemble(parts));
+            if (binary) {
+                binaryFeed = current;
+            } else {
+                feed = current;
+            }
+            return current;
+        }
+    }
+
+    // Encodes the listed stations as a feed, in the given order. Stations no longer present are skipped.
+    public byte[] select(List<String> ids, boolean binary) {
+        List<Fragment> parts = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            Fragment fragment = fragments.get(id);
+            if (fragment != null) {
+                parts.add(fragment);
+            }
+        }
+        Fragment[] selected = parts.toArray(new Fragment[0]);
+        return binary ? assembleBinary(selected) : assemble(selected);
+    }
+
+    // The current stations' encodings, one per station, for splicing into a feed built elsewhere
+    public List<byte[]> fragmentParts(boolean binary) {
+        List<byte[]> parts = new ArrayList<>(fragments.size());
+        for (Fragment fragment : fragments.values()) {
+            parts.add(binary ? fragment.binary : fragment.json);
+        }
+        return parts;
+    }
+
+    // Encodes stations that are not in the cache as a feed, in the given order
+    public static byte[] encodeFeed(List<WeatherData> stations, boolean binary) {
+        if (binary) {
+            BinaryWeatherFormat.Writer writer = new BinaryWeatherFormat.Writer();
+            for (WeatherData data : stations) {
+                writer.write(data);
+            }
+            return writer.toByteArray();
+        }
+        Fragment[] parts = new Fragment[stations.size()];
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = encode(stations.get(i));
+        }
+        return assemble(parts);
+    }
+
+    // Re-encodes the fragments as one message so repeated strings are sent once
+    private static byte[] assembleBinary(Fragment[] parts) {
+        BinaryWeatherFormat.Writer writer = new BinaryWeatherFormat.Writer();
+        for (Fragment part : parts) {
+            writer.write(BinaryWeatherFormat.decodeFragment(part.binary));
+        }
+        return writer.toByteArray();
+    }
+
+    private static byte[] assemble(Fragment[] parts) {
+        // Size first so the feed is copied exactly once
+        int size = OPEN.length + CLOSE.length + Math.max(0, parts.length - 1);
+        for (Fragment part : parts) {
+            size += part.json.length;
+        }
+
+        byte[] bytes = new byte[size];
+        int position = 0;
+        System.arraycopy(OPEN, 0, bytes, position, OPEN.length);
+        position += OPEN.length;
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0) {
+                bytes[position++] = ',';
+            }
+            System.arraycopy(parts[i].json, 0, bytes, position, parts[i].json.length);
+            position += parts[i].json.length;
+        }
+        System.arraycopy(CLOSE, 0, bytes, position, CLOSE.length);
+        return bytes;
+    }
+
+    // The formats of one version are different representations, so they get different ETags
+    private String etag(long version, boolean binary) {
+        return "\"" + epoch + "-" + version + (binary ? "-b" : "") + "\"";
+    }
+}
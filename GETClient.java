@@ -1,73 +1,72 @@
 import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.URI;
-import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
+import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
 public class GETClient {
-    private static LamportClock lamportClock = new LamportClock();
+    private static final LamportClock lamportClock = new LamportClock();
+    private static final int FOLLOW_WAIT = 30; // Seconds the server may hold each follow request
 
     public static void main(String[] args) {
         if (args.length < 1) {
-            System.out.println("Usage: java GETClient <server_url> [station_id]");
+            System.out.println("Usage: java GETClient <server_url>[,<server_url>...] [station_id | query] [--format=json|binary] [--follow]");
             return;
         }
 
         String serverUrl = args[0];
-        String stationId = args.length > 1 ? args[1] : null;
-
-        try {
-            lamportClock.increment(); // Increment Lamport clock before sending request
-
-            // Handle missing "http://" in the server URL
-            if (!serverUrl.startsWith("http://")) {
-                serverUrl = "http://" + serverUrl;
-            }
-
-            // Build the full URI based on whether a station ID is provided
-            URI uri;
-            if (stationId != null) {
-                uri = new URI(serverUrl + "/weather.json?id=" + stationId);
+        String stationId = null;
+        boolean binary = false;
+        boolean follow = false;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith("--format=")) {
+                binary = args[i].equals("--format=binary");
+            } else if (args[i].equals("--follow")) {
+                follow = true;
             } else {
-                uri = new URI(serverUrl + "/weather.json");
+                stationId = args[i];
             }
+        }
 
-            // Create the URL connection
-            URL url = uri.toURL();
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("GET");
-            connection.setRequestProperty("Lamport-Clock", String.valueOf(lamportClock.getClock()));
-            connection.setConnectTimeout(5000); // Connection timeout
-            connection.setReadTimeout(5000);    // Read timeout
-
-            // Check the response code
-            int responseCode = connection.getResponseCode();
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                // Update Lamport clock based on server response
-                String responseClock = connection.getHeaderField("Lamport-Clock");
-                if (responseClock != null) {
-                    lamportClock.update(Integer.parseInt(responseClock));
-                } else {
-                    System.out.println("No Lamport-Clock header in the response.");
-                }
+        // Build the request target based on whether a station ID or a query (e.g. state=SA) is provided
+        String target;
+        if (stationId != null && stationId.contains("=")) {
+            target = "/weather.json?" + stationId;
+        } else if (stationId != null) {
+            target = "/weather.json?id=" + URLEncoder.encode(stationId, StandardCharsets.UTF_8);
+        } else {
+            target = "/weather.json";
+        }
 
-                // Read the JSON response
-                BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-                String inputLine;
-                StringBuilder response = new StringBuilder();
-                while ((inputLine = in.readLine()) != null) {
-                    response.append(inputLine);
-                }
-                in.close();
+        if (follow) {
+            try (HttpClientConnection connection = new HttpClientConnection(serverUrl, (FOLLOW_WAIT + 10) * 1000)) {
+                follow(connection);
+            } catch (Exception e) {
+                System.err.println("An unexpected error occurred: " + e.getMessage());
+            }
+            return;
+        }
 
-                // Parse and display the JSON data in a readable format
-                parseAndDisplayWeatherData(response.toString());
+        // The server URL may omit "http://"
+        try (HttpClientConnection connection = new HttpClientConnection(serverUrl, 5000)) {
+            HttpClientConnection.Response response = fetch(connection, target, binary);
+            if (response == null) {
+                return;
+            }
+            if (BinaryWeatherFormat.matches(response.getHeader("Content-Type"))) {
+                // Shown through the same JSON names as a JSON feed
+                List<WeatherData> stations = BinaryWeatherFormat.decode(response.getBody());
+                displayWeatherData(new Gson().toJsonTree(stations).getAsJsonArray());
             } else {
-                System.out.println("Failed to retrieve data. Server response code: " + responseCode);
+                // Parse and display the JSON data in a readable format
+                parseAndDisplayWeatherData(response.getBodyAsString());
             }
         } catch (IOException e) {
             System.err.println("I/O error occurred: " + e.getMessage());
@@ -76,29 +75,119 @@ public class GETClient {
         }
     }
 
-    // Method to parse and display the JSON weather data in a readable format
-    private static void parseAndDisplayWeatherData(String jsonResponse) {
-        try {
-            JsonArray weatherDataArray = JsonParser.parseString(jsonResponse).getAsJsonArray();
-            
-            if (weatherDataArray.size() == 0) {
-                System.out.println("No weather data available.");
-                return;
-            }
+    // Sends one GET over the connection, which stays open for further requests. Returns the body of a
+    // 200 response, or null after reporting any other status.
+    static String fetch(HttpClientConnection connection, String target) throws IOException {
+        HttpClientConnection.Response response = fetch(connection, target, false);
+        return response == null ? null : response.getBodyAsString();
+    }
+
+    // As above, asking for the binary format if requested. Returns the whole 200 response.
+    static HttpClientConnection.Response fetch(HttpClientConnection connection, String target, boolean binary) throws IOException {
+        HttpClientConnection.Response response = request(connection, lamportClock, target, binary);
 
-            System.out.println("Weather Data:");
-            for (int i = 0; i < weatherDataArray.size(); i++) {
-                JsonObject weatherData = weatherDataArray.get(i).getAsJsonObject();
-                System.out.println("\nStation " + (i + 1) + ":");
-                for (String key : weatherData.keySet()) {
-                    JsonElement value = weatherData.get(key);
-                    if (!value.isJsonNull()) {
-                        System.out.println(key + ": " + value.getAsString());
+        // Check the response code
+        if (response.getStatus() != 200) {
+            System.out.println("Failed to retrieve data. Server response code: " + response.getStatus());
+            return null;
+        }
+        if (response.getHeader("Lamport-Clock") == null) {
+            System.out.println("No Lamport-Clock header in the response.");
+        }
+        return response;
+    }
+
+    // Sends one GET and returns the response whatever its status, merging the server's clock into the
+    // given one. Prints nothing, so several simulated clients can share a process.
+    static HttpClientConnection.Response request(HttpClientConnection connection, LamportClock clock, String target,
+                                                 boolean binary) throws IOException {
+        long timestamp = clock.tick(); // Sending the request is an event
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Lamport-Clock", String.valueOf(timestamp));
+        headers.put("Accept-Encoding", HttpCompression.GZIP); // The connection decompresses the body
+        if (binary) {
+            headers.put("Accept", BinaryWeatherFormat.CONTENT_TYPE);
+        }
+        HttpClientConnection.Response response = connection.send("GET", target, headers, null);
+
+        // Update Lamport clock based on server response
+        String responseClock = response.getHeader("Lamport-Clock");
+        if (responseClock != null) {
+            clock.receive(Long.parseLong(responseClock));
+        }
+        return response;
+    }
+
+    // Prints the full feed, then each change as the server reports it. Every request after the first
+    // is a long-poll for the changes since the last version seen. If the server can no longer say what
+    // changed (410, or it was unreachable and may have restarted) the full feed is fetched again.
+    static void follow(HttpClientConnection connection) throws InterruptedException {
+        long version = -1;
+        while (true) {
+            try {
+                if (version < 0) {
+                    HttpClientConnection.Response response = fetch(connection, "/weather.json", false);
+                    if (response == null) {
+                        Thread.sleep(1000);
+                        continue;
                     }
+                    parseAndDisplayWeatherData(response.getBodyAsString());
+                    version = Long.parseLong(response.getHeader("Feed-Version"));
+                    continue;
+                }
+                HttpClientConnection.Response response =
+                        fetch(connection, "/weather.json?since=" + version + "&wait=" + FOLLOW_WAIT, false);
+                if (response == null) {
+                    version = -1; // Resynchronize from the full feed
+                    continue;
                 }
+                JsonObject changes = JsonParser.parseString(response.getBodyAsString()).getAsJsonObject();
+                displayChanges(changes);
+                version = changes.get("version").getAsLong();
+            } catch (IOException e) {
+                System.err.println("I/O error occurred: " + e.getMessage() + ", retrying");
+                version = -1;
+                Thread.sleep(1000);
             }
+        }
+    }
+
+    private static void displayChanges(JsonObject changes) {
+        JsonArray updated = changes.getAsJsonArray("updated");
+        if (updated.size() > 0) {
+            System.out.println();
+            displayWeatherData(updated);
+        }
+        for (JsonElement id : changes.getAsJsonArray("removed")) {
+            System.out.println("\nRemoved: " + id.getAsString());
+        }
+    }
+
+    // Method to parse and display the JSON weather data in a readable format
+    private static void parseAndDisplayWeatherData(String jsonResponse) {
+        try {
+            displayWeatherData(JsonParser.parseString(jsonResponse).getAsJsonArray());
         } catch (Exception e) {
             System.err.println("Error parsing weather data: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    private static void displayWeatherData(JsonArray weatherDataArray) {
+        if (weatherDataArray.size() == 0) {
+            System.out.println("No weather data available.");
+            return;
+        }
+
+        System.out.println("Weather Data:");
+        for (int i = 0; i < weatherDataArray.size(); i++) {
+            JsonObject weatherData = weatherDataArray.get(i).getAsJsonObject();
+            System.out.println("\nStation " + (i + 1) + ":");
+            for (String key : weatherData.keySet()) {
+                JsonElement value = weatherData.get(key);
+                if (!value.isJsonNull()) {
+                    System.out.println(key + ": " + value.getAsString());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,304 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+// Client side of one HTTP/1.1 connection to the aggregation server, reused for every request while
+// the server keeps it open. A request on a connection the server has meanwhile closed is retried
+// once on a fresh socket, so callers only see errors when the server is actually unreachable.
+// Given several servers, such as a primary and its replicas, requests go to one at a time. When it
+// cannot be reached, or it is a replica refusing the request, the next one is tried, and used from
+// then on.
+public class HttpClientConnection implements Closeable {
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    public static class Response {
+        private final int status;
+        private final String reason;
+        private final Map<String, String> headers;
+        private final byte[] body;
+
+        Response(int status, String reason, Map<String, String> headers, byte[] body) {
+            this.status = status;
+            this.reason = reason;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        public int getStatus() { return status; }
+        public String getReason() { return reason; }
+        public Map<String, String> getHeaders() { return headers; }
+        public byte[] getBody() { return body; }
+
+        // Header names keep the server's spelling; lookups ignore case
+        public String getHeader(String name) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                if (header.getKey().equalsIgnoreCase(name)) {
+                    return header.getValue();
+                }
+            }
+            return null;
+        }
+
+        public String getBodyAsString() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+
+    private final String[] hosts;
+    private final int[] ports;
+    private int current; // Index of the server in use
+    private final int readTimeout;
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+
+    // Accepts http://host:port or plain host:port, or a comma-separated list of them
+    public HttpClientConnection(String serverUrls, int readTimeout) throws URISyntaxException {
+        String[] urls = serverUrls.split(",");
+        this.hosts = new String[urls.length];
+        this.ports = new int[urls.length];
+        for (int i = 0; i < urls.length; i++) {
+            String serverUrl = urls[i].trim();
+            URI uri = new URI(serverUrl.startsWith("http://") ? serverUrl : "http://" + serverUrl);
+            if (uri.getHost() == null) {
+                throw new URISyntaxException(serverUrl, "No host in server URL");
+            }
+            hosts[i] = uri.getHost();
+            ports[i] = uri.getPort() == -1 ? 80 : uri.getPort();
+        }
+        this.readTimeout = readTimeout;
+    }
+
+    public String getHost() {
+        return hosts[current];
+    }
+
+    public int getPort() {
+        return ports[current];
+    }
+
+    // Sends one request and reads the whole response, trying each server at most once.
+    // Headers must not include Host or Content-Length.
+    public Response send(String method, String target, Map<String, String> headers, byte[] body) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            boolean last = attempt >= hosts.length;
+            Response response;
+            try {
+                response = sendToCurrent(method, target, headers, body);
+            } catch (IOException e) {
+                if (last) {
+                    throw e;
+                }
+                failOver(e.getMessage());
+                continue;
+            }
+            if (last || !isRefusedByReplica(response)) {
+                return response;
+            }
+            failOver(response.getStatus() + " " + response.getReason());
+        }
+    }
+
+    // A replica refuses writes, and reads while it is too far behind; either way it names its primary
+    private static boolean isRefusedByReplica(Response response) {
+        return (response.getStatus() == 421 || response.getStatus() == 503) && response.getHeader("Replica-Of") != null;
+    }
+
+    private void failOver(String reason) {
+        close();
+        String from = hosts[current] + ":" + ports[current];
+        current = (current + 1) % hosts.length;
+        System.err.println("Server " + from + " failed (" + reason + "), trying " + hosts[current] + ":" + ports[current]);
+    }
+
+    private Response sendToCurrent(String method, String target, Map<String, String> headers, byte[] body) throws IOException {
+        boolean reused = socket != null;
+        try {
+            return exchange(method, target, headers, body);
+        } catch (IOException e) {
+            close();
+            if (!reused) {
+                throw e;
+            }
+            // The server closed an idle connection before seeing the request
+            return exchange(method, target, headers, body);
+        }
+    }
+
+    private Response exchange(String method, String target, Map<String, String> headers, byte[] body) throws IOException {
+        if (socket == null) {
+            Socket opened = new Socket();
+            try {
+                opened.connect(new InetSocketAddress(hosts[current], ports[current]), CONNECT_TIMEOUT);
+                opened.setSoTimeout(readTimeout);
+                opened.setTcpNoDelay(true);
+                in = new BufferedInputStream(opened.getInputStream());
+                out = new BufferedOutputStream(opened.getOutputStream());
+            } catch (IOException e) {
+                opened.close();
+                throw e;
+            }
+            socket = opened;
+        }
+
+        StringBuilder head = new StringBuilder();
+        head.append(method).append(' ').append(target).append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(hosts[current]).append("\r\n");
+        head.append("User-Agent: ATOMClient/1/0\r\n");
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+        }
+        if (body != null) {
+            head.append("Content-Length: ").append(body.length).append("\r\n");
+        }
+        head.append("\r\n");
+        out.write(head.toString().getBytes(StandardCharsets.UTF_8));
+        if (body != null) {
+            out.write(body);
+        }
+        out.flush();
+
+        Response response = readResponse();
+        String connection = response.getHeader("Connection");
+        if (connection != null && connection.equalsIgnoreCase("close")) {
+            close();
+        }
+        return response;
+    }
+
+    private Response readResponse() throws IOException {
+        String statusLine = readLine();
+        if (statusLine == null) {
+            throw new EOFException("Connection closed by server");
+        }
+        String[] parts = statusLine.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+            throw new IOException("Malformed status line: " + statusLine);
+        }
+        int status;
+        try {
+            status = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed status line: " + statusLine);
+        }
+        String reason = parts.length > 2 ? parts[2] : "";
+
+        Map<String, String> headers = HttpRequest.newHeaderMap();
+        String line;
+        while ((line = readLine()) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+            }
+        }
+        if (line == null) {
+            throw new EOFException("Connection closed in response headers");
+        }
+
+        byte[] body;
+        Response head = new Response(status, reason, headers, null);
+        String transferEncoding = head.getHeader("Transfer-Encoding");
+        String contentLength = head.getHeader("Content-Length");
+        if (transferEncoding != null && transferEncoding.equalsIgnoreCase("chunked")) {
+            body = readChunked();
+        } else if (contentLength != null) {
+            body = readFully(Integer.parseInt(contentLength));
+        } else if (status == 204 || status == 304) {
+            body = new byte[0];
+        } else {
+            // No framing: the body runs to the end of the connection
+            ByteArrayOutputStream rest = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                rest.write(buffer, 0, n);
+            }
+            body = rest.toByteArray();
+            headers.put("Connection", "close");
+        }
+
+        // Compressed bodies are decoded here, so callers that asked for compression see plain bodies
+        String contentEncoding = head.getHeader("Content-Encoding");
+        if (contentEncoding != null && HttpCompression.isSupported(contentEncoding.trim())) {
+            body = HttpCompression.decompress(body, contentEncoding.trim(), Integer.MAX_VALUE - 8);
+            headers.keySet().removeIf(name -> name.equalsIgnoreCase("Content-Encoding"));
+        }
+        return new Response(status, reason, headers, body);
+    }
+
+    private byte[] readChunked() throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        while (true) {
+            String sizeLine = readLine();
+            if (sizeLine == null) {
+                throw new EOFException("Connection closed in chunked body");
+            }
+            int semicolon = sizeLine.indexOf(';');
+            int size = Integer.parseInt((semicolon >= 0 ? sizeLine.substring(0, semicolon) : sizeLine).trim(), 16);
+            if (size == 0) {
+                // Skip trailers up to the terminating blank line
+                String trailer;
+                while ((trailer = readLine()) != null && !trailer.isEmpty()) {
+                    // Ignored
+                }
+                return body.toByteArray();
+            }
+            body.write(readFully(size));
+            readLine(); // CRLF after the chunk data
+        }
+    }
+
+    private byte[] readFully(int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = in.read(bytes, read, length - read);
+            if (n == -1) {
+                throw new EOFException("Connection closed in response body");
+            }
+            read += n;
+        }
+        return bytes;
+    }
+
+    // Reads a CRLF (or bare LF) terminated line as Latin-1; null at end of stream
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) b);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    public boolean isOpen() {
+        return socket != null;
+    }
+
+    @Override
+    public void close() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing left to clean up
+            }
+            socket = null;
+            in = null;
+            out = null;
+        }
+    }
+}
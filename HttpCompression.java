@@ -0,0 +1,165 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+// gzip and deflate content codings for both sides of the connection. "deflate" is the zlib-wrapped
+// stream RFC 9110 defines, which is what java.util.zip produces by default.
+public class HttpCompression {
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    // Picks the coding for a response from an Accept-Encoding header: gzip if the client accepts it,
+    // otherwise deflate, otherwise null for an uncompressed body. Codings with q=0 are refused.
+    public static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        boolean gzip = false;
+        boolean deflate = false;
+        boolean any = false;
+        for (String entry : acceptEncoding.split(",")) {
+            String[] parameters = entry.split(";");
+            String coding = parameters[0].trim().toLowerCase();
+            boolean refused = false;
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        refused = Double.parseDouble(parameter.substring(2)) <= 0;
+                    } catch (NumberFormatException e) {
+                        refused = true;
+                    }
+                }
+            }
+            if (refused) {
+                continue;
+            }
+            if (coding.equals(GZIP) || coding.equals("x-gzip")) {
+                gzip = true;
+            } else if (coding.equals(DEFLATE)) {
+                deflate = true;
+            } else if (coding.equals("*")) {
+                any = true;
+            }
+        }
+        if (gzip || any) {
+            return GZIP;
+        }
+        return deflate ? DEFLATE : null;
+    }
+
+    public static boolean isSupported(String coding) {
+        return GZIP.equalsIgnoreCase(coding) || "x-gzip".equalsIgnoreCase(coding) || DEFLATE.equalsIgnoreCase(coding);
+    }
+
+    public static byte[] compress(byte[] data, String coding) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+        try (OutputStream compressor = compressor(out, coding)) {
+            compressor.write(data);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // Cannot happen writing to memory
+        }
+        return out.toByteArray();
+    }
+
+    // Decompresses a body, failing once the result would exceed maxLength so a small compressed
+    // request cannot expand into an arbitrarily large one
+    public static byte[] decompress(byte[] data, String coding, int maxLength) throws IOException {
+        if (!isSupported(coding)) {
+            throw new IOException("Unsupported content coding: " + coding);
+        }
+        InputStream in = DEFLATE.equalsIgnoreCase(coding)
+                ? new InflaterInputStream(new ByteArrayInputStream(data))
+                : new GZIPInputStream(new ByteArrayInputStream(data));
+        try (InputStream decompressor = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = decompressor.read(buffer)) != -1) {
+                if (out.size() + n > maxLength) {
+                    throw new IOException("Decompressed body exceeds " + maxLength + " bytes");
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    // Compresses a streamed body part by part, so a streamed response stays streamed. Parts are
+    // returned as the compressor emits output; it buffers internally, so there are fewer of them.
+    public static Iterator<byte[]> compress(Iterator<byte[]> parts, String coding) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        OutputStream compressor;
+        try {
+            compressor = compressor(buffer, coding);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new Iterator<byte[]>() {
+            private byte[] next;
+            private boolean finished;
+
+            @Override
+            public boolean hasNext() {
+                advance();
+                return next != null;
+            }
+
+            @Override
+            public byte[] next() {
+                advance();
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                byte[] part = next;
+                next = null;
+                return part;
+            }
+
+            // Feeds source parts until the compressor has output, never yielding an empty part
+            private void advance() {
+                try {
+                    while (next == null && !finished) {
+                        if (parts.hasNext()) {
+                            compressor.write(parts.next());
+                        } else {
+                            compressor.close();
+                            finished = true;
+                        }
+                        if (buffer.size() > 0) {
+                            next = buffer.toByteArray();
+                            buffer.reset();
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    private static OutputStream compressor(OutputStream out, String coding) throws IOException {
+        if (DEFLATE.equalsIgnoreCase(coding)) {
+            return new DeflaterOutputStream(out);
+        }
+        return new GZIPOutputStream(out);
+    }
+
+    // A strong ETag for one coding of a representation: the same version compressed is a different
+    // sequence of bytes, so it needs its own tag
+    public static String etag(String etag, String coding) {
+        if (coding == null) {
+            return etag;
+        }
+        return etag.substring(0, etag.length() - 1) + "-" + coding + "\"";
+    }
+}
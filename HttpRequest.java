@@ -0,0 +1,115 @@
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// A parsed HTTP request, independent of how the connection is served
+public class HttpRequest {
+    private final String method;
+    private final String target;
+    private final String version;
+    private final Map<String, String> headers; // Keys are lower-cased
+    private final byte[] body;
+    private final String remoteAddress; // Client's IP address; null if not known
+
+    public HttpRequest(String method, String target, Map<String, String> headers, byte[] body) {
+        this(method, target, "HTTP/1.1", headers, body);
+    }
+
+    public HttpRequest(String method, String target, String version, Map<String, String> headers, byte[] body) {
+        this(method, target, version, headers, body, null);
+    }
+
+    private HttpRequest(String method, String target, String version, Map<String, String> headers, byte[] body,
+                        String remoteAddress) {
+        this.method = method;
+        this.target = target;
+        this.version = version;
+        this.headers = headers;
+        this.body = body;
+        this.remoteAddress = remoteAddress;
+    }
+
+    public String getMethod() { return method; }
+    public String getTarget() { return target; }
+    public String getVersion() { return version; }
+    public byte[] getBody() { return body; }
+    public Map<String, String> getHeaders() { return Collections.unmodifiableMap(headers); }
+    public String getRemoteAddress() { return remoteAddress; }
+
+    // The same request with a different body, e.g. once a compressed body has been decoded
+    public HttpRequest withBody(byte[] body) {
+        return new HttpRequest(method, target, version, headers, body, remoteAddress);
+    }
+
+    // The same request, marked with the address of the client that sent it
+    public HttpRequest withRemoteAddress(String remoteAddress) {
+        return new HttpRequest(method, target, version, headers, body, remoteAddress);
+    }
+
+    // Path component of the target, without the query string
+    public String getPath() {
+        int q = target.indexOf('?');
+        return q < 0 ? target : target.substring(0, q);
+    }
+
+    // Query string parameters, URL-decoded. A repeated parameter keeps its last value.
+    public Map<String, String> getQueryParameters() {
+        Map<String, String> parameters = new LinkedHashMap<>();
+        int q = target.indexOf('?');
+        if (q < 0) {
+            return parameters;
+        }
+        for (String pair : target.substring(q + 1).split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int eq = pair.indexOf('=');
+            String name = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            try {
+                parameters.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+            } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                throw new IllegalArgumentException("Malformed query parameter: " + pair);
+            }
+        }
+        return parameters;
+    }
+
+    // HTTP/1.1 connections persist unless the client sends Connection: close; HTTP/1.0 ones only
+    // when it sends Connection: keep-alive
+    public boolean isKeepAlive() {
+        if ("HTTP/1.0".equalsIgnoreCase(version)) {
+            return hasConnectionOption("keep-alive");
+        }
+        return !hasConnectionOption("close");
+    }
+
+    private boolean hasConnectionOption(String option) {
+        String connection = getHeader("Connection");
+        if (connection == null) {
+            return false;
+        }
+        for (String token : connection.split(",")) {
+            if (token.trim().equalsIgnoreCase(option)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Header lookup is case-insensitive
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase());
+    }
+
+    public String getBodyAsString() {
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    static Map<String, String> newHeaderMap() {
+        return new LinkedHashMap<>();
+    }
+}
@@ -0,0 +1,159 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+// Incremental HTTP/1.1 request parser. Bytes can be fed in arbitrary pieces as they arrive from
+// the network; parse() returns the request once its headers and Content-Length body are complete.
+// One parser serves every request on a connection, including pipelined ones.
+public class HttpRequestParser {
+    private static final int MAX_LINE_LENGTH = 8192;
+    private static final int MAX_HEADER_COUNT = 100;
+    static final int MAX_BODY_LENGTH = 16 * 1024 * 1024; // Also bounds decompressed bodies
+
+    private enum State { REQUEST_LINE, HEADERS, BODY }
+
+    // Thrown for requests that can never be parsed; the caller should answer 400 and close
+    public static class BadRequestException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public BadRequestException(String message) {
+            super(message);
+        }
+    }
+
+    private State state = State.REQUEST_LINE;
+    private byte[] line = new byte[256];
+    private int lineLength;
+
+    private String method;
+    private String target;
+    private String version;
+    private Map<String, String> headers;
+    private byte[] body;
+    private int bodyRead;
+    private long headNanos; // Time spent parsing the current request's head in earlier calls
+
+    // Consumes bytes from the buffer up to the end of one request. Returns the request, or null
+    // if more bytes are needed. Bytes after the end of the request are left in the buffer.
+    public HttpRequest parse(ByteBuffer buffer) throws BadRequestException {
+        long entered = System.nanoTime();
+        while (buffer.hasRemaining()) {
+            if (state == State.BODY) {
+                int n = Math.min(buffer.remaining(), body.length - bodyRead);
+                buffer.get(body, bodyRead, n);
+                bodyRead += n;
+                if (bodyRead == body.length) {
+                    return complete();
+                }
+                continue;
+            }
+
+            byte b = buffer.get();
+            if (b != '\n') {
+                appendToLine(b);
+                continue;
+            }
+
+            int length = lineLength;
+            if (length > 0 && line[length - 1] == '\r') {
+                length--;
+            }
+            String text = new String(line, 0, length, StandardCharsets.ISO_8859_1);
+            lineLength = 0;
+
+            if (state == State.REQUEST_LINE) {
+                if (text.isEmpty()) {
+                    continue; // Tolerate stray CRLF between requests
+                }
+                parseRequestLine(text);
+            } else if (!text.isEmpty()) {
+                parseHeader(text);
+            } else {
+                // Head parsing is timed across the reads it took, excluding the waits between them
+                Metrics.HEADER_PARSE.observe(headNanos + System.nanoTime() - entered);
+                headNanos = 0;
+                int contentLength = contentLength();
+                if (contentLength == 0) {
+                    body = new byte[0];
+                    return complete();
+                }
+                body = new byte[contentLength];
+                bodyRead = 0;
+                state = State.BODY;
+            }
+        }
+        if (state != State.BODY && !isIdle()) {
+            headNanos += System.nanoTime() - entered;
+        }
+        return null;
+    }
+
+    // True when no part of a request has been received yet
+    public boolean isIdle() {
+        return state == State.REQUEST_LINE && lineLength == 0;
+    }
+
+    private void appendToLine(byte b) throws BadRequestException {
+        if (lineLength == line.length) {
+            if (line.length >= MAX_LINE_LENGTH) {
+                throw new BadRequestException("Header line too long");
+            }
+            byte[] grown = new byte[Math.min(line.length * 2, MAX_LINE_LENGTH)];
+            System.arraycopy(line, 0, grown, 0, lineLength);
+            line = grown;
+        }
+        line[lineLength++] = b;
+    }
+
+    private void parseRequestLine(String text) throws BadRequestException {
+        String[] parts = text.split(" ");
+        if (parts.length < 2) {
+            throw new BadRequestException("Malformed request line: " + text);
+        }
+        method = parts[0];
+        target = parts[1];
+        version = parts.length > 2 ? parts[2] : "HTTP/1.0";
+        headers = HttpRequest.newHeaderMap();
+        state = State.HEADERS;
+    }
+
+    private void parseHeader(String text) throws BadRequestException {
+        int colon = text.indexOf(':');
+        if (colon <= 0) {
+            throw new BadRequestException("Malformed header: " + text);
+        }
+        if (headers.size() >= MAX_HEADER_COUNT) {
+            throw new BadRequestException("Too many headers");
+        }
+        headers.put(text.substring(0, colon).trim().toLowerCase(), text.substring(colon + 1).trim());
+    }
+
+    private int contentLength() throws BadRequestException {
+        String value = headers.get("content-length");
+        if (value == null) {
+            return 0;
+        }
+        try {
+            int length = Integer.parseInt(value);
+            if (length < 0 || length > MAX_BODY_LENGTH) {
+                throw new BadRequestException("Unsupported Content-Length: " + value);
+            }
+            return length;
+        } catch (NumberFormatException e) {
+            throw new BadRequestException("Invalid Content-Length: " + value);
+        }
+    }
+
+    private HttpRequest complete() {
+        HttpRequest request = new HttpRequest(method, target, version, headers, body);
+        state = State.REQUEST_LINE;
+        method = null;
+        target = null;
+        version = null;
+        headers = null;
+        body = null;
+        bodyRead = 0;
+        return request;
+    }
+}
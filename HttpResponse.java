@@ -0,0 +1,234 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CountDownLatch;
+
+// An HTTP response produced by the request handlers and written by either server front end.
+// The body is either a fixed byte array, sent with an exact Content-Length, or a stream of parts
+// sent with chunked transfer encoding so it never has to be materialized in full. A live body, such
+// as an event stream, is also chunked but has its parts written as they become ready.
+public class HttpResponse {
+    private static final byte[] EMPTY = new byte[0];
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private final int status;
+    private final String reason;
+    private final Map<String, String> headers = new LinkedHashMap<>();
+    private byte[] body = EMPTY;
+    private Iterator<byte[]> stream;
+    private LiveStream live;
+
+    // A body whose parts become available over time. Each part is sent as one chunk once it is ready.
+    public interface LiveStream {
+        // The next part if one is ready, otherwise null
+        byte[] poll();
+
+        // True once there are no more parts
+        boolean isFinished();
+
+        // Runs the listener once, when poll may have a part or the stream may have finished
+        void onReady(Runnable listener);
+
+        // The connection is gone; no more parts will be asked for
+        void close();
+    }
+
+    public HttpResponse(int status, String reason) {
+        this.status = status;
+        this.reason = reason;
+    }
+
+    public int getStatus() { return status; }
+    public String getReason() { return reason; }
+    public byte[] getBody() { return body; }
+    public boolean isStreamed() { return stream != null || live != null; }
+    public LiveStream getLiveStream() { return live; }
+    public String getHeader(String name) { return headers.get(name); }
+
+    public HttpResponse header(String name, Object value) {
+        headers.put(name, String.valueOf(value));
+        return this;
+    }
+
+    public HttpResponse body(byte[] body) {
+        this.body = body;
+        this.stream = null;
+        this.live = null;
+        return this;
+    }
+
+    public HttpResponse body(String body) {
+        return body(body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Streams the body from the given parts; small parts are coalesced into chunks of about 16KB
+    public HttpResponse stream(Iterator<byte[]> parts) {
+        this.stream = parts;
+        this.live = null;
+        this.body = EMPTY;
+        return this;
+    }
+
+    // Writes parts as the stream produces them, until it finishes or the client goes away
+    public HttpResponse live(LiveStream parts) {
+        this.live = parts;
+        this.stream = null;
+        this.body = EMPTY;
+        return this;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        writeTo(out, true);
+    }
+
+    // Without a flush, responses to pipelined requests can share one write
+    public void writeTo(OutputStream out, boolean flush) throws IOException {
+        if (live != null) {
+            writeLive(out);
+            return;
+        }
+        Iterator<byte[]> parts = encodedParts();
+        while (parts.hasNext()) {
+            out.write(parts.next());
+        }
+        if (flush) {
+            out.flush();
+        }
+    }
+
+    // Blocks the calling thread between parts; the NIO front end drives live bodies itself
+    private void writeLive(OutputStream out) throws IOException {
+        try {
+            out.write(encodeHead());
+            out.flush();
+            while (true) {
+                byte[] part = live.poll();
+                if (part != null) {
+                    out.write(chunk(part));
+                    out.flush();
+                } else if (live.isFinished()) {
+                    out.write(LAST_CHUNK);
+                    out.flush();
+                    return;
+                } else {
+                    CountDownLatch ready = new CountDownLatch(1);
+                    live.onReady(ready::countDown);
+                    ready.await();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a live part");
+        } finally {
+            live.close();
+        }
+    }
+
+    // The response as it goes on the wire: status line and headers, then the framed body.
+    // Parts are produced lazily, so a streamed body holds at most one chunk in memory. For a live
+    // body this is only the head; the caller frames each part with chunk() and ends with lastChunk().
+    public Iterator<byte[]> encodedParts() {
+        byte[] head = encodeHead();
+        if (live != null) {
+            return Collections.singletonList(head).iterator();
+        }
+        if (stream == null) {
+            return body.length == 0
+                    ? Collections.singletonList(head).iterator()
+                    : Arrays.asList(head, body).iterator();
+        }
+        return new ChunkedParts(head, stream);
+    }
+
+    private byte[] encodeHead() {
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        if (stream == null && live == null) {
+            head.append("Content-Length: ").append(body.length).append("\r\n");
+        } else {
+            head.append("Transfer-Encoding: chunked\r\n");
+        }
+        head.append("\r\n");
+        return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    static byte[] chunk(byte[] data) {
+        return ChunkedParts.frame(data, data.length);
+    }
+
+    static byte[] lastChunk() {
+        return LAST_CHUNK;
+    }
+
+    // Emits the head, then each chunk as size line, data and CRLF, then the terminating chunk
+    private static class ChunkedParts implements Iterator<byte[]> {
+        private final Iterator<byte[]> source;
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private byte[] pending;
+        private byte[] carry;
+        private boolean finished;
+
+        ChunkedParts(byte[] head, Iterator<byte[]> source) {
+            this.source = source;
+            this.pending = head;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return pending != null || !finished;
+        }
+
+        @Override
+        public byte[] next() {
+            if (pending != null) {
+                byte[] next = pending;
+                pending = null;
+                return next;
+            }
+            if (finished) {
+                throw new NoSuchElementException();
+            }
+
+            int length = 0;
+            while (carry != null || source.hasNext()) {
+                byte[] part = carry != null ? carry : source.next();
+                carry = null;
+                if (part.length > buffer.length - length) {
+                    if (length == 0) {
+                        return frame(part, part.length); // Oversized part goes out as its own chunk
+                    }
+                    carry = part; // Starts the next chunk
+                    break;
+                }
+                System.arraycopy(part, 0, buffer, length, part.length);
+                length += part.length;
+            }
+            if (length == 0) {
+                finished = true;
+                return LAST_CHUNK;
+            }
+            return frame(buffer, length);
+        }
+
+        private static byte[] frame(byte[] data, int length) {
+            byte[] size = (Integer.toHexString(length) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            byte[] chunk = new byte[size.length + length + CRLF.length];
+            System.arraycopy(size, 0, chunk, 0, size.length);
+            System.arraycopy(data, 0, chunk, size.length, length);
+            System.arraycopy(CRLF, 0, chunk, size.length + length, CRLF.length);
+            return chunk;
+        }
+    }
+}
@@ -1,20 +1,105 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
 
 public class JSONParser {
     private static final Gson gson = new Gson();
 
+    // Longest text field accepted. The write-ahead log stores strings with writeUTF, which takes at
+    // most 65535 bytes, and a char can need three.
+    public static final int MAX_TEXT_LENGTH = 4096;
+
+    // Which implementation decodes PUT bodies
+    public enum Decoder { STREAMING, GSON }
+
+    private static volatile Decoder decoder = Decoder.STREAMING;
+
+    public static void setDecoder(Decoder selected) {
+        decoder = selected;
+    }
+
     // Parses JSON into a WeatherData object with additional validation
     public static WeatherData parseWeatherData(String json) throws JsonSyntaxException {
         WeatherData data = gson.fromJson(json, WeatherData.class);
-        // Validate critical fields after parsing
+        if (data == null) {
+            throw new JsonSyntaxException("Empty document");
+        }
+        validate(data);
+        return data;
+    }
+
+    // Parses a UTF-8 request body with the selected decoder
+    public static WeatherData parseWeatherData(byte[] json) throws JsonSyntaxException {
+        if (decoder == Decoder.GSON) {
+            return parseWeatherData(new String(json, StandardCharsets.UTF_8));
+        }
+        return WeatherDataDecoder.decode(json);
+    }
+
+    // Parses a batch PUT body: a JSON array of stations, or one station per line for NDJSON.
+    // Stations are returned unvalidated so each can be accepted or rejected on its own.
+    public static List<WeatherData> parseWeatherDataBatch(byte[] json, boolean ndjson) throws JsonSyntaxException {
+        if (decoder == Decoder.STREAMING) {
+            return WeatherDataDecoder.decodeAll(json, ndjson);
+        }
+        String text = new String(json, StandardCharsets.UTF_8);
+        List<WeatherData> stations = new ArrayList<>();
+        if (ndjson) {
+            for (String line : text.split("\n")) {
+                if (!line.trim().isEmpty()) {
+                    stations.add(gson.fromJson(line, WeatherData.class));
+                }
+            }
+        } else {
+            WeatherData[] parsed = gson.fromJson(text, WeatherData[].class);
+            if (parsed == null) {
+                throw new JsonSyntaxException("Empty document");
+            }
+            stations.addAll(Arrays.asList(parsed));
+        }
+        if (stations.contains(null)) {
+            throw new JsonSyntaxException("Null station in batch");
+        }
+        return stations;
+    }
+
+    // Validate critical fields after parsing
+    public static void validate(WeatherData data) {
         if (data.getId() == null || data.getId().isEmpty()) {
             throw new IllegalArgumentException("Invalid WeatherData: ID is missing");
         }
+        String[] texts = {data.getId(), data.getName(), data.getState(), data.getTimeZone(), data.getLocalDateTime(),
+                data.getLocalDateTimeFull(), data.getCloud(), data.getWindDir()};
+        for (String text : texts) {
+            if (text != null && text.length() > MAX_TEXT_LENGTH) {
+                throw new IllegalArgumentException("Text field longer than " + MAX_TEXT_LENGTH + " characters");
+            }
+        }
+        double[] readings = {data.getLat(), data.getLon(), data.getAirTemp(), data.getApparentTemp(),
+                data.getDewPoint(), data.getPressure()};
+        for (double reading : readings) {
+            // NaN passes every range check below, and neither JSON nor the feed can hold it or Infinity
+            if (!Double.isFinite(reading)) {
+                throw new IllegalArgumentException("Invalid reading: " + reading);
+            }
+        }
         if (data.getLat() < -90 || data.getLat() > 90 || data.getLon() < -180 || data.getLon() > 180) {
             throw new IllegalArgumentException("Invalid latitude or longitude");
         }
-        return data;
+        // A missing reading decodes as 0, which every range below allows
+        if (data.getRelHum() < 0 || data.getRelHum() > 100) {
+            throw new IllegalArgumentException("Invalid relative humidity: " + data.getRelHum());
+        }
+        if (data.getPressure() < 0 || data.getPressure() > 1100) {
+            throw new IllegalArgumentException("Invalid pressure: " + data.getPressure());
+        }
+        if (data.getWindSpeedKmh() < 0 || data.getWindSpeedKmh() > 500 || data.getWindSpeedKt() < 0 || data.getWindSpeedKt() > 270) {
+            throw new IllegalArgumentException("Invalid wind speed");
+        }
     }
 
     // Converts a WeatherData object into JSON with null safety check
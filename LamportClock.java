@@ -1,27 +1,23 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+// Lamport logical clock. Lock-free and 64-bit; every operation returns the timestamp it assigned,
+// so an event is tagged with exactly that value even when other threads advance the clock meanwhile.
 public class LamportClock {
-    private int clock;
-    
-    public LamportClock() {
-        this.clock = 0;
-    }
+    private final AtomicLong clock = new AtomicLong();
 
-    // Increments the local lamport clock
-    public synchronized void increment() {
-        clock++;
+    // A local event or a send: advances the clock and returns the event's timestamp
+    public long tick() {
+        return clock.incrementAndGet();
     }
 
-    // Updates the clock based on the received timestamp
-    public synchronized void update(int receivedClock) {
-        clock = Math.max(clock, receivedClock) + 1;
+    // A receive: merges the sender's timestamp and returns the receive event's timestamp,
+    // max(local, received) + 1
+    public long receive(long receivedClock) {
+        return clock.accumulateAndGet(receivedClock, (current, received) -> Math.max(current, received) + 1);
     }
 
     // Gets the current clock value
-    public synchronized int getClock() {
-        return clock;
-    }
-
-    // Sets the current clock value
-    public synchronized void setClock(int clock) {
-        this.clock = clock;
+    public long get() {
+        return clock.get();
     }
 }
\ No newline at end of file
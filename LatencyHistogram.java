@@ -0,0 +1,105 @@
+// Latency histogram for the load generator, in microseconds. Buckets are log-linear: exact below 128,
+// then 64 per power of two, so any value is off by less than 1.6%. Not thread-safe; each simulated
+// client records into its own histogram and they are added up at the end.
+public class LatencyHistogram {
+    private static final int SUB_BUCKETS = 64;
+    private static final int LINEAR = 2 * SUB_BUCKETS; // Values below this get a bucket each
+    private static final int BUCKETS = LINEAR + 40 * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long total;
+    private long max;
+    private double sum;
+
+    public void record(long micros) {
+        long value = Math.max(0, micros);
+        counts[indexOf(value)]++;
+        total++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    private void record(long micros, long count) {
+        counts[indexOf(micros)] += count;
+        total += count;
+        sum += (double) micros * count;
+        max = Math.max(max, micros);
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        total += other.total;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    private static int indexOf(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        // value >> shift falls in [64, 128)
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 6;
+        int index = LINEAR + (shift - 1) * SUB_BUCKETS + (int) ((value >> shift) - SUB_BUCKETS);
+        return Math.min(index, BUCKETS - 1);
+    }
+
+    // Middle of the bucket's range
+    private static long valueOf(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+        long low = (long) ((index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return low + (1L << shift) / 2;
+    }
+
+    public long getCount() {
+        return total;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return total == 0 ? 0 : sum / total;
+    }
+
+    // Value at or below which the given percentage of samples fall
+    public long getPercentile(double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(valueOf(i), max);
+            }
+        }
+        return max;
+    }
+
+    // A copy corrected for coordinated omission, as HdrHistogram does it. A client that waits on a slow
+    // response sends nothing meanwhile, so the requests it would have sent every expectedInterval are
+    // missing from the samples. They are added back, with the latencies they would have seen.
+    public LatencyHistogram correctedFor(long expectedInterval) {
+        LatencyHistogram corrected = new LatencyHistogram();
+        corrected.add(this);
+        if (expectedInterval <= 0) {
+            return corrected;
+        }
+        for (int i = 0; i < BUCKETS; i++) {
+            if (counts[i] == 0) {
+                continue;
+            }
+            for (long missing = valueOf(i) - expectedInterval; missing >= expectedInterval; missing -= expectedInterval) {
+                corrected.record(missing, counts[i]);
+            }
+        }
+        return corrected;
+    }
+}
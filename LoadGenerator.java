@@ -0,0 +1,457 @@
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+// Simulates many content servers and GET clients against one aggregation server, each with its own
+// connection and Lamport clock, using the same request code as ContentServer and GETClient.
+//
+// Closed loop: every client sends its next request as soon as the last one is answered (after
+// --think-time). Open loop: every client sends at a fixed rate, whether or not the server keeps up.
+// A client that falls behind sends at once, and each latency is measured from when the request was
+// due, so a stalled server shows in the percentiles instead of hiding the requests it held up.
+public class LoadGenerator {
+    private static final long REPORT_INTERVAL = 5000;
+    private static final long RETRY_BACKOFF = 1000; // Up to half of it is added to a Retry-After at random
+    private static final String[] STATES = {"SA", "NSW", "VIC", "QLD", "WA", "TAS", "NT", "ACT"};
+    private static final String[] ZONES = {"CST", "EST", "EST", "EST", "WST", "EST", "CST", "EST"};
+
+    private final String serverUrl;
+    private final boolean openLoop;
+    private final int contentServers;
+    private final int stationsPerServer;
+    private final int batchSize;
+    private final double putRate;
+    private final int readers;
+    private final String readTarget;
+    private final double getRate;
+    private final long thinkTime;
+    private final boolean binary;
+    private final int timeout;
+    private final long warmup;
+    private final long duration;
+
+    private volatile long measureFrom; // System.nanoTime() when the warm-up ends
+    private volatile long stopAt;
+    private volatile boolean running = true;
+    private final List<Client> clients = new ArrayList<>();
+    private final LongAdder puts = new LongAdder();
+    private final LongAdder gets = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 1 || args[0].startsWith("--")) {
+            System.out.println("Usage: java LoadGenerator <server_url> [--mode=closed|open] [--content-servers=N] "
+                    + "[--stations=N] [--batch-size=N] [--put-rate=per_s] [--readers=N] [--query=q] [--get-rate=per_s] "
+                    + "[--think-time=ms] [--format=json|binary] [--warmup=s] [--duration=s] [--timeout=ms]");
+            return;
+        }
+        // Options are read like the server's
+        ServerConfig options = ServerConfig.parse(Arrays.copyOfRange(args, 1, args.length));
+        LoadGenerator generator;
+        try {
+            generator = new LoadGenerator(args[0], options);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+        generator.run();
+    }
+
+    LoadGenerator(String serverUrl, ServerConfig options) {
+        this.serverUrl = serverUrl;
+        String mode = options.get("mode", "closed");
+        if (!mode.equals("closed") && !mode.equals("open")) {
+            throw new IllegalArgumentException("Unknown mode: " + mode);
+        }
+        this.openLoop = mode.equals("open");
+        this.contentServers = options.getInt("content-servers", 10);
+        this.stationsPerServer = Math.max(1, options.getInt("stations", 10));
+        this.batchSize = Math.max(1, Math.min(options.getInt("batch-size", 1), stationsPerServer));
+        this.putRate = Double.parseDouble(options.get("put-rate", "1"));
+        this.readers = options.getInt("readers", 10);
+        String query = options.get("query", null);
+        this.readTarget = query == null ? "/weather.json" : "/weather.json?" + query;
+        this.getRate = Double.parseDouble(options.get("get-rate", "1"));
+        this.thinkTime = options.getLong("think-time", 0);
+        String format = options.get("format", "json");
+        if (!format.equals("json") && !format.equals("binary")) {
+            throw new IllegalArgumentException("Unknown format: " + format);
+        }
+        this.binary = format.equals("binary");
+        this.timeout = options.getInt("timeout", 10000);
+        this.warmup = TimeUnit.SECONDS.toNanos(options.getLong("warmup", 5));
+        this.duration = TimeUnit.SECONDS.toNanos(options.getLong("duration", 30));
+        if (openLoop && (putRate <= 0 || getRate <= 0)) {
+            throw new IllegalArgumentException("Rates must be positive in open loop");
+        }
+    }
+
+    void run() throws InterruptedException {
+        Long expiredBefore = serverMetric("weather_expired_stations_total");
+        // Stations left by an earlier run carry later clocks than fresh ones would send
+        Long serverClock = serverMetric("weather_lamport_clock");
+        System.out.println(describe());
+
+        long start = System.nanoTime();
+        measureFrom = start + warmup;
+        stopAt = measureFrom + duration;
+        Random random = new Random();
+        List<Thread> threads = new ArrayList<>();
+        try {
+            for (int i = 0; i < contentServers; i++) {
+                clients.add(new ContentServerClient(i, start + phase(random, putRate)));
+            }
+            for (int i = 0; i < readers; i++) {
+                clients.add(new ReaderClient(start + phase(random, getRate)));
+            }
+        } catch (URISyntaxException e) {
+            System.out.println("Invalid server URL: " + e.getMessage());
+            return;
+        }
+        for (Client client : clients) {
+            if (serverClock != null) {
+                client.clock.receive(serverClock);
+            }
+            threads.add(startThread(client));
+        }
+
+        reportProgress(start);
+        running = false;
+        // Requests still out are given until their timeout to finish
+        long joinDeadline = System.currentTimeMillis() + timeout + 1000;
+        for (Thread thread : threads) {
+            thread.join(Math.max(1, joinDeadline - System.currentTimeMillis()));
+        }
+        Long expiredAfter = serverMetric("weather_expired_stations_total");
+        report(expiredBefore != null && expiredAfter != null ? expiredAfter - expiredBefore : null);
+    }
+
+    // Clients start at random points of their first interval, so they do not send in lockstep
+    private long phase(Random random, double rate) {
+        return openLoop ? (long) (random.nextDouble() * 1e9 / rate) : 0;
+    }
+
+    private String describe() {
+        String puts = openLoop ? " at " + putRate + " PUT/s each" : "";
+        String gets = openLoop ? " at " + getRate + " GET/s each" : "";
+        return (openLoop ? "Open" : "Closed") + " loop against " + serverUrl + ": "
+                + contentServers + " content servers with " + stationsPerServer + " stations" + puts + ", "
+                + readers + " readers of " + readTarget + gets
+                + (!openLoop && thinkTime > 0 ? ", " + thinkTime + " ms think time" : "")
+                + ". Warm-up " + TimeUnit.NANOSECONDS.toSeconds(warmup) + " s, then "
+                + TimeUnit.NANOSECONDS.toSeconds(duration) + " s measured.";
+    }
+
+    // Many clients are cheap on virtual threads (JDK 21+); older JDKs get a platform thread each
+    private static Thread startThread(Runnable task) {
+        try {
+            Method start = Thread.class.getMethod("startVirtualThread", Runnable.class);
+            return (Thread) start.invoke(null, task);
+        } catch (ReflectiveOperationException e) {
+            Thread thread = new Thread(task);
+            thread.setDaemon(true);
+            thread.start();
+            return thread;
+        }
+    }
+
+    private void reportProgress(long start) throws InterruptedException {
+        long lastPuts = 0;
+        long lastGets = 0;
+        long lastErrors = 0;
+        while (true) {
+            long now = System.nanoTime();
+            if (now >= stopAt) {
+                return;
+            }
+            TimeUnit.NANOSECONDS.sleep(Math.min(TimeUnit.MILLISECONDS.toNanos(REPORT_INTERVAL), stopAt - now));
+            long totalPuts = puts.sum();
+            long totalGets = gets.sum();
+            long totalErrors = errorCount();
+            double seconds = Math.min(REPORT_INTERVAL, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - now)) / 1000.0;
+            System.out.printf(Locale.ROOT, "%4d s  %8.1f PUT/s  %8.1f GET/s  %6d errors%s%n",
+                    TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start),
+                    (totalPuts - lastPuts) / seconds, (totalGets - lastGets) / seconds, totalErrors - lastErrors,
+                    System.nanoTime() < measureFrom ? "  (warm-up)" : "");
+            lastPuts = totalPuts;
+            lastGets = totalGets;
+            lastErrors = totalErrors;
+        }
+    }
+
+    private long errorCount() {
+        long count = 0;
+        for (LongAdder adder : errors.values()) {
+            count += adder.sum();
+        }
+        return count;
+    }
+
+    private void error(String kind) {
+        errors.computeIfAbsent(kind, key -> new LongAdder()).increment();
+    }
+
+    private void report(Long serverExpired) {
+        LatencyHistogram putLatency = new LatencyHistogram();
+        LatencyHistogram getLatency = new LatencyHistogram();
+        for (Client client : clients) {
+            (client instanceof ContentServerClient ? putLatency : getLatency).add(client.latency);
+        }
+        double seconds = duration / 1e9;
+        System.out.println();
+        System.out.println(openLoop
+                ? "Latency from when each request was due, in ms:"
+                : "Latency in ms, corrected for coordinated omission assuming each client would have sent "
+                        + "a request every think time + median latency:");
+        System.out.println("          count   per s      p50      p90      p99    p99.9      max");
+        printLatency("PUT", correct(putLatency), seconds);
+        printLatency("GET", correct(getLatency), seconds);
+        if (!openLoop) {
+            System.out.println("Uncorrected:");
+            printLatency("PUT", putLatency, seconds);
+            printLatency("GET", getLatency, seconds);
+        }
+        System.out.printf(Locale.ROOT, "GET bodies: %.1f MB/s%n", bytesRead.sum() / seconds / 1e6);
+
+        System.out.println("Errors: " + (errors.isEmpty() ? "none" : new TreeMap<>(errors)));
+        System.out.println("Stations that expired between updates: " + expired.sum()
+                + (serverExpired != null ? " (server expired " + serverExpired + " in all)" : ""));
+    }
+
+    private LatencyHistogram correct(LatencyHistogram latency) {
+        if (openLoop) {
+            return latency; // Already measured from when requests were due
+        }
+        return latency.correctedFor(TimeUnit.MILLISECONDS.toMicros(thinkTime) + latency.getPercentile(50));
+    }
+
+    private static void printLatency(String label, LatencyHistogram latency, double seconds) {
+        System.out.printf(Locale.ROOT, "%-5s %9d %7.1f %8.2f %8.2f %8.2f %8.2f %8.2f%n", label,
+                latency.getCount(), latency.getCount() / seconds,
+                latency.getPercentile(50) / 1000.0, latency.getPercentile(90) / 1000.0,
+                latency.getPercentile(99) / 1000.0, latency.getPercentile(99.9) / 1000.0, latency.getMax() / 1000.0);
+    }
+
+    // A value from the server's GET /metrics, or null if it has none
+    private Long serverMetric(String name) {
+        try (HttpClientConnection connection = new HttpClientConnection(serverUrl, timeout)) {
+            HttpClientConnection.Response response = connection.send("GET", "/metrics", new TreeMap<>(), null);
+            if (response.getStatus() != 200) {
+                return null;
+            }
+            for (String line : response.getBodyAsString().split("\n")) {
+                if (line.startsWith(name + " ")) {
+                    return Long.parseLong(line.substring(line.indexOf(' ') + 1).trim());
+                }
+            }
+        } catch (IOException | URISyntaxException | NumberFormatException e) {
+            // Reported without the server's count
+        }
+        return null;
+    }
+
+    // One simulated client with its own connection, clock and latency record
+    private abstract class Client implements Runnable {
+        final HttpClientConnection connection;
+        final LamportClock clock = new LamportClock();
+        final LatencyHistogram latency = new LatencyHistogram();
+        final double rate;
+        long due; // When the next request is due in open loop
+        long pause; // Milliseconds to wait after the request just timed, before the next
+
+        Client(double rate, long firstDue) throws URISyntaxException {
+            this.connection = new HttpClientConnection(serverUrl, timeout);
+            this.rate = rate;
+            this.due = firstDue;
+        }
+
+        @Override
+        public void run() {
+            long interval = (long) (1e9 / rate);
+            try {
+                while (running && System.nanoTime() < stopAt) {
+                    long start;
+                    if (openLoop) {
+                        long wait = due - System.nanoTime();
+                        if (wait > 0) {
+                            TimeUnit.NANOSECONDS.sleep(wait);
+                        }
+                        start = due;
+                        due += interval;
+                    } else {
+                        start = System.nanoTime();
+                    }
+                    boolean ok = send();
+                    long end = System.nanoTime();
+                    // Requests still out at the end count too, or the slowest would be left out
+                    if (start >= measureFrom && start < stopAt) {
+                        latency.record(TimeUnit.NANOSECONDS.toMicros(end - start));
+                        if (ok) {
+                            counter().increment();
+                        }
+                    }
+                    if (pause > 0) {
+                        Thread.sleep(pause);
+                        pause = 0;
+                    }
+                    if (!openLoop && thinkTime > 0) {
+                        Thread.sleep(thinkTime);
+                    }
+                }
+                // Requests that came due while the last one was out were never sent. They would
+                // have waited at least until now.
+                long now = System.nanoTime();
+                for (; openLoop && due < stopAt; due += interval) {
+                    if (due >= measureFrom) {
+                        latency.record(TimeUnit.NANOSECONDS.toMicros(now - due));
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                connection.close();
+            }
+        }
+
+        // Sends one request; false if it failed, after counting the error
+        abstract boolean send();
+
+        abstract LongAdder counter();
+
+        // Counted as they happen, warm-up included, so the progress lines show them
+        boolean failed(String method, Exception e) {
+            error(method + " " + e.getClass().getSimpleName());
+            // An unreachable server would otherwise be retried in a tight loop
+            pause = 100;
+            return false;
+        }
+
+        // In closed loop a client the server sheds waits as a content server would; an open-loop
+        // client keeps to its schedule
+        boolean refused(String method, HttpClientConnection.Response response) {
+            error(method + " " + response.getStatus());
+            if (!openLoop && ContentServer.isBusy(response)) {
+                pause = ContentServer.retryDelay(response, RETRY_BACKOFF);
+            }
+            return false;
+        }
+    }
+
+    // Updates its stations in turn, batchSize at a time. A station the server answers with 201 Created
+    // after it was stored before has expired in between.
+    private class ContentServerClient extends Client {
+        private final WeatherData[] stations;
+        private final boolean[] stored;
+        private final Random random;
+        private int next;
+
+        ContentServerClient(int index, long firstDue) throws URISyntaxException {
+            super(putRate, firstDue);
+            this.random = new Random(index);
+            this.stations = new WeatherData[stationsPerServer];
+            this.stored = new boolean[stationsPerServer];
+            for (int i = 0; i < stationsPerServer; i++) {
+                int state = random.nextInt(STATES.length);
+                stations[i] = new WeatherData(String.format(Locale.ROOT, "LOAD%05d-%04d", index, i),
+                        "Load station " + index + "-" + i, STATES[state], ZONES[state],
+                        -10 - random.nextDouble() * 30, 115 + random.nextDouble() * 35,
+                        "15/04:00pm", "20230715160000", 0, 0, "Partly cloudy", 5.7, 1013.0, 50, "S", 15, 8);
+            }
+        }
+
+        @Override
+        LongAdder counter() {
+            return puts;
+        }
+
+        @Override
+        boolean send() {
+            List<WeatherData> batch = new ArrayList<>(batchSize);
+            int[] indexes = new int[batchSize];
+            for (int i = 0; i < batchSize; i++) {
+                indexes[i] = next;
+                WeatherData station = stations[next];
+                station.setAirTemp(Math.round(random.nextDouble() * 400) / 10.0);
+                station.setApparentTemp(station.getAirTemp() - 2);
+                batch.add(station);
+                next = (next + 1) % stations.length;
+            }
+            HttpClientConnection.Response response;
+            try {
+                if (binary) {
+                    response = ContentServer.send(connection, clock, "PUT", "/weather.json",
+                            BinaryWeatherFormat.CONTENT_TYPE, BinaryWeatherFormat.encode(batch));
+                } else {
+                    response = ContentServer.send(connection, clock, "PUT", "/weather.json", "application/json",
+                            ContentServer.toJson(batch).getBytes(StandardCharsets.UTF_8));
+                }
+            } catch (IOException e) {
+                return failed("PUT", e);
+            }
+            int status = response.getStatus();
+            if (status != 200 && status != 201) {
+                return refused("PUT", response);
+            }
+            if (batchSize == 1) {
+                stored(indexes[0], status);
+            } else {
+                // A batch answers with a status per station, in order
+                int i = 0;
+                for (JsonElement result : JsonParser.parseString(response.getBodyAsString()).getAsJsonArray()) {
+                    stored(indexes[i++], result.getAsJsonObject().get("status").getAsInt());
+                }
+            }
+            return true;
+        }
+
+        private void stored(int index, int status) {
+            if (status == 201 && stored[index]) {
+                expired.increment();
+            } else if (status != 200 && status != 201) {
+                error("PUT station " + status);
+            }
+            stored[index] = stored[index] || status == 200 || status == 201;
+        }
+    }
+
+    private class ReaderClient extends Client {
+        ReaderClient(long firstDue) throws URISyntaxException {
+            super(getRate, firstDue);
+        }
+
+        @Override
+        LongAdder counter() {
+            return gets;
+        }
+
+        @Override
+        boolean send() {
+            HttpClientConnection.Response response;
+            try {
+                response = GETClient.request(connection, clock, readTarget, binary);
+            } catch (IOException e) {
+                return failed("GET", e);
+            }
+            if (response.getStatus() != 200) {
+                return refused("GET", response);
+            }
+            bytesRead.add(response.getBody().length);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+// Leveled logging for the server (--log-level=error|warn|info|debug, default info). Messages go to
+// standard output and problems to standard error, as the server always printed them; messages below
+// the level cost only a comparison.
+public class Log {
+    public enum Level { ERROR, WARN, INFO, DEBUG }
+
+    private static volatile Level level = Level.INFO;
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static boolean isEnabled(Level messageLevel) {
+        return messageLevel.compareTo(level) <= 0;
+    }
+
+    public static void debug(String message) {
+        if (isEnabled(Level.DEBUG)) {
+            System.out.println(message);
+        }
+    }
+
+    public static void info(String message) {
+        if (isEnabled(Level.INFO)) {
+            System.out.println(message);
+        }
+    }
+
+    public static void warn(String message) {
+        if (isEnabled(Level.WARN)) {
+            System.err.println(message);
+        }
+    }
+
+    // Errors are always logged, with the stack trace of the cause if there is one
+    public static void error(String message, Throwable cause) {
+        System.err.println(message);
+        if (cause != null) {
+            cause.printStackTrace();
+        }
+    }
+}
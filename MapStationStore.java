@@ -0,0 +1,57 @@
+import java.util.HashMap;
+import java.util.Map;
+
+// The original storage: one WeatherData object per station plus a boxed update time (--store=map)
+public class MapStationStore implements StationStore {
+    private final Map<String, WeatherData> weatherDataMap = new HashMap<>();
+    private final Map<String, Long> serverTimestamps = new HashMap<>();
+
+    @Override
+    public boolean put(WeatherData data, long timestamp) {
+        serverTimestamps.put(data.getId(), timestamp);
+        return weatherDataMap.put(data.getId(), data) == null;
+    }
+
+    @Override
+    public WeatherData get(String id) {
+        return weatherDataMap.get(id);
+    }
+
+    @Override
+    public boolean contains(String id) {
+        return weatherDataMap.containsKey(id);
+    }
+
+    @Override
+    public long getTimestamp(String id) {
+        Long timestamp = serverTimestamps.get(id);
+        return timestamp == null ? -1 : timestamp;
+    }
+
+    @Override
+    public boolean touch(String id, long timestamp) {
+        if (!weatherDataMap.containsKey(id)) {
+            return false;
+        }
+        serverTimestamps.put(id, timestamp);
+        return true;
+    }
+
+    @Override
+    public boolean remove(String id) {
+        serverTimestamps.remove(id);
+        return weatherDataMap.remove(id) != null;
+    }
+
+    @Override
+    public int size() {
+        return weatherDataMap.size();
+    }
+
+    @Override
+    public void forEach(Visitor visitor) {
+        for (Map.Entry<String, WeatherData> entry : weatherDataMap.entrySet()) {
+            visitor.visit(entry.getValue(), serverTimestamps.get(entry.getKey()));
+        }
+    }
+}
@@ -0,0 +1,554 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+// Station store kept in memory-mapped files (--store=mapped), so a restart maps the files instead of
+// deserializing a snapshot onto the heap.
+//
+// <base>.map holds a header followed by one fixed-size record per station slot; <base>.heap is an
+// append-only heap of length-prefixed, checksummed strings that records point into. Low-cardinality
+// strings are written to the heap once and shared. Each record has two copies, each carrying a
+// sequence number and a CRC32, and the newest valid copy wins on load. A copy covered by the last
+// checkpoint is never overwritten, so a write torn by a crash leaves the checkpointed copy intact and
+// the write-ahead log replays the rest. A checkpoint flushes both files and then writes the header
+// (also double-buffered and checksummed) with the first log segment still needed; it replaces the
+// snapshot file and its temp-file rename.
+//
+// Like every store it is written by one thread; only checkpoint may run on another.
+public class MappedStationStore implements StationStore {
+    private static final int MAGIC = 0x57584D53; // "WXMS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4096;
+    private static final int HEADER_COPY_SIZE = 64;
+    private static final int COPY_SIZE = 136;
+    private static final int RECORD_SIZE = 2 * COPY_SIZE;
+    private static final int INITIAL_RECORDS = 1024;
+    private static final int INITIAL_HEAP = 64 * 1024;
+    private static final int HEAP_ENTRY_HEADER = 8; // Length and CRC32
+    private static final int NULL_REF = -1;
+    private static final int EMPTY_REF = -2;
+
+    // Header copy layout
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_SEQ = 8; // Copies with a lower sequence number are covered by the checkpoint
+    private static final int H_FIRST_SEGMENT = 16;
+    private static final int H_RECORD_SIZE = 24;
+    private static final int H_CRC = 28;
+
+    // Record copy layout. Strings are heap refs, except localDateTimeFull, which changes with every
+    // update and is kept inline when it fits so it does not grow the heap.
+    private static final int SEQ = 0;
+    private static final int LIVE = 8;
+    private static final int ID = 12;
+    private static final int NAME = 16;
+    private static final int STATE = 20;
+    private static final int TIME_ZONE = 24;
+    private static final int LOCAL_DATE_TIME = 28;
+    private static final int CLOUD = 32;
+    private static final int WIND_DIR = 36;
+    private static final int LOCAL_DATE_TIME_FULL = 40; // Length byte, then the bytes or a heap ref
+    private static final int LAT = 64;
+    private static final int LON = 72;
+    private static final int AIR_TEMP = 80;
+    private static final int APPARENT_TEMP = 88;
+    private static final int DEW_POINT = 96;
+    private static final int PRESSURE = 104;
+    private static final int REL_HUM = 112;
+    private static final int WIND_SPEED_KMH = 116;
+    private static final int WIND_SPEED_KT = 120;
+    private static final int TIMESTAMP = 124;
+    private static final int CRC = 132;
+    private static final int INLINE_LIMIT = 23;
+    private static final int INLINE_NULL = 0xFE;
+    private static final int INLINE_HEAP = 0xFF;
+
+    private final File recordFile;
+    private final File heapFile;
+    private final FileChannel records;
+    private final FileChannel heap;
+    private volatile MappedByteBuffer recordMap;
+    private volatile MappedByteBuffer heapMap;
+    private int recordCapacity;
+    private int heapEnd;
+    private final boolean created;
+
+    private final SlotIndex slots = new SlotIndex();
+    private byte[] currentCopy; // Copy holding each slot's latest record
+    private long[] currentSeq;
+    private long nextSeq = 1;
+    private volatile long durableSeq;
+    private long pendingMark; // Mark of a checkpoint that may still be flushing; writing thread only
+    private long firstSegment;
+    private int headerCopy;
+
+    // Heap refs of shared strings, and the strings they hold
+    private final Map<String, Integer> refs = new HashMap<>();
+    private final Map<Integer, String> strings = new HashMap<>();
+
+    private final byte[] image = new byte[COPY_SIZE];
+    private final ByteBuffer imageBuffer = ByteBuffer.wrap(image);
+
+    // Opens the store in <baseName>.map and <baseName>.heap, creating them if needed. Throws if the
+    // files exist but fail validation.
+    public MappedStationStore(String baseName) throws IOException {
+        recordFile = new File(baseName + ".map");
+        heapFile = new File(baseName + ".heap");
+        created = !recordFile.exists();
+        if (!created && !heapFile.exists()) {
+            throw new IOException(heapFile + " is missing");
+        }
+        records = FileChannel.open(recordFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        heap = FileChannel.open(heapFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        if (created) {
+            recordCapacity = INITIAL_RECORDS;
+            recordMap = map(records, HEADER_SIZE + (long) recordCapacity * RECORD_SIZE);
+            heapMap = map(heap, INITIAL_HEAP);
+            currentCopy = new byte[recordCapacity];
+            currentSeq = new long[recordCapacity];
+            headerCopy = 1;
+            writeHeader(0, 0);
+        } else {
+            load();
+        }
+    }
+
+    // True if the files did not exist before this store was opened
+    public boolean isCreated() {
+        return created;
+    }
+
+    // First write-ahead log segment not covered by the last checkpoint
+    public long getFirstSegment() {
+        return firstSegment;
+    }
+
+    // Marks the point a checkpoint will cover: everything written so far. Call on the writing thread,
+    // right after rolling the write-ahead log.
+    public long checkpointMark() {
+        pendingMark = nextSeq;
+        return nextSeq;
+    }
+
+    // Flushes everything written before the mark, then records the mark and the first log segment that
+    // is still needed. May run on another thread while the writer carries on.
+    public synchronized void checkpoint(long mark, long firstSegment) throws IOException {
+        heapMap.force();
+        recordMap.force();
+        writeHeader(mark, firstSegment);
+    }
+
+    private void writeHeader(long seq, long firstSegment) {
+        int copy = 1 - headerCopy;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_COPY_SIZE);
+        header.putInt(H_MAGIC, MAGIC);
+        header.putInt(H_VERSION, VERSION);
+        header.putLong(H_SEQ, seq);
+        header.putLong(H_FIRST_SEGMENT, firstSegment);
+        header.putInt(H_RECORD_SIZE, RECORD_SIZE);
+        header.putInt(H_CRC, crc(header.array(), H_CRC));
+        MappedByteBuffer map = recordMap;
+        map.put(copy * HEADER_COPY_SIZE, header.array());
+        map.force(0, HEADER_SIZE);
+        headerCopy = copy;
+        this.firstSegment = firstSegment;
+        durableSeq = seq;
+    }
+
+    private void load() throws IOException {
+        long recordLength = records.size();
+        if (recordLength < HEADER_SIZE) {
+            throw new IOException(recordFile + " is truncated");
+        }
+        recordCapacity = (int) Math.min((recordLength - HEADER_SIZE) / RECORD_SIZE, maxRecords());
+        recordMap = map(records, HEADER_SIZE + (long) recordCapacity * RECORD_SIZE);
+        heapMap = map(heap, Math.max(heap.size(), INITIAL_HEAP));
+
+        // Header: the valid copy with the higher sequence number
+        headerCopy = -1;
+        long bestSeq = -1;
+        byte[] header = new byte[HEADER_COPY_SIZE];
+        for (int copy = 0; copy < 2; copy++) {
+            recordMap.get(copy * HEADER_COPY_SIZE, header);
+            ByteBuffer buffer = ByteBuffer.wrap(header);
+            if (buffer.getInt(H_MAGIC) == MAGIC && buffer.getInt(H_CRC) == crc(header, H_CRC)
+                    && buffer.getLong(H_SEQ) > bestSeq) {
+                if (buffer.getInt(H_VERSION) != VERSION || buffer.getInt(H_RECORD_SIZE) != RECORD_SIZE) {
+                    throw new IOException(recordFile + " has an unsupported layout");
+                }
+                headerCopy = copy;
+                bestSeq = buffer.getLong(H_SEQ);
+                firstSegment = buffer.getLong(H_FIRST_SEGMENT);
+            }
+        }
+        if (headerCopy < 0) {
+            throw new IOException(recordFile + " has no valid header");
+        }
+        durableSeq = bestSeq;
+
+        // Heap: entries up to the first torn or unwritten one
+        int heapCapacity = heapMap.capacity();
+        heapEnd = 0;
+        while (heapEnd + HEAP_ENTRY_HEADER <= heapCapacity && isHeapEntry(heapEnd, heapCapacity)) {
+            heapEnd += HEAP_ENTRY_HEADER + heapMap.getInt(heapEnd);
+        }
+
+        // Records: the newest copy that is intact and whose strings are on the heap
+        currentCopy = new byte[recordCapacity];
+        currentSeq = new long[recordCapacity];
+        long maxSeq = 0;
+        for (int slot = 0; slot < recordCapacity; slot++) {
+            long seq0 = validCopySeq(slot, 0);
+            long seq1 = validCopySeq(slot, 1);
+            maxSeq = Math.max(maxSeq, Math.max(seq0, seq1));
+            int copy = seq1 > seq0 ? 1 : 0;
+            long seq = Math.max(seq0, seq1);
+            currentCopy[slot] = (byte) copy;
+            currentSeq[slot] = seq;
+            if (seq <= 0) {
+                continue;
+            }
+
+            int offset = copyOffset(slot, copy);
+            if (recordMap.get(offset + LIVE) == 0) {
+                continue;
+            }
+            String id = readString(recordMap.getInt(offset + ID));
+            int other = slots.slotOf(id);
+            if (other >= 0) {
+                // A torn remove can leave an old copy of a station that has since moved slots
+                if (currentSeq[other] > seq) {
+                    continue;
+                }
+                slots.remove(id);
+            }
+            slots.restore(id, slot);
+        }
+        slots.rebuildFreeSlots();
+        nextSeq = maxSeq + 1;
+    }
+
+    private boolean isHeapEntry(int ref, int limit) {
+        int length = heapMap.getInt(ref);
+        if (length <= 0 || length > limit - ref - HEAP_ENTRY_HEADER) {
+            return false;
+        }
+        byte[] bytes = new byte[length];
+        heapMap.get(ref + HEAP_ENTRY_HEADER, bytes);
+        return heapMap.getInt(ref + 4) == crc(bytes, length);
+    }
+
+    // Sequence number of an intact copy whose strings are all on the heap, or 0
+    private long validCopySeq(int slot, int copy) {
+        recordMap.get(copyOffset(slot, copy), image);
+        long seq = imageBuffer.getLong(SEQ);
+        if (seq <= 0 || imageBuffer.getInt(CRC) != crc(image, CRC)) {
+            return 0;
+        }
+        for (int field = ID; field <= WIND_DIR; field += 4) {
+            if (!isValidRef(imageBuffer.getInt(field), field != ID && field != NAME)) {
+                return 0;
+            }
+        }
+        if ((image[LOCAL_DATE_TIME_FULL] & 0xFF) == INLINE_HEAP
+                && !isValidRef(imageBuffer.getInt(LOCAL_DATE_TIME_FULL + 1), false)) {
+            return 0;
+        }
+        return seq;
+    }
+
+    private boolean isValidRef(int ref, boolean shared) {
+        if (ref == NULL_REF || ref == EMPTY_REF || strings.containsKey(ref)) {
+            return true;
+        }
+        if (ref < 0 || ref + HEAP_ENTRY_HEADER > heapEnd || !isHeapEntry(ref, heapEnd)) {
+            return false;
+        }
+        if (shared) {
+            String value = decode(ref);
+            strings.put(ref, value);
+            refs.putIfAbsent(value, ref);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean put(WeatherData data, long timestamp) {
+        String id = data.getId();
+        int slot = slots.slotOf(id);
+        boolean created = slot < 0;
+        int idRef;
+        int nameRef;
+        if (created) {
+            slot = slots.add(id);
+            ensureRecordCapacity(slot);
+            idRef = append(id);
+            nameRef = append(data.getName());
+        } else {
+            // Reuse the stored id, and the stored name unless it changed
+            int offset = copyOffset(slot, currentCopy[slot]);
+            idRef = recordMap.getInt(offset + ID);
+            nameRef = recordMap.getInt(offset + NAME);
+            if (!Objects.equals(readString(nameRef), data.getName())) {
+                nameRef = append(data.getName());
+            }
+        }
+
+        Arrays.fill(image, (byte) 0);
+        image[LIVE] = 1;
+        imageBuffer.putInt(ID, idRef);
+        imageBuffer.putInt(NAME, nameRef);
+        imageBuffer.putInt(STATE, intern(data.getState()));
+        imageBuffer.putInt(TIME_ZONE, intern(data.getTimeZone()));
+        imageBuffer.putInt(LOCAL_DATE_TIME, intern(data.getLocalDateTime()));
+        imageBuffer.putInt(CLOUD, intern(data.getCloud()));
+        imageBuffer.putInt(WIND_DIR, intern(data.getWindDir()));
+        writeInline(data.getLocalDateTimeFull());
+        imageBuffer.putDouble(LAT, data.getLat());
+        imageBuffer.putDouble(LON, data.getLon());
+        imageBuffer.putDouble(AIR_TEMP, data.getAirTemp());
+        imageBuffer.putDouble(APPARENT_TEMP, data.getApparentTemp());
+        imageBuffer.putDouble(DEW_POINT, data.getDewPoint());
+        imageBuffer.putDouble(PRESSURE, data.getPressure());
+        imageBuffer.putInt(REL_HUM, data.getRelHum());
+        imageBuffer.putInt(WIND_SPEED_KMH, data.getWindSpeedKmh());
+        imageBuffer.putInt(WIND_SPEED_KT, data.getWindSpeedKt());
+        imageBuffer.putLong(TIMESTAMP, timestamp);
+        writeCopy(slot);
+        return created;
+    }
+
+    private void writeInline(String value) {
+        if (value == null) {
+            image[LOCAL_DATE_TIME_FULL] = (byte) INLINE_NULL;
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= INLINE_LIMIT) {
+            image[LOCAL_DATE_TIME_FULL] = (byte) bytes.length;
+            System.arraycopy(bytes, 0, image, LOCAL_DATE_TIME_FULL + 1, bytes.length);
+        } else {
+            image[LOCAL_DATE_TIME_FULL] = (byte) INLINE_HEAP;
+            imageBuffer.putInt(LOCAL_DATE_TIME_FULL + 1, append(value));
+        }
+    }
+
+    // Writes the image as the slot's newest copy. The copy the last checkpoint covers is left alone;
+    // a copy written since then holds nothing the log cannot replay, so it is overwritten in place.
+    // A checkpoint counts from its mark, not once it finishes: the log segments before the mark are
+    // already rolled and will be deleted, so a copy from before the mark is left alone too.
+    private void writeCopy(int slot) {
+        int copy = currentSeq[slot] >= Math.max(durableSeq, pendingMark) ? currentCopy[slot] : 1 - currentCopy[slot];
+        long seq = nextSeq++;
+        imageBuffer.putLong(SEQ, seq);
+        imageBuffer.putInt(CRC, crc(image, CRC));
+        recordMap.put(copyOffset(slot, copy), image);
+        currentCopy[slot] = (byte) copy;
+        currentSeq[slot] = seq;
+    }
+
+    @Override
+    public WeatherData get(String id) {
+        int slot = slots.slotOf(id);
+        return slot < 0 ? null : materialize(slot);
+    }
+
+    private WeatherData materialize(int slot) {
+        MappedByteBuffer map = recordMap;
+        int offset = copyOffset(slot, currentCopy[slot]);
+        WeatherData data = new WeatherData();
+        data.setId(slots.idAt(slot));
+        data.setName(readString(map.getInt(offset + NAME)));
+        data.setState(readString(map.getInt(offset + STATE)));
+        data.setTimeZone(readString(map.getInt(offset + TIME_ZONE)));
+        data.setLat(map.getDouble(offset + LAT));
+        data.setLon(map.getDouble(offset + LON));
+        data.setLocalDateTime(readString(map.getInt(offset + LOCAL_DATE_TIME)));
+        data.setLocalDateTimeFull(readInline(map, offset));
+        data.setAirTemp(map.getDouble(offset + AIR_TEMP));
+        data.setApparentTemp(map.getDouble(offset + APPARENT_TEMP));
+        data.setCloud(readString(map.getInt(offset + CLOUD)));
+        data.setDewPoint(map.getDouble(offset + DEW_POINT));
+        data.setPressure(map.getDouble(offset + PRESSURE));
+        data.setRelHum(map.getInt(offset + REL_HUM));
+        data.setWindDir(readString(map.getInt(offset + WIND_DIR)));
+        data.setWindSpdKmh(map.getInt(offset + WIND_SPEED_KMH));
+        data.setWindSpdKt(map.getInt(offset + WIND_SPEED_KT));
+        return data;
+    }
+
+    private String readInline(MappedByteBuffer map, int offset) {
+        int length = map.get(offset + LOCAL_DATE_TIME_FULL) & 0xFF;
+        if (length == INLINE_NULL) {
+            return null;
+        }
+        if (length == INLINE_HEAP) {
+            return readString(map.getInt(offset + LOCAL_DATE_TIME_FULL + 1));
+        }
+        byte[] bytes = new byte[length];
+        map.get(offset + LOCAL_DATE_TIME_FULL + 1, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public boolean contains(String id) {
+        return slots.slotOf(id) >= 0;
+    }
+
+    @Override
+    public long getTimestamp(String id) {
+        int slot = slots.slotOf(id);
+        return slot < 0 ? -1 : recordMap.getLong(copyOffset(slot, currentCopy[slot]) + TIMESTAMP);
+    }
+
+    @Override
+    public boolean touch(String id, long timestamp) {
+        int slot = slots.slotOf(id);
+        if (slot < 0) {
+            return false;
+        }
+        recordMap.get(copyOffset(slot, currentCopy[slot]), image);
+        imageBuffer.putLong(TIMESTAMP, timestamp);
+        writeCopy(slot);
+        return true;
+    }
+
+    @Override
+    public boolean remove(String id) {
+        int slot = slots.remove(id);
+        if (slot < 0) {
+            return false;
+        }
+        recordMap.get(copyOffset(slot, currentCopy[slot]), image);
+        image[LIVE] = 0;
+        writeCopy(slot);
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return slots.size();
+    }
+
+    @Override
+    public void forEach(Visitor visitor) {
+        for (int slot = 0; slot < slots.slotLimit(); slot++) {
+            if (slots.idAt(slot) != null) {
+                visitor.visit(materialize(slot), recordMap.getLong(copyOffset(slot, currentCopy[slot]) + TIMESTAMP));
+            }
+        }
+    }
+
+    private int intern(String value) {
+        if (value == null) {
+            return NULL_REF;
+        }
+        Integer ref = refs.get(value);
+        if (ref == null) {
+            ref = append(value);
+            refs.put(value, ref);
+            strings.put(ref, value);
+        }
+        return ref;
+    }
+
+    private String readString(int ref) {
+        if (ref == NULL_REF) {
+            return null;
+        }
+        if (ref == EMPTY_REF) {
+            return "";
+        }
+        String shared = strings.get(ref);
+        return shared != null ? shared : decode(ref);
+    }
+
+    private String decode(int ref) {
+        MappedByteBuffer map = heapMap;
+        byte[] bytes = new byte[map.getInt(ref)];
+        map.get(ref + HEAP_ENTRY_HEADER, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Appends a string to the heap and returns its ref
+    private int append(String value) {
+        if (value == null) {
+            return NULL_REF;
+        }
+        if (value.isEmpty()) {
+            return EMPTY_REF;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        long end = (long) heapEnd + HEAP_ENTRY_HEADER + bytes.length;
+        if (end > heapMap.capacity()) {
+            long capacity = heapMap.capacity();
+            while (capacity < end) {
+                capacity *= 2;
+            }
+            if (end > Integer.MAX_VALUE) {
+                throw new IllegalStateException("String heap " + heapFile + " is full");
+            }
+            heapMap = remap(heap, Math.min(capacity, Integer.MAX_VALUE));
+        }
+        int ref = heapEnd;
+        MappedByteBuffer map = heapMap;
+        map.putInt(ref + 4, crc(bytes, bytes.length));
+        map.put(ref + HEAP_ENTRY_HEADER, bytes);
+        map.putInt(ref, bytes.length); // Written last; a torn entry fails its CRC and ends the heap on load
+        heapEnd = (int) end;
+        return ref;
+    }
+
+    private void ensureRecordCapacity(int slot) {
+        if (slot < recordCapacity) {
+            return;
+        }
+        int capacity = (int) Math.min(Math.max((long) recordCapacity * 2, INITIAL_RECORDS), maxRecords());
+        if (slot >= capacity) {
+            throw new IllegalStateException("Station store " + recordFile + " is full");
+        }
+        recordMap = remap(records, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+        currentCopy = Arrays.copyOf(currentCopy, capacity);
+        currentSeq = Arrays.copyOf(currentSeq, capacity);
+        recordCapacity = capacity;
+    }
+
+    private static long maxRecords() {
+        return (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE;
+    }
+
+    private static int copyOffset(int slot, int copy) {
+        return HEADER_SIZE + slot * RECORD_SIZE + copy * COPY_SIZE;
+    }
+
+    // Mapping a region past the end of the file extends the file with zeros
+    private static MappedByteBuffer map(FileChannel channel, long size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private static MappedByteBuffer remap(FileChannel channel, long size) {
+        try {
+            return map(channel, size);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot grow the station store", e);
+        }
+    }
+
+    private static int crc(byte[] bytes, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        return (int) crc.getValue();
+    }
+}
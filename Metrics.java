@@ -0,0 +1,199 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Server metrics for GET /metrics, in the Prometheus text format. Recording only increments LongAdder
+// cells, which are striped per thread, so request threads never contend on a shared counter and
+// nothing is aggregated until a scrape.
+public class Metrics {
+    // Declared first: the metrics below register themselves as they are created
+    private static final List<Family> families = new ArrayList<>();
+
+    // Time spent in each stage of serving requests
+    private static final Family STAGES = register(new Family("weather_stage_duration_seconds",
+            "Time spent in each server stage", "histogram"));
+    public static final Histogram HEADER_PARSE = stage("header_parse");
+    public static final Histogram BODY_DECODE = stage("body_decode");
+    public static final Histogram WAL_SYNC = stage("wal_sync");
+    public static final Histogram SNAPSHOT_PERSIST = stage("snapshot_persist");
+    public static final Histogram GET_SERIALIZE = stage("get_serialize");
+
+    public static final LabeledCounter REQUESTS = register(new LabeledCounter("weather_requests_total",
+            "Requests answered, by method and status", "method", "status"));
+    public static final LabeledCounter SHED = register(new LabeledCounter("weather_shed_requests_total",
+            "Requests refused by admission control, by lane and status", "lane", "status"));
+    public static final Counter REFUSED_CONNECTIONS = register(new Counter("weather_refused_connections_total",
+            "Connections refused over --max-connections"));
+    public static final Counter EXPIRED = register(new Counter("weather_expired_stations_total",
+            "Stations removed because their content server went silent"));
+    public static final Counter CONNECTIONS_OPENED = register(new Counter("weather_connections_total",
+            "Client connections accepted"));
+    public static final Gauge ACTIVE_CONNECTIONS = register(new Gauge("weather_active_connections",
+            "Client connections currently open"));
+
+    // One metric name with its help text and type, and the samples under it
+    private static class Family {
+        final String name;
+        final String help;
+        final String type;
+        final List<Histogram> histograms = new ArrayList<>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+
+        void render(StringBuilder out) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+            renderSamples(out);
+        }
+
+        void renderSamples(StringBuilder out) {
+            for (Histogram histogram : histograms) {
+                histogram.render(out, name);
+            }
+        }
+    }
+
+    // Durations in log-2 buckets from 1 microsecond to about 67 seconds, plus +Inf
+    public static class Histogram {
+        private static final int BUCKETS = 27;
+        private final String labels;
+        private final LongAdder[] buckets = new LongAdder[BUCKETS + 1];
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram(String labels) {
+            this.labels = labels;
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void observe(long nanos) {
+            long micros = Math.max(0, nanos) / 1000;
+            // Bucket i holds durations up to 2^i microseconds
+            int bucket = micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+            buckets[Math.min(bucket, BUCKETS)].increment();
+            sumNanos.add(nanos);
+        }
+
+        // Records the time since a System.nanoTime() reading
+        public void observeSince(long startNanos) {
+            observe(System.nanoTime() - startNanos);
+        }
+
+        void render(StringBuilder out, String name) {
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                cumulative += buckets[i].sum();
+                out.append(name).append("_bucket{").append(labels).append(",le=\"")
+                        .append((1L << i) / 1e6).append("\"} ").append(cumulative).append('\n');
+            }
+            cumulative += buckets[BUCKETS].sum();
+            out.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(cumulative).append('\n');
+            out.append(name).append("_sum{").append(labels).append("} ").append(sumNanos.sum() / 1e9).append('\n');
+            out.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+        }
+    }
+
+    public static class Counter extends Family {
+        private final LongAdder count = new LongAdder();
+
+        Counter(String name, String help) {
+            super(name, help, "counter");
+        }
+
+        public void increment() {
+            count.increment();
+        }
+
+        @Override
+        void renderSamples(StringBuilder out) {
+            out.append(name).append(' ').append(count.sum()).append('\n');
+        }
+    }
+
+    // A counter per combination of label values, created on first use
+    public static class LabeledCounter extends Family {
+        private final String[] labelNames;
+        private final Map<String, LongAdder> counts = new ConcurrentHashMap<>();
+
+        LabeledCounter(String name, String help, String... labelNames) {
+            super(name, help, "counter");
+            this.labelNames = labelNames;
+        }
+
+        // Values must come from a small fixed set, since every combination is kept
+        public void increment(String... labelValues) {
+            StringBuilder labels = new StringBuilder();
+            for (int i = 0; i < labelNames.length; i++) {
+                labels.append(i == 0 ? "" : ",").append(labelNames[i]).append("=\"").append(labelValues[i]).append('"');
+            }
+            counts.computeIfAbsent(labels.toString(), key -> new LongAdder()).increment();
+        }
+
+        @Override
+        void renderSamples(StringBuilder out) {
+            for (Map.Entry<String, LongAdder> count : counts.entrySet()) {
+                out.append(name).append('{').append(count.getKey()).append("} ").append(count.getValue().sum()).append('\n');
+            }
+        }
+    }
+
+    // A value that goes up and down, either kept here or read from elsewhere at scrape time
+    public static class Gauge extends Family {
+        private final LongAdder value = new LongAdder();
+        private final LongSupplier source;
+
+        Gauge(String name, String help) {
+            this(name, help, null);
+        }
+
+        Gauge(String name, String help, LongSupplier source) {
+            super(name, help, "gauge");
+            this.source = source;
+        }
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void decrement() {
+            value.decrement();
+        }
+
+        @Override
+        void renderSamples(StringBuilder out) {
+            out.append(name).append(' ').append(source != null ? source.getAsLong() : value.sum()).append('\n');
+        }
+    }
+
+    private static Histogram stage(String stage) {
+        Histogram histogram = new Histogram("stage=\"" + stage + "\"");
+        STAGES.histograms.add(histogram);
+        return histogram;
+    }
+
+    private static synchronized <T extends Family> T register(T family) {
+        families.add(family);
+        return family;
+    }
+
+    // Adds a gauge whose value is read when the metrics are scraped
+    public static void gauge(String name, String help, LongSupplier source) {
+        register(new Gauge(name, help, source));
+    }
+
+    public static synchronized String render() {
+        StringBuilder out = new StringBuilder(8192);
+        for (Family family : families) {
+            family.render(out);
+        }
+        return out.toString();
+    }
+}
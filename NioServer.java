@@ -0,0 +1,388 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+// Event-loop front end for the Aggregation Server (--io=nio).
+// A few selector threads own all sockets and parse requests incrementally as bytes arrive, so idle or
+// slow clients cost a small connection object instead of a blocked thread. Complete requests are
+// handed to the worker executor and the response is written back by the owning selector thread.
+// Connections persist across requests; pipelined requests are handled one at a time, in order.
+// Long-polls and live bodies such as event streams wait without holding a worker or selector thread.
+public class NioServer {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final long SWEEP_INTERVAL = 1000;
+
+    private final ServerConfig config;
+    private final ExecutorService workers;
+    private final IoLoop[] loops;
+
+    public NioServer(ServerConfig config, ExecutorService workers) throws IOException {
+        this.config = config;
+        this.workers = workers;
+        this.loops = new IoLoop[Math.max(1, config.getIoThreads())];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop();
+        }
+    }
+
+    // Accepts connections on the calling thread and spreads them across the selector threads
+    public void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "aggregation-io-" + (i + 1));
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(config.getPort()), config.getBacklog());
+            Log.info("Aggregation Server is running on port " + config.getPort()
+                    + " (nio, " + loops.length + " I/O threads)");
+
+            int next = 0;
+            while (true) {
+                try {
+                    SocketChannel channel = server.accept();
+                    if (!AggregationServer.openConnection()) {
+                        refuse(channel);
+                        continue;
+                    }
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    loops[next++ % loops.length].register(channel);
+                } catch (IOException e) {
+                    Log.error("Failed to accept a connection", e);
+                }
+            }
+        }
+    }
+
+    // Answers a connection over the limit with 503 and closes it. The channel is still blocking, and the
+    // response fits in the socket's send buffer.
+    private static void refuse(SocketChannel channel) {
+        try (SocketChannel refused = channel) {
+            Iterator<byte[]> parts = AggregationServer.connectionRefusal().encodedParts();
+            while (parts.hasNext()) {
+                refused.write(ByteBuffer.wrap(parts.next()));
+            }
+        } catch (IOException e) {
+            Log.debug("Failed to refuse a connection: " + e.getMessage());
+        }
+    }
+
+    // Per-connection state, attached to its selection key
+    private static class Connection {
+        final SocketChannel channel;
+        final String remoteAddress;
+        final HttpRequestParser parser = new HttpRequestParser();
+        SelectionKey key;
+        Iterator<byte[]> response; // Remaining encoded parts of the response being written
+        HttpResponse.LiveStream live; // Body parts still to come after the response's head
+        ByteBuffer output;
+        ByteBuffer pipelined; // Bytes received after the request being handled
+        long lastActivity = System.currentTimeMillis();
+        boolean busy; // A worker is handling this connection's request
+        boolean keepAlive;
+        int served;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.remoteAddress = channel.socket().getInetAddress().getHostAddress();
+        }
+    }
+
+    private class IoLoop implements Runnable {
+        private final Selector selector;
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private final Queue<Connection> registrations = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> completed = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> ready = new ConcurrentLinkedQueue<>(); // Live bodies with a part ready
+        private long lastSweep = System.currentTimeMillis();
+
+        IoLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            Metrics.CONNECTIONS_OPENED.increment();
+            Metrics.ACTIVE_CONNECTIONS.increment();
+            registrations.add(new Connection(channel));
+            selector.wakeup();
+        }
+
+        // Called from a worker thread once the response is ready
+        void complete(Connection connection, HttpResponse response, boolean keepAlive) {
+            connection.keepAlive = keepAlive;
+            connection.response = response.encodedParts();
+            connection.live = response.getLiveStream();
+            completed.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select(SWEEP_INTERVAL);
+                    drainRegistrations();
+                    drainCompleted();
+                    drainReady();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        try {
+                            if (key.isReadable()) {
+                                read(connection);
+                            } else if (key.isWritable()) {
+                                write(connection);
+                            }
+                        } catch (RuntimeException e) {
+                            fail(connection, e);
+                        }
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (now - lastSweep >= SWEEP_INTERVAL) {
+                        closeIdleConnections(now);
+                        lastSweep = now;
+                    }
+                } catch (IOException | RuntimeException e) {
+                    Log.error("I/O loop failed", e);
+                }
+            }
+        }
+
+        private void drainRegistrations() {
+            Connection connection;
+            while ((connection = registrations.poll()) != null) {
+                try {
+                    connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (IOException e) {
+                    close(connection);
+                }
+            }
+        }
+
+        private void drainCompleted() {
+            Connection connection;
+            while ((connection = completed.poll()) != null) {
+                connection.busy = false;
+                try {
+                    write(connection);
+                } catch (RuntimeException e) {
+                    fail(connection, e);
+                }
+            }
+        }
+
+        private void drainReady() {
+            Connection connection;
+            while ((connection = ready.poll()) != null) {
+                if (connection.key.isValid()) {
+                    try {
+                        write(connection);
+                    } catch (RuntimeException e) {
+                        fail(connection, e);
+                    }
+                }
+            }
+        }
+
+        private void read(Connection connection) {
+            readBuffer.clear();
+            try {
+                int n = connection.channel.read(readBuffer);
+                if (n == -1) {
+                    close(connection);
+                    return;
+                }
+                connection.lastActivity = System.currentTimeMillis();
+                readBuffer.flip();
+
+                parse(connection, readBuffer);
+            } catch (IOException e) {
+                close(connection);
+            }
+        }
+
+        // Parses bytes for the connection and dispatches a completed request. Bytes after it belong to
+        // pipelined requests and are kept until the response has been written.
+        private void parse(Connection connection, ByteBuffer bytes) {
+            HttpRequest request;
+            try {
+                request = connection.parser.parse(bytes);
+            } catch (HttpRequestParser.BadRequestException e) {
+                connection.keepAlive = false;
+                respond(connection, AggregationServer.statusResponse(400, "Bad Request").header("Connection", "close"));
+                return;
+            }
+            if (request == null) {
+                connection.pipelined = null;
+                return;
+            }
+            if (bytes.hasRemaining()) {
+                if (bytes != connection.pipelined) {
+                    ByteBuffer copy = ByteBuffer.allocate(bytes.remaining());
+                    copy.put(bytes).flip();
+                    connection.pipelined = copy;
+                }
+            } else {
+                connection.pipelined = null;
+            }
+            dispatch(connection, request.withRemoteAddress(connection.remoteAddress));
+        }
+
+        private void dispatch(Connection connection, HttpRequest request) {
+            connection.busy = true;
+            connection.key.interestOps(0);
+            int served = ++connection.served;
+            try {
+                workers.execute(() -> {
+                    CompletableFuture<HttpResponse> answered;
+                    try {
+                        answered = AggregationServer.handleRequestAsync(request);
+                    } catch (RuntimeException e) {
+                        answered = CompletableFuture.failedFuture(e);
+                    }
+                    // A failed request is answered too, or the connection would stay busy until it is closed
+                    answered.whenComplete((response, error) -> {
+                        if (error != null) {
+                            Log.error("Request failed: " + request.getMethod() + " " + request.getTarget(), error);
+                            complete(connection, AggregationServer.statusResponse(500, "Internal Server Error")
+                                    .header("Connection", "close"), false);
+                        } else {
+                            complete(connection, response, AggregationServer.keepAlive(request, response, served));
+                        }
+                    });
+                });
+            } catch (RejectedExecutionException e) {
+                close(connection);
+            }
+        }
+
+        private void respond(Connection connection, HttpResponse response) {
+            connection.response = response.encodedParts();
+            write(connection);
+        }
+
+        // Called once a response is fully written on a connection that stays open
+        private void next(Connection connection) {
+            connection.response = null;
+            connection.output = null;
+            connection.lastActivity = System.currentTimeMillis();
+            if (connection.pipelined != null) {
+                parse(connection, connection.pipelined);
+                if (connection.busy || connection.response != null) {
+                    return;
+                }
+            }
+            connection.key.interestOps(SelectionKey.OP_READ);
+        }
+
+        // Writes as much of the response as the socket accepts. Streamed parts are pulled one at a
+        // time, so a large feed never sits in a connection's memory in full. A live body with no part
+        // ready parks the connection until the stream says it has one.
+        private void write(Connection connection) {
+            try {
+                while (true) {
+                    if (connection.output == null || !connection.output.hasRemaining()) {
+                        if (connection.response.hasNext()) {
+                            connection.output = ByteBuffer.wrap(connection.response.next());
+                        } else if (connection.live != null) {
+                            if (!nextLivePart(connection)) {
+                                return;
+                            }
+                        } else {
+                            if (connection.keepAlive) {
+                                next(connection);
+                            } else {
+                                close(connection);
+                            }
+                            return;
+                        }
+                    }
+                    connection.channel.write(connection.output);
+                    connection.lastActivity = System.currentTimeMillis();
+                    if (connection.output.hasRemaining()) {
+                        connection.key.interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                close(connection);
+            }
+        }
+
+        // Frames the live body's next part, or its end, as the output. False if no part is ready
+        // yet; the connection then waits for the stream to call back.
+        private boolean nextLivePart(Connection connection) {
+            byte[] part = connection.live.poll();
+            if (part != null) {
+                connection.output = ByteBuffer.wrap(HttpResponse.chunk(part));
+            } else if (connection.live.isFinished()) {
+                connection.live.close();
+                connection.live = null;
+                connection.output = ByteBuffer.wrap(HttpResponse.lastChunk());
+            } else {
+                connection.key.interestOps(0);
+                connection.live.onReady(() -> {
+                    ready.add(connection);
+                    selector.wakeup();
+                });
+                return false;
+            }
+            return true;
+        }
+
+        // A bug hit while serving one connection closes that connection, not the loop serving the others
+        private void fail(Connection connection, RuntimeException e) {
+            Log.error("Connection failed", e);
+            close(connection);
+        }
+
+        private void closeIdleConnections(long now) {
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (connection != null && !connection.busy
+                        && now - connection.lastActivity > config.getIdleTimeout()) {
+                    close(connection);
+                }
+            }
+        }
+
+        private void close(Connection connection) {
+            if (!connection.channel.isOpen()) {
+                return;
+            }
+            Metrics.ACTIVE_CONNECTIONS.decrement();
+            AggregationServer.connectionClosed();
+            if (connection.live != null) {
+                connection.live.close();
+                connection.live = null;
+            }
+            if (connection.key != null) {
+                connection.key.cancel();
+            }
+            try {
+                connection.channel.close();
+            } catch (IOException ignored) {
+                // Already closed
+            }
+        }
+    }
+}
@@ -0,0 +1,263 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+
+// Replica side of replication (--replica-of). Streams the primary's log from GET /replication and
+// hands every frame to the server in order. The position reached is kept across reconnects, so after
+// a dropped connection the primary resumes where the stream stopped, or sends a snapshot if it no
+// longer can. The primary's Lamport clock from each frame tells how current the replica is.
+public class ReplicaFollower implements Runnable {
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final int READ_TIMEOUT = 15000; // Well above the primary's heartbeat interval
+    private static final long RETRY_DELAY = 1000;
+    private static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+    private static final int MAX_UNCONFIRMED = 1000; // Records handed on before waiting for them to apply
+
+    // Receives the primary's frames, in order, on the follower thread
+    public interface Target {
+        // A snapshot follows: the stations in it, then snapshotEnded
+        void snapshotStarted();
+
+        // Applies one write-ahead log record; completes once it is applied
+        CompletableFuture<?> apply(byte[] record, long clock);
+
+        // Every station not in the snapshot has to go
+        void snapshotEnded();
+
+        // The primary is alive and at this clock
+        void heartbeat(long clock);
+    }
+
+    private final String host;
+    private final int port;
+    private final String primaryUrl;
+    private final Target target;
+    private volatile boolean running = true;
+    private volatile Socket socket;
+    private String epoch = "";
+    private long seq;
+    private volatile long lastContact; // Wall time of the last frame, 0 before the first
+    private volatile long primaryClock; // Primary's clock at the last frame
+    private volatile boolean synced; // A snapshot has been applied in this server run
+    private String lastError; // Last failure reported, cleared once a stream is established
+
+    public ReplicaFollower(String primaryUrl, Target target) throws URISyntaxException {
+        URI uri = new URI(primaryUrl.startsWith("http://") ? primaryUrl : "http://" + primaryUrl);
+        if (uri.getHost() == null) {
+            throw new URISyntaxException(primaryUrl, "No host in primary URL");
+        }
+        this.host = uri.getHost();
+        this.port = uri.getPort() == -1 ? 80 : uri.getPort();
+        this.primaryUrl = primaryUrl;
+        this.target = target;
+    }
+
+    public String getPrimaryUrl() {
+        return primaryUrl;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    // Milliseconds since the primary was last heard from; unbounded until the first snapshot is in
+    public long getLag() {
+        return synced ? System.currentTimeMillis() - lastContact : Long.MAX_VALUE;
+    }
+
+    public long getPrimaryClock() {
+        return primaryClock;
+    }
+
+    // Stops following, e.g. when the replica is promoted
+    public void stop() {
+        running = false;
+        Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException ignored) {
+                // Closing only to unblock the reader
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                follow();
+            } catch (IOException e) {
+                // Reported once per outage rather than on every retry
+                String error = String.valueOf(e.getMessage());
+                if (running && !error.equals(lastError)) {
+                    Log.warn("Replication from " + primaryUrl + " interrupted: " + error);
+                }
+                lastError = error;
+            }
+            if (running) {
+                try {
+                    Thread.sleep(RETRY_DELAY);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void follow() throws IOException {
+        try (Socket opened = new Socket()) {
+            opened.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+            opened.setSoTimeout(READ_TIMEOUT);
+            socket = opened;
+            if (!running) {
+                return;
+            }
+            OutputStream out = opened.getOutputStream();
+            out.write(("GET /replication?epoch=" + epoch + "&from=" + seq + " HTTP/1.1\r\n"
+                    + "Host: " + host + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+
+            InputStream in = new BufferedInputStream(opened.getInputStream());
+            String status = readLine(in);
+            if (status == null || !status.startsWith("HTTP/1.1 200")) {
+                throw new IOException("Primary answered " + status);
+            }
+            String line;
+            String streamEpoch = null;
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                if (line.regionMatches(true, 0, "Replication-Epoch:", 0, 18)) {
+                    streamEpoch = line.substring(18).trim();
+                }
+            }
+            if (streamEpoch == null) {
+                throw new IOException("Primary sent no Replication-Epoch");
+            }
+            lastError = null;
+            readFrames(new DataInputStream(new ChunkedInputStream(in)), streamEpoch);
+        } finally {
+            socket = null;
+        }
+    }
+
+    // The position moves only outside snapshots, so a snapshot cut short is sent again in full
+    private void readFrames(DataInputStream in, String streamEpoch) throws IOException {
+        CompletableFuture<?> last = CompletableFuture.completedFuture(null);
+        int unconfirmed = 0;
+        boolean inSnapshot = false;
+        while (running) {
+            byte kind = in.readByte();
+            long frameSeq = in.readLong();
+            long clock = in.readLong();
+            int length = in.readInt();
+            if (length < 0 || length > MAX_RECORD_LENGTH) {
+                throw new IOException("Corrupt replication frame");
+            }
+            byte[] record = new byte[length];
+            in.readFully(record);
+
+            if (kind == ReplicationStream.RECORD) {
+                last = target.apply(record, clock);
+                // Bounds what can be queued on the apply thread without waiting on every record
+                if (++unconfirmed >= MAX_UNCONFIRMED) {
+                    last.join();
+                    unconfirmed = 0;
+                }
+            } else if (kind == ReplicationStream.SNAPSHOT) {
+                target.snapshotStarted();
+                inSnapshot = true;
+            } else if (kind == ReplicationStream.SNAPSHOT_END) {
+                target.snapshotEnded();
+                last.join();
+                inSnapshot = false;
+                synced = true;
+            } else if (kind == ReplicationStream.HEARTBEAT) {
+                last.join();
+                target.heartbeat(clock);
+            } else {
+                throw new IOException("Unknown replication frame " + kind);
+            }
+            if (!inSnapshot) {
+                epoch = streamEpoch;
+                seq = frameSeq;
+            }
+            primaryClock = clock;
+            lastContact = System.currentTimeMillis();
+        }
+    }
+
+    // Latin-1 line up to CRLF or LF; null at end of stream
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) b);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    // The data of a chunked body as one stream; ends at the last chunk
+    private static class ChunkedInputStream extends InputStream {
+        private final InputStream in;
+        private int remaining; // Bytes left in the current chunk
+        private boolean ended;
+
+        ChunkedInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (ended) {
+                return -1;
+            }
+            if (remaining == 0) {
+                String size = readLine(in);
+                if (size == null) {
+                    throw new EOFException("Connection closed in chunked body");
+                }
+                int semicolon = size.indexOf(';');
+                try {
+                    remaining = Integer.parseInt((semicolon >= 0 ? size.substring(0, semicolon) : size).trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed chunk size: " + size);
+                }
+                if (remaining == 0) {
+                    ended = true;
+                    return -1;
+                }
+            }
+            int n = in.read(buffer, offset, Math.min(length, remaining));
+            if (n == -1) {
+                throw new EOFException("Connection closed in chunked body");
+            }
+            remaining -= n;
+            if (remaining == 0) {
+                readLine(in); // CRLF after the chunk data
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// The primary's recent write-ahead log records, kept in memory for replicas to stream. Records are
+// appended once they are durable, numbered from 1 in log order, and tagged with the primary's Lamport
+// clock. The oldest are dropped once the log holds more than its byte budget; a replica that falls
+// further behind starts again from a snapshot. Positions are only meaningful within one epoch, which
+// changes every time the server starts.
+public class ReplicationLog {
+    // One log record with its position
+    public static class Entry {
+        final long seq;
+        final long clock;
+        final byte[] record;
+
+        Entry(long seq, long clock, byte[] record) {
+            this.seq = seq;
+            this.clock = clock;
+            this.record = record;
+        }
+    }
+
+    private final String epoch = Long.toHexString(System.currentTimeMillis());
+    private final long maxBytes;
+    private Entry[] ring = new Entry[1024];
+    private int start; // Index of the oldest entry
+    private int count;
+    private long bytes;
+    private long floor; // Records at or before this position may be missing
+    private long latest;
+    private List<Runnable> waiters = new ArrayList<>();
+
+    public ReplicationLog(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public String getEpoch() {
+        return epoch;
+    }
+
+    // Called by the log's writer thread. Waiters are woken outside the lock.
+    public void append(byte[] record, long clock) {
+        List<Runnable> woken;
+        synchronized (this) {
+            if (count == ring.length) {
+                grow();
+            }
+            latest++;
+            ring[(start + count) % ring.length] = new Entry(latest, clock, record);
+            count++;
+            bytes += record.length;
+            while (bytes > maxBytes && count > 1) {
+                Entry oldest = ring[start];
+                ring[start] = null;
+                start = (start + 1) % ring.length;
+                count--;
+                bytes -= oldest.record.length;
+                floor = oldest.seq;
+            }
+            if (waiters.isEmpty()) {
+                return;
+            }
+            woken = waiters;
+            waiters = new ArrayList<>();
+        }
+        for (Runnable waiter : woken) {
+            waiter.run();
+        }
+    }
+
+    private void grow() {
+        Entry[] grown = new Entry[ring.length * 2];
+        for (int i = 0; i < count; i++) {
+            grown[i] = ring[(start + i) % ring.length];
+        }
+        ring = grown;
+        start = 0;
+    }
+
+    public synchronized long getLatestSeq() {
+        return latest;
+    }
+
+    // True if every record after the position is still in the log
+    public synchronized boolean covers(String epoch, long seq) {
+        return this.epoch.equals(epoch) && seq >= floor && seq <= latest;
+    }
+
+    // Records after the position, oldest first, up to about maxBytes; null if they are no longer all here
+    public synchronized List<Entry> after(long seq, int maxBytes) {
+        if (seq < floor || seq > latest) {
+            return null;
+        }
+        // Positions are consecutive, so the first newer record is at a known offset
+        int first = (int) (seq - (latest - count));
+        List<Entry> entries = new ArrayList<>();
+        int size = 0;
+        for (int i = first; i < count && (entries.isEmpty() || size < maxBytes); i++) {
+            Entry entry = ring[(start + i) % ring.length];
+            entries.add(entry);
+            size += entry.record.length;
+        }
+        return entries;
+    }
+
+    // Runs the waiter once a record after the position is appended, straight away if there is one.
+    // Waiters run on the log's writer thread and must hand real work elsewhere.
+    public void whenAppendedAfter(long seq, Runnable waiter) {
+        synchronized (this) {
+            if (latest <= seq) {
+                waiters.add(waiter);
+                return;
+            }
+        }
+        waiter.run();
+    }
+
+    public synchronized boolean cancel(Runnable waiter) {
+        return waiters.remove(waiter);
+    }
+}
@@ -0,0 +1,163 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+
+// The primary's side of one replica's connection (GET /replication). The body is a sequence of
+// frames: kind, log position, the primary's Lamport clock, then a length and a write-ahead log record.
+// A replica that is not caught up first gets SNAPSHOT, a PUT record per station and SNAPSHOT_END; the
+// log records after the snapshot's position follow. While nothing is written a HEARTBEAT goes out now
+// and then, so the replica knows how stale it is. A replica that falls behind the log has its stream
+// ended and reconnects.
+public class ReplicationStream implements HttpResponse.LiveStream {
+    public static final byte RECORD = 1;
+    public static final byte SNAPSHOT = 2;
+    public static final byte SNAPSHOT_END = 3;
+    public static final byte HEARTBEAT = 4;
+    private static final int MAX_PART_BYTES = 256 * 1024;
+    private static final int SNAPSHOT_STATIONS_PER_PART = 512;
+
+    // A station as it was when the snapshot was taken
+    public static class Station {
+        final WeatherData data;
+        final long timestamp;
+
+        public Station(WeatherData data, long timestamp) {
+            this.data = data;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private final ReplicationLog log;
+    private final LongSupplier clock;
+    private final ScheduledExecutorService timer;
+    private final long heartbeatInterval;
+    private List<Station> snapshot; // Stations still to send, or null once the snapshot is out
+    private int snapshotSent = -1; // -1 until the SNAPSHOT frame has gone out
+    private long cursor;
+    private long lastSent;
+    private boolean finished;
+    private volatile boolean closed;
+
+    // Streams the log after cursor; with a snapshot, sends it first. The snapshot must hold the state
+    // as of cursor.
+    public ReplicationStream(ReplicationLog log, long cursor, List<Station> snapshot, LongSupplier clock,
+                             ScheduledExecutorService timer, long heartbeatInterval) {
+        this.log = log;
+        this.cursor = cursor;
+        this.snapshot = snapshot;
+        this.clock = clock;
+        this.timer = timer;
+        this.heartbeatInterval = heartbeatInterval;
+    }
+
+    @Override
+    public synchronized byte[] poll() {
+        if (finished || closed) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        try {
+            if (snapshot != null) {
+                return nextSnapshotPart(now);
+            }
+            List<ReplicationLog.Entry> entries = log.after(cursor, MAX_PART_BYTES);
+            if (entries == null) {
+                finished = true; // Fell behind; the replica reconnects and gets a snapshot
+                return null;
+            }
+            if (!entries.isEmpty()) {
+                ByteArrayOutputStream part = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(part);
+                for (ReplicationLog.Entry entry : entries) {
+                    writeFrame(out, RECORD, entry.seq, entry.clock, entry.record);
+                }
+                cursor = entries.get(entries.size() - 1).seq;
+                lastSent = now;
+                return part.toByteArray();
+            }
+            if (now - lastSent >= heartbeatInterval) {
+                lastSent = now;
+                return frame(HEARTBEAT, cursor, clock.getAsLong(), null);
+            }
+            return null;
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Cannot happen for an in-memory stream
+        }
+    }
+
+    private byte[] nextSnapshotPart(long now) throws IOException {
+        ByteArrayOutputStream part = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(part);
+        long snapshotClock = clock.getAsLong();
+        if (snapshotSent < 0) {
+            writeFrame(out, SNAPSHOT, cursor, snapshotClock, null);
+            snapshotSent = 0;
+        }
+        int end = Math.min(snapshot.size(), snapshotSent + SNAPSHOT_STATIONS_PER_PART);
+        for (int i = snapshotSent; i < end; i++) {
+            Station station = snapshot.get(i);
+            writeFrame(out, RECORD, cursor, snapshotClock, WriteAheadLog.encodePut(station.data, station.timestamp));
+        }
+        snapshotSent = end;
+        if (end == snapshot.size()) {
+            writeFrame(out, SNAPSHOT_END, cursor, snapshotClock, null);
+            snapshot = null;
+        }
+        lastSent = now;
+        return part.toByteArray();
+    }
+
+    private static byte[] frame(byte kind, long seq, long clock, byte[] record) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(21);
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeFrame(out, kind, seq, clock, record);
+        return bytes.toByteArray();
+    }
+
+    private static void writeFrame(DataOutputStream out, byte kind, long seq, long clock, byte[] record) throws IOException {
+        out.writeByte(kind);
+        out.writeLong(seq);
+        out.writeLong(clock);
+        out.writeInt(record == null ? 0 : record.length);
+        if (record != null) {
+            out.write(record);
+        }
+    }
+
+    @Override
+    public synchronized boolean isFinished() {
+        return finished || closed;
+    }
+
+    // Ready when the log grows or a heartbeat is due, whichever comes first
+    @Override
+    public void onReady(Runnable listener) {
+        long after;
+        long delay;
+        synchronized (this) {
+            after = cursor;
+            delay = Math.max(0, heartbeatInterval - (System.currentTimeMillis() - lastSent));
+        }
+        AtomicBoolean fired = new AtomicBoolean();
+        Runnable fire = () -> {
+            if (fired.compareAndSet(false, true)) {
+                listener.run();
+            }
+        };
+        timer.schedule(() -> {
+            log.cancel(fire);
+            fire.run();
+        }, delay, TimeUnit.MILLISECONDS);
+        log.whenAppendedAfter(after, fire);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+}
@@ -0,0 +1,89 @@
+import java.util.HashMap;
+import java.util.Map;
+
+// Command line configuration for the Aggregation Server.
+// Usage: AggregationServer [port] [--key=value ...]
+public class ServerConfig {
+    // How accepted connections are executed
+    public enum ExecutorMode { VIRTUAL, POOL, THREAD }
+
+    // Which front end accepts and reads connections
+    public enum IoMode { BLOCKING, NIO }
+
+    private int port = 4567;
+    private ExecutorMode executorMode = ExecutorMode.POOL;
+    private int workers = Math.max(4, Runtime.getRuntime().availableProcessors() * 8);
+    private int queueCapacity = 1024;
+    private int backlog = 512;
+    private IoMode ioMode = IoMode.BLOCKING;
+    private int ioThreads = 2;
+    private int idleTimeout = 30000;
+    private boolean keepAlive = true;
+    private int maxRequestsPerConnection = 1000;
+
+    private final Map<String, String> options = new HashMap<>();
+
+    public static ServerConfig parse(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                int eq = arg.indexOf('=');
+                if (eq < 0) {
+                    config.options.put(arg.substring(2), "true");
+                } else {
+                    config.options.put(arg.substring(2, eq), arg.substring(eq + 1));
+                }
+            } else {
+                config.port = Integer.parseInt(arg);
+            }
+        }
+
+        String mode = config.options.get("executor");
+        if (mode != null) {
+            config.executorMode = ExecutorMode.valueOf(mode.toUpperCase());
+        }
+        config.workers = config.getInt("workers", config.workers);
+        config.queueCapacity = config.getInt("queue", config.queueCapacity);
+        config.backlog = config.getInt("backlog", config.backlog);
+        String io = config.options.get("io");
+        if (io != null) {
+            config.ioMode = IoMode.valueOf(io.toUpperCase());
+        }
+        config.ioThreads = config.getInt("io-threads", config.ioThreads);
+        config.idleTimeout = config.getInt("idle-timeout", config.idleTimeout);
+        config.keepAlive = config.getBoolean("keep-alive", config.keepAlive);
+        config.maxRequestsPerConnection = config.getInt("max-requests", config.maxRequestsPerConnection);
+        return config;
+    }
+
+    public int getPort() { return port; }
+    public ExecutorMode getExecutorMode() { return executorMode; }
+    public int getWorkers() { return workers; }
+    public int getQueueCapacity() { return queueCapacity; }
+    public int getBacklog() { return backlog; }
+    public IoMode getIoMode() { return ioMode; }
+    public int getIoThreads() { return ioThreads; }
+    public int getIdleTimeout() { return idleTimeout; }
+    public boolean isKeepAlive() { return keepAlive; }
+    public int getMaxRequestsPerConnection() { return maxRequestsPerConnection; }
+
+    // Raw access for options owned by other components
+    public String get(String key, String defaultValue) {
+        return options.getOrDefault(key, defaultValue);
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = options.get(key);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = options.get(key);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = options.get(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+}
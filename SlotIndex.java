@@ -0,0 +1,148 @@
+import java.util.Arrays;
+
+// Assigns station ids to dense slot numbers for the column-oriented stores, which keep one entry per
+// slot in each column. Ids are found through an open-addressing table of ints with linear probing, so
+// lookups allocate nothing, and freed slots are handed out again before new ones. Not thread-safe.
+public class SlotIndex {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private String[] ids = new String[INITIAL_CAPACITY];
+    private int slotCount; // Slots ever used; slots below it are live unless their id is null
+    private int[] freeSlots = new int[16];
+    private int freeCount;
+    private int size;
+
+    // id -> slot + 1; 0 marks an empty bucket. Kept at most half full.
+    private int[] table = new int[INITIAL_CAPACITY * 2];
+
+    // The id's slot, or -1
+    public int slotOf(String id) {
+        return table[findBucket(id)] - 1;
+    }
+
+    // Gives a new id a slot, reusing a freed one if there is any
+    public int add(String id) {
+        int slot;
+        if (freeCount > 0) {
+            slot = freeSlots[--freeCount];
+        } else {
+            if (slotCount == ids.length) {
+                ids = Arrays.copyOf(ids, ids.length * 2);
+            }
+            slot = slotCount++;
+        }
+        ids[slot] = id;
+        insert(id, slot);
+        return slot;
+    }
+
+    // Puts an id back into a known slot when a store is reopened. Call rebuildFreeSlots once every id
+    // is restored.
+    public void restore(String id, int slot) {
+        while (slot >= ids.length) {
+            ids = Arrays.copyOf(ids, ids.length * 2);
+        }
+        slotCount = Math.max(slotCount, slot + 1);
+        ids[slot] = id;
+        insert(id, slot);
+    }
+
+    public void rebuildFreeSlots() {
+        freeCount = 0;
+        for (int slot = slotCount - 1; slot >= 0; slot--) {
+            if (ids[slot] == null) {
+                pushFree(slot);
+            }
+        }
+    }
+
+    // Frees the id's slot and returns it, or -1 if the id has none
+    public int remove(String id) {
+        int bucket = findBucket(id);
+        if (table[bucket] == 0) {
+            return -1;
+        }
+        int slot = table[bucket] - 1;
+        deleteBucket(bucket);
+        ids[slot] = null;
+        pushFree(slot);
+        size--;
+        return slot;
+    }
+
+    // The id in a slot, or null if the slot is free
+    public String idAt(int slot) {
+        return ids[slot];
+    }
+
+    // One past the highest slot ever handed out
+    public int slotLimit() {
+        return slotCount;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void pushFree(int slot) {
+        if (freeCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+        }
+        freeSlots[freeCount++] = slot;
+    }
+
+    // Bucket holding the id, or the empty bucket where it would go
+    private int findBucket(String id) {
+        int mask = table.length - 1;
+        int bucket = hash(id) & mask;
+        while (table[bucket] != 0 && !ids[table[bucket] - 1].equals(id)) {
+            bucket = (bucket + 1) & mask;
+        }
+        return bucket;
+    }
+
+    private void insert(String id, int slot) {
+        if ((size + 1) * 2 > table.length) {
+            rehash(table.length * 2);
+        }
+        table[findBucket(id)] = slot + 1;
+        size++;
+    }
+
+    private void rehash(int buckets) {
+        int[] old = table;
+        table = new int[buckets];
+        int mask = buckets - 1;
+        for (int entry : old) {
+            if (entry != 0) {
+                int bucket = hash(ids[entry - 1]) & mask;
+                while (table[bucket] != 0) {
+                    bucket = (bucket + 1) & mask;
+                }
+                table[bucket] = entry;
+            }
+        }
+    }
+
+    // Backward-shift deletion: later entries of the probe run move up so lookups need no tombstones
+    private void deleteBucket(int bucket) {
+        int mask = table.length - 1;
+        int hole = bucket;
+        int next = (hole + 1) & mask;
+        while (table[next] != 0) {
+            int home = hash(ids[table[next] - 1]) & mask;
+            // Move the entry into the hole unless its home lies cyclically in (hole, next]
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                table[hole] = table[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        table[hole] = 0;
+    }
+
+    private static int hash(String id) {
+        int h = id.hashCode();
+        return h ^ (h >>> 16);
+    }
+}
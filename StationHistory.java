@@ -0,0 +1,229 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Bounded history of observations per station, for trend queries such as the highest air temperature
+// in the last hour. Each station keeps a ring buffer stored column-wise in primitive arrays, keyed by
+// the Lamport clock and wall time of the update, so history costs a few bytes per observation and
+// aggregates run without boxing. Rings start small and grow up to the configured capacity, after which
+// the oldest observation is overwritten.
+public class StationHistory {
+    private static final int INITIAL_CAPACITY = 8;
+
+    // Numeric fields of WeatherData that history keeps, by their JSON names
+    public enum Field {
+        AIR_TEMP("airTemp"),
+        APPARENT_TEMP("apparentTemp"),
+        DEW_POINT("dewPoint"),
+        PRESSURE("pressure"),
+        REL_HUM("relHum"),
+        WIND_SPEED_KMH("windSpeedKmh"),
+        WIND_SPEED_KT("windSpeedKt");
+
+        private final String jsonName;
+
+        Field(String jsonName) {
+            this.jsonName = jsonName;
+        }
+
+        public String getJsonName() {
+            return jsonName;
+        }
+
+        public static Field forName(String name) {
+            for (Field field : values()) {
+                if (field.jsonName.equals(name)) {
+                    return field;
+                }
+            }
+            throw new IllegalArgumentException("Unknown history field: " + name);
+        }
+    }
+
+    // min/max/avg/last over the observations in a window, oldest first
+    public static class Aggregate {
+        int count;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        double sum;
+        double first;
+        double last;
+        long fromTime;
+        long toTime;
+        long fromClock;
+        long toClock;
+
+        public int getCount() { return count; }
+        public double getMin() { return min; }
+        public double getMax() { return max; }
+        public double getAvg() { return count == 0 ? Double.NaN : sum / count; }
+        public double getFirst() { return first; }
+        public double getLast() { return last; }
+        public long getFromTime() { return fromTime; }
+        public long getToTime() { return toTime; }
+        public long getFromClock() { return fromClock; }
+        public long getToClock() { return toClock; }
+    }
+
+    // One station's ring. Written by the apply thread only; readers synchronize with it on the ring.
+    private static class Ring {
+        long[] clocks;
+        long[] times;
+        double[] airTemp;
+        double[] apparentTemp;
+        double[] dewPoint;
+        double[] pressure;
+        int[] relHum;
+        int[] windSpeedKmh;
+        int[] windSpeedKt;
+        int next; // Slot the next observation goes to
+        int size;
+
+        Ring(int capacity) {
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            clocks = new long[capacity];
+            times = new long[capacity];
+            airTemp = new double[capacity];
+            apparentTemp = new double[capacity];
+            dewPoint = new double[capacity];
+            pressure = new double[capacity];
+            relHum = new int[capacity];
+            windSpeedKmh = new int[capacity];
+            windSpeedKt = new int[capacity];
+        }
+
+        synchronized void add(WeatherData data, long clock, long time, int maxCapacity) {
+            if (size == clocks.length && size < maxCapacity) {
+                grow(Math.min(maxCapacity, size * 2));
+            }
+            clocks[next] = clock;
+            times[next] = time;
+            airTemp[next] = data.getAirTemp();
+            apparentTemp[next] = data.getApparentTemp();
+            dewPoint[next] = data.getDewPoint();
+            pressure[next] = data.getPressure();
+            relHum[next] = data.getRelHum();
+            windSpeedKmh[next] = data.getWindSpeedKmh();
+            windSpeedKt[next] = data.getWindSpeedKt();
+            next = (next + 1) % clocks.length;
+            if (size < clocks.length) {
+                size++;
+            }
+        }
+
+        // Takes back the newest observations. The ones a full ring overwrote for them stay lost.
+        synchronized void dropNewest(int count) {
+            int dropped = Math.min(count, size);
+            next = (next - dropped + clocks.length) % clocks.length;
+            size -= dropped;
+        }
+
+        // A full ring starts at next; copy it out oldest first so the new arrays start at slot 0
+        private void grow(int capacity) {
+            long[] oldClocks = clocks, oldTimes = times;
+            double[] oldAirTemp = airTemp, oldApparentTemp = apparentTemp, oldDewPoint = dewPoint, oldPressure = pressure;
+            int[] oldRelHum = relHum, oldWindSpeedKmh = windSpeedKmh, oldWindSpeedKt = windSpeedKt;
+            int start = next;
+            allocate(capacity);
+            for (int i = 0; i < size; i++) {
+                int from = (start + i) % oldClocks.length;
+                clocks[i] = oldClocks[from];
+                times[i] = oldTimes[from];
+                airTemp[i] = oldAirTemp[from];
+                apparentTemp[i] = oldApparentTemp[from];
+                dewPoint[i] = oldDewPoint[from];
+                pressure[i] = oldPressure[from];
+                relHum[i] = oldRelHum[from];
+                windSpeedKmh[i] = oldWindSpeedKmh[from];
+                windSpeedKt[i] = oldWindSpeedKt[from];
+            }
+            next = size;
+        }
+
+        private double value(Field field, int slot) {
+            switch (field) {
+                case AIR_TEMP: return airTemp[slot];
+                case APPARENT_TEMP: return apparentTemp[slot];
+                case DEW_POINT: return dewPoint[slot];
+                case PRESSURE: return pressure[slot];
+                case REL_HUM: return relHum[slot];
+                case WIND_SPEED_KMH: return windSpeedKmh[slot];
+                case WIND_SPEED_KT: return windSpeedKt[slot];
+                default: throw new IllegalArgumentException(field.name());
+            }
+        }
+
+        // Walks back from the newest observation while it is inside the time window. Observations are
+        // appended in apply order, so wall time only grows along the ring. Clocks from different senders
+        // need not, so the clock bound filters instead of ending the walk.
+        synchronized Aggregate aggregate(Field field, long fromTime, long fromClock) {
+            Aggregate result = new Aggregate();
+            int capacity = clocks.length;
+            for (int i = 0; i < size; i++) {
+                int slot = (next - 1 - i + capacity) % capacity;
+                if (times[slot] < fromTime) {
+                    break;
+                }
+                if (clocks[slot] < fromClock) {
+                    continue;
+                }
+                double value = value(field, slot);
+                if (result.count == 0) {
+                    result.last = value;
+                    result.toTime = times[slot];
+                    result.toClock = clocks[slot];
+                }
+                result.count++;
+                result.min = Math.min(result.min, value);
+                result.max = Math.max(result.max, value);
+                result.sum += value;
+                result.first = value;
+                result.fromTime = times[slot];
+                result.fromClock = clocks[slot];
+            }
+            return result;
+        }
+    }
+
+    private final int capacity;
+    private final Map<String, Ring> rings = new ConcurrentHashMap<>();
+
+    // Keeps up to capacity observations per station; 0 disables history
+    public StationHistory(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    // Called by the apply thread for every applied update
+    public void record(WeatherData data, long clock, long time) {
+        if (capacity <= 0) {
+            return;
+        }
+        rings.computeIfAbsent(data.getId(), id -> new Ring(Math.min(INITIAL_CAPACITY, capacity)))
+                .add(data, clock, time, capacity);
+    }
+
+    public void remove(String id) {
+        rings.remove(id);
+    }
+
+    // Takes back a station's newest observations, recorded by updates that could not be logged
+    public void dropNewest(String id, int count) {
+        Ring ring = rings.get(id);
+        if (ring != null) {
+            ring.dropNewest(count);
+        }
+    }
+
+    // Aggregates a field over observations at or after both fromTime (ms) and fromClock; null if the
+    // station has no history
+    public Aggregate aggregate(String id, Field field, long fromTime, long fromClock) {
+        Ring ring = rings.get(id);
+        return ring == null ? null : ring.aggregate(field, fromTime, fromClock);
+    }
+}
@@ -0,0 +1,209 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+// Secondary indexes over the current stations: by state, and a fixed grid of lat/lon cells for
+// bounding-box and nearest-station queries. Kept up to date by the PUT and expiry paths.
+public class StationIndex {
+    private static final double EARTH_RADIUS_KM = 6371.0;
+    private static final double KM_PER_DEGREE = Math.PI * EARTH_RADIUS_KM / 180;
+
+    // Position of an indexed station, needed to unindex it when it moves or expires
+    public static class Location {
+        final String id;
+        final String state;
+        final double lat;
+        final double lon;
+
+        Location(String id, String state, double lat, double lon) {
+            this.id = id;
+            this.state = state;
+            this.lat = lat;
+            this.lon = lon;
+        }
+
+        public String getId() { return id; }
+        public String getState() { return state; }
+        public double getLat() { return lat; }
+        public double getLon() { return lon; }
+    }
+
+    private final double cellDegrees;
+    private final int latCells;
+    private final int lonCells;
+    private final Map<String, Location> locations = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> byState = new ConcurrentHashMap<>();
+    private final Map<Integer, Set<String>> grid = new ConcurrentHashMap<>();
+
+    public StationIndex(double cellDegrees) {
+        this.cellDegrees = cellDegrees;
+        this.latCells = (int) Math.ceil(180 / cellDegrees);
+        this.lonCells = (int) Math.ceil(360 / cellDegrees);
+    }
+
+    // Callers serialize updates (the server's apply pipeline), so put and remove of the same
+    // id never interleave
+    public void put(WeatherData data) {
+        Location location = new Location(data.getId(), normalizeState(data.getState()), data.getLat(), data.getLon());
+        Location previous = locations.put(data.getId(), location);
+        if (previous != null) {
+            unindex(previous);
+        }
+        if (location.state != null) {
+            byState.computeIfAbsent(location.state, key -> ConcurrentHashMap.newKeySet()).add(location.id);
+        }
+        grid.computeIfAbsent(cell(location.lat, location.lon), key -> ConcurrentHashMap.newKeySet()).add(location.id);
+    }
+
+    public void remove(String id) {
+        Location previous = locations.remove(id);
+        if (previous != null) {
+            unindex(previous);
+        }
+    }
+
+    public Location get(String id) {
+        return locations.get(id);
+    }
+
+    public List<String> inState(String state) {
+        Set<String> ids = byState.get(normalizeState(state));
+        return ids == null ? Collections.<String>emptyList() : new ArrayList<>(ids);
+    }
+
+    // Stations inside the box, bounds inclusive
+    public List<String> inBox(double minLat, double minLon, double maxLat, double maxLon) {
+        List<String> result = new ArrayList<>();
+        int fromRow = row(minLat);
+        int toRow = row(maxLat);
+        int fromColumn = column(minLon);
+        int toColumn = column(maxLon);
+        for (int row = fromRow; row <= toRow; row++) {
+            for (int column = fromColumn; column <= toColumn; column++) {
+                Set<String> ids = grid.get(row * lonCells + column);
+                if (ids == null) {
+                    continue;
+                }
+                for (String id : ids) {
+                    Location location = locations.get(id);
+                    if (location != null && location.lat >= minLat && location.lat <= maxLat
+                            && location.lon >= minLon && location.lon <= maxLon) {
+                        result.add(id);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    // Up to n stations matching the filter, nearest first by great-circle distance.
+    // Searches rings of cells outwards from the point and stops once no unvisited cell can be closer
+    // than the n-th best station found so far.
+    public List<String> nearest(double lat, double lon, int n, Predicate<Location> filter) {
+        PriorityQueue<double[]> best = new PriorityQueue<>((a, b) -> Double.compare(b[0], a[0]));
+        List<Location> found = new ArrayList<>();
+        Set<Integer> visited = new HashSet<>();
+        int centerRow = row(lat);
+        int centerColumn = column(lon);
+        int maxRing = Math.max(latCells, lonCells / 2);
+
+        for (int ring = 0; ring <= maxRing; ring++) {
+            for (int row = centerRow - ring; row <= centerRow + ring; row++) {
+                if (row < 0 || row >= latCells) {
+                    continue;
+                }
+                boolean edgeRow = row == centerRow - ring || row == centerRow + ring;
+                int step = edgeRow ? 1 : Math.max(1, 2 * ring);
+                for (int column = centerColumn - ring; column <= centerColumn + ring; column += step) {
+                    // Wide rings wrap around the antimeridian onto cells already visited
+                    int cell = row * lonCells + Math.floorMod(column, lonCells);
+                    if (!visited.add(cell)) {
+                        continue;
+                    }
+                    Set<String> ids = grid.get(cell);
+                    if (ids == null) {
+                        continue;
+                    }
+                    for (String id : ids) {
+                        Location location = locations.get(id);
+                        if (location == null || (filter != null && !filter.test(location))) {
+                            continue;
+                        }
+                        double distance = distanceKm(lat, lon, location.lat, location.lon);
+                        if (best.size() < n || distance < best.peek()[0]) {
+                            found.add(location);
+                            best.add(new double[] {distance, found.size() - 1});
+                            if (best.size() > n) {
+                                best.poll();
+                            }
+                        }
+                    }
+                }
+            }
+            if (best.size() == n && best.peek()[0] <= lowerBoundKm(lat, ring)) {
+                break;
+            }
+        }
+
+        List<double[]> ordered = new ArrayList<>(best);
+        ordered.sort((a, b) -> Double.compare(a[0], b[0]));
+        List<String> result = new ArrayList<>(ordered.size());
+        for (double[] entry : ordered) {
+            result.add(found.get((int) entry[1]).id);
+        }
+        return result;
+    }
+
+    public int size() {
+        return locations.size();
+    }
+
+    public static double distanceKm(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    // Smallest possible distance from the point to any cell outside the given ring
+    private double lowerBoundKm(double lat, int ring) {
+        double widestLat = Math.min(90, Math.abs(lat) + (ring + 1) * cellDegrees);
+        return ring * cellDegrees * KM_PER_DEGREE * Math.cos(Math.toRadians(widestLat));
+    }
+
+    private void unindex(Location location) {
+        if (location.state != null) {
+            Set<String> ids = byState.get(location.state);
+            if (ids != null) {
+                ids.remove(location.id);
+            }
+        }
+        Set<String> ids = grid.get(cell(location.lat, location.lon));
+        if (ids != null) {
+            ids.remove(location.id);
+        }
+    }
+
+    private int cell(double lat, double lon) {
+        return row(lat) * lonCells + column(lon);
+    }
+
+    private int row(double lat) {
+        return Math.min(latCells - 1, Math.max(0, (int) Math.floor((lat + 90) / cellDegrees)));
+    }
+
+    private int column(double lon) {
+        return Math.min(lonCells - 1, Math.max(0, (int) Math.floor((lon + 180) / cellDegrees)));
+    }
+
+    private static String normalizeState(String state) {
+        return state == null ? null : state.trim().toUpperCase();
+    }
+}
@@ -0,0 +1,143 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+// A filtered read of the station store, parsed from the query string of GET /weather.json:
+//   id=<station>                         a single station
+//   state=<state>                        every station in a state
+//   bbox=<minLat>,<minLon>,<maxLat>,<maxLon>  stations inside a box, bounds inclusive
+//   near=<lat>,<lon>[&n=<count>]         the nearest stations, closest first (default 10)
+// Parameters can be combined; every given condition must hold.
+public class StationQuery {
+    private static final int DEFAULT_NEAREST = 10;
+    private static final int MAX_NEAREST = 1000;
+
+    private String id;
+    private String state;
+    private double[] bbox;
+    private double[] near;
+    private int count = DEFAULT_NEAREST;
+
+    // Throws IllegalArgumentException for unknown, malformed or out-of-range parameters
+    public static StationQuery parse(Map<String, String> parameters) {
+        StationQuery query = new StationQuery();
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            String value = parameter.getValue();
+            switch (parameter.getKey()) {
+                case "id":
+                    query.id = value;
+                    break;
+                case "state":
+                    query.state = value.trim().toUpperCase();
+                    break;
+                case "bbox":
+                    query.bbox = parseNumbers(value, 4, "bbox");
+                    checkLatLon(query.bbox[0], query.bbox[1]);
+                    checkLatLon(query.bbox[2], query.bbox[3]);
+                    if (query.bbox[0] > query.bbox[2] || query.bbox[1] > query.bbox[3]) {
+                        throw new IllegalArgumentException("bbox must be minLat,minLon,maxLat,maxLon");
+                    }
+                    break;
+                case "near":
+                    query.near = parseNumbers(value, 2, "near");
+                    checkLatLon(query.near[0], query.near[1]);
+                    break;
+                case "n":
+                    try {
+                        query.count = Integer.parseInt(value);
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("n must be an integer");
+                    }
+                    if (query.count < 1 || query.count > MAX_NEAREST) {
+                        throw new IllegalArgumentException("n must be between 1 and " + MAX_NEAREST);
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown query parameter: " + parameter.getKey());
+            }
+        }
+        if (query.id == null && query.state == null && query.bbox == null && query.near == null) {
+            throw new IllegalArgumentException("Query needs id, state, bbox or near");
+        }
+        if (parameters.containsKey("n") && query.near == null) {
+            throw new IllegalArgumentException("n is only valid with near");
+        }
+        return query;
+    }
+
+    // The station asked for by id, or null
+    public String getId() {
+        return id;
+    }
+
+    // The point asked for by near, as lat and lon, or null
+    public double[] getNear() {
+        return near;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    // Ids of the matching stations, in response order. Starts from the most selective index and
+    // filters by the remaining conditions.
+    public List<String> execute(StationIndex index) {
+        if (near != null) {
+            return index.nearest(near[0], near[1], count, this::matches);
+        }
+        if (id != null) {
+            StationIndex.Location location = index.get(id);
+            return location != null && matches(location)
+                    ? Collections.singletonList(id)
+                    : Collections.<String>emptyList();
+        }
+        List<String> candidates = bbox != null
+                ? index.inBox(bbox[0], bbox[1], bbox[2], bbox[3])
+                : index.inState(state);
+        List<String> result = new ArrayList<>(candidates.size());
+        for (String candidate : candidates) {
+            StationIndex.Location location = index.get(candidate);
+            if (location != null && matches(location)) {
+                result.add(candidate);
+            }
+        }
+        return result;
+    }
+
+    private boolean matches(StationIndex.Location location) {
+        if (id != null && !id.equals(location.getId())) {
+            return false;
+        }
+        if (state != null && !state.equals(location.getState())) {
+            return false;
+        }
+        if (bbox != null && (location.getLat() < bbox[0] || location.getLat() > bbox[2]
+                || location.getLon() < bbox[1] || location.getLon() > bbox[3])) {
+            return false;
+        }
+        return true;
+    }
+
+    private static double[] parseNumbers(String value, int expected, String name) {
+        String[] parts = value.split(",");
+        if (parts.length != expected) {
+            throw new IllegalArgumentException(name + " needs " + expected + " comma-separated numbers");
+        }
+        double[] numbers = new double[expected];
+        for (int i = 0; i < expected; i++) {
+            try {
+                numbers[i] = Double.parseDouble(parts[i].trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(name + " contains an invalid number: " + parts[i]);
+            }
+        }
+        return numbers;
+    }
+
+    private static void checkLatLon(double lat, double lon) {
+        if (!(lat >= -90 && lat <= 90 && lon >= -180 && lon <= 180)) { // Also rejects NaN
+            throw new IllegalArgumentException("Invalid latitude or longitude");
+        }
+    }
+}
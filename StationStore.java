@@ -0,0 +1,31 @@
+// Current weather data and last update time of every station, in the role the original
+// weatherDataMap and serverTimestamps maps played. Only the apply pipeline writes and reads it
+// (and startup, before the pipeline runs), so implementations need not be thread-safe.
+// Readers of the feed never touch the store; they use the encoded fragments in FeedCache.
+public interface StationStore {
+    // Receives every station during forEach
+    interface Visitor {
+        void visit(WeatherData data, long timestamp);
+    }
+
+    // Stores the station and returns true if it was not in the store before
+    boolean put(WeatherData data, long timestamp);
+
+    // The stored station, or null
+    WeatherData get(String id);
+
+    boolean contains(String id);
+
+    // Time of the station's last update, or -1 if it is not stored
+    long getTimestamp(String id);
+
+    // Restarts the station's expiry from the given time; returns false if it is not stored
+    boolean touch(String id, long timestamp);
+
+    // Returns true if the station was stored
+    boolean remove(String id);
+
+    int size();
+
+    void forEach(Visitor visitor);
+}
@@ -0,0 +1,75 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Hashed timing wheel holding exactly one pending expiry per station.
+// Rescheduling a station replaces its previous entry instead of queueing another one, so refreshed
+// stations leave nothing behind. Every deadline is at most one timeout ahead, so a single level of
+// slots spanning the timeout is enough; entries further out simply wait for a later rotation.
+public class TimingWheel {
+    private final long tickMillis;
+    private final long timeout;
+    private final List<Set<WeatherEntry>> slots;
+    private final ConcurrentHashMap<String, WeatherEntry> scheduled = new ConcurrentHashMap<>();
+    private volatile long lastTick;
+
+    public TimingWheel(long tickMillis, long timeout, long now) {
+        this.tickMillis = tickMillis;
+        this.timeout = timeout;
+        int slotCount = (int) (timeout / tickMillis) + 2;
+        this.slots = new ArrayList<>(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            slots.add(ConcurrentHashMap.newKeySet());
+        }
+        this.lastTick = now / tickMillis - 1;
+    }
+
+    // Schedules the station to expire one timeout after the given update time
+    public void schedule(String id, long timestamp) {
+        WeatherEntry entry = new WeatherEntry(id, timestamp);
+        scheduled.compute(id, (key, previous) -> {
+            if (previous != null) {
+                slots.get(previous.slot).remove(previous);
+            }
+            // Deadlines already in the past go to the next tick to be processed
+            long tick = Math.max((timestamp + timeout) / tickMillis, lastTick + 1);
+            entry.slot = (int) (tick % slots.size());
+            slots.get(entry.slot).add(entry);
+            return entry;
+        });
+    }
+
+    public void cancel(String id) {
+        WeatherEntry previous = scheduled.remove(id);
+        if (previous != null) {
+            slots.get(previous.slot).remove(previous);
+        }
+    }
+
+    // Processes every tick that has fully elapsed and returns the stations whose deadline has passed
+    public List<String> advance(long now) {
+        List<String> expired = new ArrayList<>();
+        long nowTick = now / tickMillis - 1;
+        long from = Math.max(lastTick + 1, nowTick - slots.size() + 1);
+        for (long tick = from; tick <= nowTick; tick++) {
+            Set<WeatherEntry> slot = slots.get((int) (tick % slots.size()));
+            for (WeatherEntry entry : slot) {
+                if (now - entry.timestamp > timeout) {
+                    slot.remove(entry);
+                    // Only the station's current entry may expire it
+                    if (scheduled.remove(entry.id, entry)) {
+                        expired.add(entry.id);
+                    }
+                }
+            }
+        }
+        lastTick = nowTick;
+        return expired;
+    }
+
+    // Number of stations with a pending expiry
+    public int size() {
+        return scheduled.size();
+    }
+}
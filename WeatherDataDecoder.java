@@ -0,0 +1,603 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.JsonSyntaxException;
+
+// Hand-written decoder for a single WeatherData JSON object, reading straight from the UTF-8 request
+// bytes. Field names are matched against the schema without creating Strings, numbers are parsed in
+// place, and the low-cardinality fields reuse interned Strings. Accepts the same documents as Gson
+// for this schema (unknown fields are skipped, null leaves a field at its default) but is strict JSON.
+public class WeatherDataDecoder {
+    private static final byte[][] FIELDS = {
+        ascii("id"), ascii("name"), ascii("state"), ascii("timeZone"), ascii("lat"), ascii("lon"),
+        ascii("localDateTime"), ascii("localDateTimeFull"), ascii("airTemp"), ascii("apparentTemp"),
+        ascii("cloud"), ascii("dewPoint"), ascii("pressure"), ascii("relHum"), ascii("windDir"),
+        ascii("windSpeedKmh"), ascii("windSpeedKt")
+    };
+    // Schema indexes grouped by name length, so a name is compared against at most three candidates
+    private static final int[][] FIELDS_BY_LENGTH = groupByLength(FIELDS);
+    private static final int ID = 0, NAME = 1, STATE = 2, TIME_ZONE = 3, LAT = 4, LON = 5,
+            LOCAL_DATE_TIME = 6, LOCAL_DATE_TIME_FULL = 7, AIR_TEMP = 8, APPARENT_TEMP = 9, CLOUD = 10,
+            DEW_POINT = 11, PRESSURE = 12, REL_HUM = 13, WIND_DIR = 14, WIND_SPEED_KMH = 15, WIND_SPEED_KT = 16;
+
+    // Exact powers of ten for the fast double path; every one of these is representable in a double
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private static final int MAX_DEPTH = 64; // Nesting allowed in the values of unknown fields
+
+    private static final Interner STATES = new Interner();
+    private static final Interner TIME_ZONES = new Interner();
+    private static final Interner CLOUDS = new Interner();
+    private static final Interner WIND_DIRS = new Interner();
+
+    private final byte[] in;
+    private final int end;
+    private int pos;
+
+    private WeatherDataDecoder(byte[] in, int offset, int length) {
+        this.in = in;
+        this.pos = offset;
+        this.end = offset + length;
+    }
+
+    public static WeatherData decode(byte[] json) {
+        return decode(json, 0, json.length);
+    }
+
+    // Decodes and validates; throws JsonSyntaxException for malformed JSON and IllegalArgumentException
+    // for out-of-range values, like JSONParser.parseWeatherData
+    public static WeatherData decode(byte[] json, int offset, int length) {
+        WeatherDataDecoder decoder = new WeatherDataDecoder(json, offset, length);
+        decoder.skipWhitespace();
+        WeatherData data = decoder.readObject();
+        decoder.skipWhitespace();
+        if (decoder.pos != decoder.end) {
+            throw decoder.error("Unexpected data after the object");
+        }
+        JSONParser.validate(data);
+        return data;
+    }
+
+    // Decodes a JSON array of stations, or newline-delimited objects (NDJSON). Stations are not validated
+    // so the caller can report each one separately; malformed JSON anywhere rejects the whole document.
+    public static List<WeatherData> decodeAll(byte[] json, boolean ndjson) {
+        WeatherDataDecoder decoder = new WeatherDataDecoder(json, 0, json.length);
+        List<WeatherData> stations = new ArrayList<>();
+        if (ndjson) {
+            while (true) {
+                decoder.skipWhitespace();
+                if (decoder.pos == decoder.end) {
+                    return stations;
+                }
+                stations.add(decoder.readObject());
+                decoder.skipSpacesInLine();
+                if (decoder.pos < decoder.end && decoder.in[decoder.pos] != '\n') {
+                    throw decoder.error("Expected one station per line");
+                }
+            }
+        }
+
+        decoder.skipWhitespace();
+        decoder.expect('[');
+        decoder.skipWhitespace();
+        if (decoder.peek() == ']') {
+            decoder.pos++;
+        } else {
+            while (true) {
+                decoder.skipWhitespace();
+                stations.add(decoder.readObject());
+                decoder.skipWhitespace();
+                byte b = decoder.next();
+                if (b == ']') {
+                    break;
+                }
+                if (b != ',') {
+                    throw decoder.error("Expected ',' or ']'");
+                }
+            }
+        }
+        decoder.skipWhitespace();
+        if (decoder.pos != decoder.end) {
+            throw decoder.error("Unexpected data after the array");
+        }
+        return stations;
+    }
+
+    private WeatherData readObject() {
+        WeatherData data = new WeatherData();
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+            return data;
+        }
+        while (true) {
+            skipWhitespace();
+            int field = readFieldName();
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            if (field < 0) {
+                skipValue(0);
+            } else if (peek() == 'n') {
+                expectLiteral("null");
+                if (isStringField(field)) {
+                    setString(data, field, null);
+                }
+            } else {
+                readField(data, field);
+            }
+            skipWhitespace();
+            byte b = next();
+            if (b == '}') {
+                return data;
+            }
+            if (b != ',') {
+                throw error("Expected ',' or '}'");
+            }
+        }
+    }
+
+    private void readField(WeatherData data, int field) {
+        switch (field) {
+            case ID: data.setId(readString(null)); break;
+            case NAME: data.setName(readString(null)); break;
+            case STATE: data.setState(readString(STATES)); break;
+            case TIME_ZONE: data.setTimeZone(readString(TIME_ZONES)); break;
+            case LOCAL_DATE_TIME: data.setLocalDateTime(readString(null)); break;
+            case LOCAL_DATE_TIME_FULL: data.setLocalDateTimeFull(readString(null)); break;
+            case CLOUD: data.setCloud(readString(CLOUDS)); break;
+            case WIND_DIR: data.setWindDir(readString(WIND_DIRS)); break;
+            case LAT: data.setLat(readDouble()); break;
+            case LON: data.setLon(readDouble()); break;
+            case AIR_TEMP: data.setAirTemp(readDouble()); break;
+            case APPARENT_TEMP: data.setApparentTemp(readDouble()); break;
+            case DEW_POINT: data.setDewPoint(readDouble()); break;
+            case PRESSURE: data.setPressure(readDouble()); break;
+            case REL_HUM: data.setRelHum(readInt()); break;
+            case WIND_SPEED_KMH: data.setWindSpdKmh(readInt()); break;
+            case WIND_SPEED_KT: data.setWindSpdKt(readInt()); break;
+            default: throw new IllegalStateException("Unhandled field " + field);
+        }
+    }
+
+    private static boolean isStringField(int field) {
+        return field == ID || field == NAME || field == STATE || field == TIME_ZONE || field == LOCAL_DATE_TIME
+                || field == LOCAL_DATE_TIME_FULL || field == CLOUD || field == WIND_DIR;
+    }
+
+    private static void setString(WeatherData data, int field, String value) {
+        switch (field) {
+            case ID: data.setId(value); break;
+            case NAME: data.setName(value); break;
+            case STATE: data.setState(value); break;
+            case TIME_ZONE: data.setTimeZone(value); break;
+            case LOCAL_DATE_TIME: data.setLocalDateTime(value); break;
+            case LOCAL_DATE_TIME_FULL: data.setLocalDateTimeFull(value); break;
+            case CLOUD: data.setCloud(value); break;
+            case WIND_DIR: data.setWindDir(value); break;
+            default: break;
+        }
+    }
+
+    // Returns the schema index of the field name, or -1 for an unknown (or escaped) name
+    private int readFieldName() {
+        expect('"');
+        byte[] in = this.in;
+        int start = pos;
+        int i = start;
+        while (i < end && in[i] != '"' && in[i] != '\\') {
+            i++;
+        }
+        if (i >= end || in[i] == '\\') {
+            pos = start - 1;
+            readString(null); // Escaped names are never schema fields; just consume them
+            return -1;
+        }
+        pos = i + 1;
+        int length = i - start;
+        if (length >= FIELDS_BY_LENGTH.length) {
+            return -1;
+        }
+        for (int field : FIELDS_BY_LENGTH[length]) {
+            if (regionMatches(FIELDS[field], start)) {
+                return field;
+            }
+        }
+        return -1;
+    }
+
+    private boolean regionMatches(byte[] name, int start) {
+        for (int i = 0; i < name.length; i++) {
+            if (in[start + i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Reads a string value; plain strings found in the interner are returned without allocating
+    private String readString(Interner interner) {
+        expect('"');
+        int start = pos;
+        while (pos < end) {
+            byte b = in[pos];
+            if (b == '"') {
+                pos++;
+                if (interner != null) {
+                    return interner.intern(in, start, pos - 1 - start);
+                }
+                return new String(in, start, pos - 1 - start, StandardCharsets.UTF_8);
+            }
+            if (b == '\\') {
+                return readEscapedString(start, interner);
+            }
+            if ((b & 0xFF) < 0x20) {
+                throw error("Control character in string");
+            }
+            pos++;
+        }
+        throw error("Unterminated string");
+    }
+
+    private String readEscapedString(int start, Interner interner) {
+        StringBuilder value = new StringBuilder(new String(in, start, pos - start, StandardCharsets.UTF_8));
+        int runStart = pos;
+        while (true) {
+            byte b = next();
+            if (b == '"') {
+                value.append(new String(in, runStart, pos - 1 - runStart, StandardCharsets.UTF_8));
+                String result = value.toString();
+                return interner != null ? result.intern() : result;
+            }
+            if (b != '\\') {
+                if ((b & 0xFF) < 0x20) {
+                    throw error("Control character in string");
+                }
+                continue;
+            }
+            value.append(new String(in, runStart, pos - 1 - runStart, StandardCharsets.UTF_8));
+            byte escape = next();
+            switch (escape) {
+                case '"': value.append('"'); break;
+                case '\\': value.append('\\'); break;
+                case '/': value.append('/'); break;
+                case 'b': value.append('\b'); break;
+                case 'f': value.append('\f'); break;
+                case 'n': value.append('\n'); break;
+                case 'r': value.append('\r'); break;
+                case 't': value.append('\t'); break;
+                case 'u':
+                    int code = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int digit = Character.digit(next(), 16);
+                        if (digit < 0) {
+                            throw error("Invalid unicode escape");
+                        }
+                        code = code * 16 + digit;
+                    }
+                    value.append((char) code);
+                    break;
+                default:
+                    throw error("Invalid escape");
+            }
+            runStart = pos;
+        }
+    }
+
+    // Parses the integer part, fraction and exponent into a decimal mantissa and scale. Values with at
+    // most 15 significant digits and a small exponent are computed exactly with one multiply or divide;
+    // anything else falls back to Double.parseDouble.
+    private double readDouble() {
+        if (peek() == '"') {
+            return readQuotedNumber(false);
+        }
+        int start = pos;
+        boolean negative = false;
+        if (peek() == '-') {
+            negative = true;
+            pos++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean exact = true;
+
+        int integerStart = pos;
+        while (pos < end && isDigit(in[pos])) {
+            if (digits < 18) {
+                mantissa = mantissa * 10 + (in[pos] - '0');
+                if (mantissa != 0) {
+                    digits++;
+                }
+            } else {
+                exact = false;
+            }
+            pos++;
+        }
+        if (pos == integerStart) {
+            throw error("Expected a number");
+        }
+        if (pos < end && in[pos] == '.') {
+            pos++;
+            int fractionStart = pos;
+            while (pos < end && isDigit(in[pos])) {
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (in[pos] - '0');
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                    scale--;
+                } else {
+                    exact = false;
+                }
+                pos++;
+            }
+            if (pos == fractionStart) {
+                throw error("Expected digits after '.'");
+            }
+        }
+        if (pos < end && (in[pos] == 'e' || in[pos] == 'E')) {
+            pos++;
+            boolean negativeExponent = false;
+            if (pos < end && (in[pos] == '+' || in[pos] == '-')) {
+                negativeExponent = in[pos] == '-';
+                pos++;
+            }
+            int exponentStart = pos;
+            int exponent = 0;
+            while (pos < end && isDigit(in[pos])) {
+                if (exponent < 100000) {
+                    exponent = exponent * 10 + (in[pos] - '0');
+                }
+                pos++;
+            }
+            if (pos == exponentStart) {
+                throw error("Expected exponent digits");
+            }
+            scale += negativeExponent ? -exponent : exponent;
+        }
+
+        if (exact && digits <= 15 && scale >= -22 && scale <= 22) {
+            double value = scale < 0 ? mantissa / POWERS_OF_TEN[-scale] : mantissa * POWERS_OF_TEN[scale];
+            return negative ? -value : value;
+        }
+        return Double.parseDouble(new String(in, start, pos - start, StandardCharsets.US_ASCII));
+    }
+
+    // Integers may be written with a zero fraction (60.0), as Gson allows
+    private int readInt() {
+        if (peek() == '"') {
+            return (int) readQuotedNumber(true);
+        }
+        int start = pos;
+        boolean negative = false;
+        if (peek() == '-') {
+            negative = true;
+            pos++;
+        }
+        long value = 0;
+        int digitsStart = pos;
+        while (pos < end && isDigit(in[pos])) {
+            value = value * 10 + (in[pos] - '0');
+            if (value > Integer.MAX_VALUE + 1L) {
+                throw new NumberFormatException("Integer out of range");
+            }
+            pos++;
+        }
+        if (pos == digitsStart) {
+            throw error("Expected a number");
+        }
+        if (pos < end && (in[pos] == '.' || in[pos] == 'e' || in[pos] == 'E')) {
+            pos = start;
+            double asDouble = readDouble();
+            if (asDouble != (int) asDouble) {
+                throw new NumberFormatException("Expected an int but was " + asDouble);
+            }
+            return (int) asDouble;
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("Integer out of range");
+        }
+        return (int) value;
+    }
+
+    // Gson accepts numbers written as strings, and for an int any double with an int value ("60.0",
+    // "6e1"); rare enough to parse via String
+    private double readQuotedNumber(boolean integer) {
+        String text = readString(null).trim();
+        try {
+            if (!integer) {
+                return Double.parseDouble(text);
+            }
+            try {
+                return Integer.parseInt(text);
+            } catch (NumberFormatException e) {
+                double asDouble = Double.parseDouble(text);
+                if (asDouble != (int) asDouble) {
+                    throw new NumberFormatException("Expected an int but was " + text);
+                }
+                return asDouble;
+            }
+        } catch (NumberFormatException e) {
+            throw new JsonSyntaxException("Invalid number: " + text, e);
+        }
+    }
+
+    // Skips the value of an unknown field, which must still be well-formed JSON. Nesting is limited
+    // so that a hostile body cannot overflow the stack.
+    private void skipValue(int depth) {
+        if (depth > MAX_DEPTH) {
+            throw error("Nesting too deep");
+        }
+        byte b = peek();
+        if (b == '"') {
+            readString(null);
+        } else if (b == '{' || b == '[') {
+            pos++;
+            byte close = b == '{' ? (byte) '}' : (byte) ']';
+            skipWhitespace();
+            if (peek() == close) {
+                pos++;
+                return;
+            }
+            while (true) {
+                skipWhitespace();
+                if (b == '{') {
+                    readString(null);
+                    skipWhitespace();
+                    expect(':');
+                    skipWhitespace();
+                }
+                skipValue(depth + 1);
+                skipWhitespace();
+                byte c = next();
+                if (c == close) {
+                    return;
+                }
+                if (c != ',') {
+                    throw error("Expected ',' or '" + (char) close + "'");
+                }
+            }
+        } else if (b == 't') {
+            expectLiteral("true");
+        } else if (b == 'f') {
+            expectLiteral("false");
+        } else if (b == 'n') {
+            expectLiteral("null");
+        } else {
+            readDouble();
+        }
+    }
+
+    private void skipWhitespace() {
+        while (pos < end) {
+            byte b = in[pos];
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    // Skips whitespace up to the end of the line; NDJSON stations are separated by newlines
+    private void skipSpacesInLine() {
+        while (pos < end && (in[pos] == ' ' || in[pos] == '\r' || in[pos] == '\t')) {
+            pos++;
+        }
+    }
+
+    private void expectLiteral(String literal) {
+        for (int i = 0; i < literal.length(); i++) {
+            if (next() != literal.charAt(i)) {
+                throw error("Expected " + literal);
+            }
+        }
+    }
+
+    private void expect(char c) {
+        if (next() != c) {
+            throw error("Expected '" + c + "'");
+        }
+    }
+
+    private byte peek() {
+        if (pos >= end) {
+            throw error("Unexpected end of input");
+        }
+        return in[pos];
+    }
+
+    private byte next() {
+        byte b = peek();
+        pos++;
+        return b;
+    }
+
+    private JsonSyntaxException error(String message) {
+        return new JsonSyntaxException(message + " at offset " + pos);
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static int[][] groupByLength(byte[][] names) {
+        int longest = 0;
+        for (byte[] name : names) {
+            longest = Math.max(longest, name.length);
+        }
+        int[][] groups = new int[longest + 1][0];
+        for (int field = 0; field < names.length; field++) {
+            int[] group = groups[names[field].length];
+            int[] grown = new int[group.length + 1];
+            System.arraycopy(group, 0, grown, 0, group.length);
+            grown[group.length] = field;
+            groups[names[field].length] = grown;
+        }
+        return groups;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Lock-free cache of Strings for a low-cardinality field, looked up by their UTF-8 bytes.
+    // Entries are immutable, so a racy slot write is safe; losing one only costs a later allocation.
+    private static class Interner {
+        private static final int SLOTS = 256; // Power of two
+        private static final int MAX_PROBES = 8;
+
+        private static class Entry {
+            final byte[] bytes;
+            final String value;
+
+            Entry(byte[] bytes, String value) {
+                this.bytes = bytes;
+                this.value = value;
+            }
+        }
+
+        private final Entry[] table = new Entry[SLOTS];
+
+        String intern(byte[] source, int offset, int length) {
+            int hash = 1;
+            for (int i = offset; i < offset + length; i++) {
+                hash = 31 * hash + source[i];
+            }
+            int slot = (hash ^ (hash >>> 16)) & (SLOTS - 1);
+            for (int probe = 0; probe < MAX_PROBES; probe++) {
+                Entry entry = table[(slot + probe) & (SLOTS - 1)];
+                if (entry == null) {
+                    String value = new String(source, offset, length, StandardCharsets.UTF_8);
+                    byte[] bytes = new byte[length];
+                    System.arraycopy(source, offset, bytes, 0, length);
+                    table[(slot + probe) & (SLOTS - 1)] = new Entry(bytes, value);
+                    return value;
+                }
+                if (matches(entry.bytes, source, offset, length)) {
+                    return entry.value;
+                }
+            }
+            // Table neighbourhood is full: the field is not low-cardinality after all
+            return new String(source, offset, length, StandardCharsets.UTF_8);
+        }
+
+        private static boolean matches(byte[] bytes, byte[] source, int offset, int length) {
+            if (bytes.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (bytes[i] != source[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
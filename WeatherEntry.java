@@ -1,14 +1,10 @@
-public class WeatherEntry implements Comparable<WeatherEntry> {
+public class WeatherEntry {
     String id;
     long timestamp;
+    int slot; // Timing wheel slot holding this entry
 
     WeatherEntry(String id, long timestamp) {
         this.id = id;
         this.timestamp = timestamp;
     }
-
-    @Override
-    public int compareTo(WeatherEntry other) {
-        return Long.compare(this.timestamp, other.timestamp);
-    }
 }
@@ -0,0 +1,467 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+// Append-only log of individual station updates with group commit.
+// Records are encoded by the calling thread and queued; a single writer thread drains everything
+// queued so far, writes it with one call and fsyncs once, then completes every record's future.
+// The log is split into numbered segments so a snapshot can retire all segments before it.
+public class WriteAheadLog {
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte BATCH = 3;
+    private static final byte TOUCH = 4;
+    private static final int MAX_BATCH = 4096;
+    private static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+
+    // Receives records during replay, in log order
+    public interface Replay {
+        void put(WeatherData data, long timestamp);
+        void remove(String id);
+        // The station's data is unchanged but its expiry restarts from the timestamp
+        void touch(String id, long timestamp);
+    }
+
+    // Sees each record once it is durable, in log order, on the writer thread
+    public interface Listener {
+        void written(byte[] record);
+    }
+
+    private static class PendingRecord {
+        final byte[] bytes;
+        final CompletableFuture<Void> durable = new CompletableFuture<>();
+
+        PendingRecord(byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    private final String baseName;
+    private final boolean sync;
+    private final BlockingQueue<PendingRecord> queue = new LinkedBlockingQueue<>();
+    private FileChannel channel;
+    private long segment;
+    private long recordsInSegment;
+    private long written; // End of the last batch written whole to the current segment
+    private boolean broken; // The segment's tail could not be cleaned up after a failed write
+    private volatile Listener listener;
+
+    public WriteAheadLog(String baseName, long firstSegment, boolean sync) throws IOException {
+        this.baseName = baseName;
+        this.sync = sync;
+        this.segment = firstSegment;
+        this.channel = open(firstSegment);
+        this.written = channel.size();
+
+        Thread writer = new Thread(this::writeLoop, "wal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    // Logs a record that is already encoded, such as one received from a replication primary
+    public CompletableFuture<Void> appendRecord(byte[] record) {
+        return append(record);
+    }
+
+    public CompletableFuture<Void> appendRemove(String id) {
+        return append(encode(REMOVE, id, 0, null));
+    }
+
+    // A station's fields as appendStations logs them. Encoding ahead of time lets a station the log
+    // cannot hold be rejected before it is applied.
+    public static byte[] encodeStation(WeatherData data) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeWeatherData(out, data);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // Only writeUTF throws here, on a string over 65535 bytes
+            throw new IllegalArgumentException("Cannot log a string that long", e);
+        }
+    }
+
+    // Logs stations encoded by encodeStation: one as a PUT record, several as one BATCH record, so
+    // replay applies all of them or none
+    public CompletableFuture<Void> appendStations(List<WeatherData> stations, List<byte[]> encoded, long timestamp) {
+        int size = 0;
+        for (byte[] station : encoded) {
+            size += station.length;
+        }
+        try {
+            ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(size + 64);
+            DataOutputStream payload = new DataOutputStream(payloadBytes);
+            if (stations.size() == 1) {
+                payload.writeByte(PUT);
+                payload.writeUTF(stations.get(0).getId());
+                payload.writeLong(timestamp);
+            } else {
+                payload.writeByte(BATCH);
+                payload.writeUTF("");
+                payload.writeLong(timestamp);
+                payload.writeInt(stations.size());
+            }
+            for (byte[] station : encoded) {
+                payload.write(station);
+            }
+            payload.flush();
+            return append(frame(payloadBytes.toByteArray()));
+        } catch (IOException e) {
+            // Only writeUTF throws here, on an id over 65535 bytes, which encodeStation has already refused
+            throw new IllegalArgumentException("Cannot log a string that long", e);
+        }
+    }
+
+    // Logs a heartbeat for stations whose data did not change
+    public CompletableFuture<Void> appendTouch(List<String> ids, long timestamp) {
+        try {
+            ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(16 * ids.size() + 16);
+            DataOutputStream payload = new DataOutputStream(payloadBytes);
+            payload.writeByte(TOUCH);
+            payload.writeUTF("");
+            payload.writeLong(timestamp);
+            payload.writeInt(ids.size());
+            for (String id : ids) {
+                payload.writeUTF(id);
+            }
+            payload.flush();
+            return append(frame(payloadBytes.toByteArray()));
+        } catch (IOException e) {
+            // Only writeUTF throws here, on a string over 65535 bytes
+            throw new IllegalArgumentException("Cannot log a string that long", e);
+        }
+    }
+
+    private CompletableFuture<Void> append(byte[] record) {
+        PendingRecord pending = new PendingRecord(record);
+        queue.add(pending);
+        return pending.durable;
+    }
+
+    // Starts a new segment for subsequent writes and returns its number. Records written from now on,
+    // including any still queued, land in the new segment.
+    public synchronized long roll() throws IOException {
+        FileChannel next = open(segment + 1);
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.warn("Failed to close write-ahead log segment " + segment + ": " + e.getMessage());
+        }
+        channel = next;
+        segment++;
+        recordsInSegment = 0;
+        written = 0;
+        broken = false;
+        return segment;
+    }
+
+    public synchronized boolean isSegmentEmpty() {
+        return recordsInSegment == 0 && queue.isEmpty();
+    }
+
+    // Removes segments whose contents are covered by a snapshot
+    public void deleteSegmentsBefore(long firstKept) {
+        for (long number : listSegments(baseName)) {
+            if (number < firstKept) {
+                segmentFile(baseName, number).delete();
+            }
+        }
+    }
+
+    private void writeLoop() {
+        List<PendingRecord> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+
+            int size = 0;
+            for (PendingRecord record : batch) {
+                size += record.bytes.length;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            for (PendingRecord record : batch) {
+                buffer.put(record.bytes);
+            }
+            buffer.flip();
+
+            try {
+                synchronized (this) {
+                    if (broken) {
+                        roll();
+                    }
+                    long start = System.nanoTime();
+                    try {
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer);
+                        }
+                        if (sync) {
+                            channel.force(false);
+                        }
+                    } catch (IOException e) {
+                        discardTail();
+                        throw e;
+                    }
+                    Metrics.WAL_SYNC.observeSince(start);
+                    recordsInSegment += batch.size();
+                    written += size;
+                }
+                Listener current = listener;
+                if (current != null) {
+                    for (PendingRecord record : batch) {
+                        current.written(record.bytes);
+                    }
+                }
+                for (PendingRecord record : batch) {
+                    record.durable.complete(null);
+                }
+            } catch (IOException e) {
+                Log.error("Failed to write the write-ahead log", e);
+                for (PendingRecord record : batch) {
+                    record.durable.completeExceptionally(e);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    // Cuts a partly written batch off the segment. Replay stops at a torn record, so anything appended
+    // after one would be lost on restart even though it was acknowledged. If the segment cannot be cut,
+    // the next batch starts a new segment, and fails like this one for as long as none can be opened.
+    private void discardTail() {
+        try {
+            channel.truncate(written);
+            if (sync) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            Log.warn("Failed to truncate write-ahead log segment " + segment + ", moving to a new one: " + e.getMessage());
+            broken = true;
+        }
+    }
+
+    private FileChannel open(long number) throws IOException {
+        return FileChannel.open(segmentFile(baseName, number).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    // Replays every segment from the given number onwards and returns the number to use for the next
+    // segment. A torn or corrupt record ends the replay of its segment.
+    public static long replay(String baseName, long fromSegment, Replay replay) throws IOException {
+        long next = fromSegment;
+        for (long number : listSegments(baseName)) {
+            if (number < fromSegment) {
+                continue;
+            }
+            replaySegment(segmentFile(baseName, number), replay);
+            next = number + 1;
+        }
+        return next;
+    }
+
+    private static void replaySegment(File file, Replay replay) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                if (length < 0 || length > MAX_RECORD_LENGTH) {
+                    Log.warn("Corrupt record in " + file.getName() + ", ignoring the rest of the segment.");
+                    return;
+                }
+                try {
+                    long checksum = in.readInt() & 0xFFFFFFFFL;
+                    byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    CRC32 crc = new CRC32();
+                    crc.update(payload);
+                    if (crc.getValue() != checksum) {
+                        Log.warn("Corrupt record in " + file.getName() + ", ignoring the rest of the segment.");
+                        return;
+                    }
+                    decode(payload, replay);
+                } catch (EOFException e) {
+                    Log.warn("Torn record at the end of " + file.getName() + ", ignoring it.");
+                    return;
+                }
+            }
+        }
+    }
+
+    private static long[] listSegments(String baseName) {
+        File base = new File(baseName).getAbsoluteFile();
+        String prefix = base.getName() + ".";
+        File[] files = base.getParentFile().listFiles((dir, name) -> name.startsWith(prefix));
+        if (files == null) {
+            return new long[0];
+        }
+        List<Long> numbers = new ArrayList<>();
+        for (File file : files) {
+            try {
+                numbers.add(Long.parseLong(file.getName().substring(prefix.length())));
+            } catch (NumberFormatException ignored) {
+                // Not a segment
+            }
+        }
+        long[] result = new long[numbers.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = numbers.get(i);
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    private static File segmentFile(String baseName, long number) {
+        return new File(String.format("%s.%08d", baseName, number));
+    }
+
+    // A PUT record, as appendStations would log one station
+    public static byte[] encodePut(WeatherData data, long timestamp) {
+        return encode(PUT, data.getId(), timestamp, data);
+    }
+
+    // Checks and applies one whole record, as produced by the append methods
+    public static void decodeRecord(byte[] record, Replay replay) throws IOException {
+        if (record.length < 8) {
+            throw new IOException("Truncated log record");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        int length = buffer.getInt();
+        long checksum = buffer.getInt() & 0xFFFFFFFFL;
+        if (length != record.length - 8) {
+            throw new IOException("Log record length mismatch");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record, 8, length);
+        if (crc.getValue() != checksum) {
+            throw new IOException("Log record checksum mismatch");
+        }
+        decode(Arrays.copyOfRange(record, 8, record.length), replay);
+    }
+
+    // Record layout: length, CRC32 of payload, payload (type, id, then timestamp and station fields for
+    // PUT, or timestamp, count and stations for BATCH, or timestamp, count and ids for TOUCH)
+    private static byte[] encode(byte type, String id, long timestamp, WeatherData data) {
+        try {
+            ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(256);
+            DataOutputStream payload = new DataOutputStream(payloadBytes);
+            payload.writeByte(type);
+            payload.writeUTF(id);
+            if (type == PUT) {
+                payload.writeLong(timestamp);
+                writeWeatherData(payload, data);
+            }
+            payload.flush();
+            return frame(payloadBytes.toByteArray());
+        } catch (IOException e) {
+            // Only writeUTF throws here, on a string over 65535 bytes
+            throw new IllegalArgumentException("Cannot log a string that long", e);
+        }
+    }
+
+    private static byte[] frame(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        ByteBuffer record = ByteBuffer.allocate(body.length + 8);
+        record.putInt(body.length);
+        record.putInt((int) crc.getValue());
+        record.put(body);
+        return record.array();
+    }
+
+    private static void decode(byte[] payload, Replay replay) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        String id = in.readUTF();
+        if (type == PUT) {
+            long timestamp = in.readLong();
+            replay.put(readWeatherData(in), timestamp);
+        } else if (type == REMOVE) {
+            replay.remove(id);
+        } else if (type == BATCH) {
+            long timestamp = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                replay.put(readWeatherData(in), timestamp);
+            }
+        } else if (type == TOUCH) {
+            long timestamp = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                replay.touch(in.readUTF(), timestamp);
+            }
+        }
+    }
+
+    private static void writeWeatherData(DataOutputStream out, WeatherData data) throws IOException {
+        writeString(out, data.getId());
+        writeString(out, data.getName());
+        writeString(out, data.getState());
+        writeString(out, data.getTimeZone());
+        out.writeDouble(data.getLat());
+        out.writeDouble(data.getLon());
+        writeString(out, data.getLocalDateTime());
+        writeString(out, data.getLocalDateTimeFull());
+        out.writeDouble(data.getAirTemp());
+        out.writeDouble(data.getApparentTemp());
+        writeString(out, data.getCloud());
+        out.writeDouble(data.getDewPoint());
+        out.writeDouble(data.getPressure());
+        out.writeInt(data.getRelHum());
+        writeString(out, data.getWindDir());
+        out.writeInt(data.getWindSpeedKmh());
+        out.writeInt(data.getWindSpeedKt());
+    }
+
+    private static WeatherData readWeatherData(DataInputStream in) throws IOException {
+        WeatherData data = new WeatherData();
+        data.setId(readString(in));
+        data.setName(readString(in));
+        data.setState(readString(in));
+        data.setTimeZone(readString(in));
+        data.setLat(in.readDouble());
+        data.setLon(in.readDouble());
+        data.setLocalDateTime(readString(in));
+        data.setLocalDateTimeFull(readString(in));
+        data.setAirTemp(in.readDouble());
+        data.setApparentTemp(in.readDouble());
+        data.setCloud(readString(in));
+        data.setDewPoint(in.readDouble());
+        data.setPressure(in.readDouble());
+        data.setRelHum(in.readInt());
+        data.setWindDir(readString(in));
+        data.setWindSpdKmh(in.readInt());
+        data.setWindSpdKt(in.readInt());
+        return data;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,68 @@
+#!/bin/sh
+# Runs the JMH benchmarks and keeps each run's results as JSON, so runs can be compared.
+#
+#   ./jmh.sh [regex] [-Pjmh.<option>=<value>...]
+#       Runs the benchmarks matching regex (all by default) and saves the results to
+#       jmh-results/<time>-<commit>.json. Options: jmh.fork, jmh.warmup, jmh.iterations, jmh.time,
+#       jmh.params (e.g. "stations=1000;store=map") and jmh.profilers (e.g. gc).
+#   ./jmh.sh compare <before.json> <after.json>
+#       Prints the score of every benchmark in both runs and the change between them.
+set -e
+cd "$(dirname "$0")"
+
+if [ "$1" = "compare" ]; then
+    if [ $# -ne 3 ]; then
+        echo "Usage: $0 compare <before.json> <after.json>" >&2
+        exit 1
+    fi
+    exec python3 - "$2" "$3" <<'PY'
+import json, sys
+
+def scores(path):
+    with open(path) as f:
+        results = {}
+        for run in json.load(f):
+            params = ",".join(k + "=" + v for k, v in sorted(run.get("params", {}).items()))
+            name = run["benchmark"].rsplit(".", 2)[-2] + "." + run["benchmark"].rsplit(".", 1)[-1]
+            metric = run["primaryMetric"]
+            results[(name, params)] = (metric["score"], metric["scoreUnit"])
+            for secondary, value in run.get("secondaryMetrics", {}).items():
+                results[(name + ":" + secondary, params)] = (value["score"], value["scoreUnit"])
+        return results
+
+before, after = scores(sys.argv[1]), scores(sys.argv[2])
+print("%-48s %-28s %14s %14s  %-16s %s" % ("Benchmark", "Params", "Before", "After", "Change", "Unit"))
+for key in sorted(set(before) | set(after)):
+    old, new = before.get(key), after.get(key)
+    unit = (new or old)[1]
+    change = ""
+    if old and new and old[0]:
+        change = "%+.1f%%" % ((new[0] - old[0]) / old[0] * 100)
+        # Throughput goes up when things improve, the time modes go down
+        # Counters such as bytesPerStation are neither; only their change is shown
+        if unit.startswith("ops/"):
+            change += " faster" if new[0] > old[0] else " slower"
+        elif unit.endswith("/op"):
+            change += " faster" if new[0] < old[0] else " slower"
+    print("%-48s %-28s %14s %14s  %-16s %s" % (key[0], key[1],
+          "%.3f" % old[0] if old else "-", "%.3f" % new[0] if new else "-", change, unit))
+PY
+fi
+
+INCLUDE=".*"
+if [ $# -gt 0 ] && [ "${1#-}" = "$1" ]; then
+    INCLUDE="$1"
+    shift
+fi
+
+# GRADLE=gradle uses an installed Gradle instead of the wrapper
+${GRADLE:-./gradlew} jmh -Pjmh.include="$INCLUDE" "$@"
+
+mkdir -p jmh-results
+COMMIT=$(git rev-parse --short HEAD 2>/dev/null || echo unknown)
+if [ -n "$(git status --porcelain --untracked-files=no 2>/dev/null)" ]; then
+    COMMIT="$COMMIT-dirty"
+fi
+OUT="jmh-results/$(date -u +%Y%m%dT%H%M%SZ)-$COMMIT.json"
+cp build/results/jmh/results.json "$OUT"
+echo "Saved $OUT"
@@ -0,0 +1,64 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// ContentServer.convertTextFileToJson on a station file like weather_data.txt. Includes opening and
+// reading the file, which stays in the page cache.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ContentServerBenchmark {
+    private static final String STATION = "id:IDS60901\n"
+            + "name:Adelaide (West Terrace /  ngayirdapira)\n"
+            + "state: SA\n"
+            + "time_zone:CST\n"
+            + "lat:-34.9\n"
+            + "lon:138.6\n"
+            + "local_date_time:15/04:00pm\n"
+            + "local_date_time_full:20230715160000\n"
+            + "air_temp:13.3\n"
+            + "apparent_t:9.5\n"
+            + "cloud:Partly cloudy\n"
+            + "dewpt:5.7\n"
+            + "press:1023.9\n"
+            + "rel_hum:60\n"
+            + "wind_dir:S\n"
+            + "wind_spd_kmh:15\n"
+            + "wind_spd_kt:8\n";
+
+    private File file;
+
+    @Setup
+    public void setup() throws IOException {
+        file = File.createTempFile("station", ".txt");
+        Files.write(file.toPath(), STATION.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public String convertTextFileToJson() {
+        return Subjects.convertTextFileToJson(file.getPath());
+    }
+}
@@ -0,0 +1,70 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Heap held per station by each --store, reported as the bytesPerStation counter next to the time
+// to fill the store. Stations are parsed one by one as PUTs would be, so the map store owns its
+// WeatherData objects and the columnar store leaves them as garbage. The mapped store keeps stations
+// outside the heap and is left out. JMH sums the counter over iterations and forks, so it is only
+// right with the single iteration and fork set here.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(1)
+public class FootprintBenchmark {
+    @Param({"map", "columnar"})
+    String store;
+
+    @Param({"1000000"})
+    int stations;
+
+    private Object filled;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Footprint {
+        public double bytesPerStation;
+    }
+
+    @Benchmark
+    public Object fill(Footprint footprint) throws InterruptedException {
+        long before = usedHeap();
+        Object created = Subjects.createStore(store);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < stations; i++) {
+            Subjects.storePut(created, Subjects.station(i), now);
+        }
+        filled = created;
+        footprint.bytesPerStation = (double) (usedHeap() - before) / stations;
+        return created;
+    }
+
+    @TearDown(Level.Iteration)
+    public void release() {
+        filled = null;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,72 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// A full-feed GET through handleGetRequest, including producing the response as it goes on the wire.
+// The feed cache and config are the server's own static state, so every parameter combination needs
+// its own fork (the default).
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GetFeedBenchmark {
+    @Param({"1000", "10000", "100000"})
+    int stations;
+
+    @Param({"json", "binary"})
+    String format;
+
+    private Object request;
+    private Object forwardedRequest;
+    private Object[] changes;
+    private int next;
+
+    @Setup
+    public void setup() {
+        // Never stream, so cachedFeed and changedFeed measure the assembled feed at every size
+        Subjects.initServer("0", "--stream-threshold=" + Integer.MAX_VALUE);
+        for (int i = 0; i < stations; i++) {
+            Subjects.feedPut(Subjects.id(i), Subjects.encodeFragment(Subjects.station(i)));
+        }
+        String accept = "binary".equals(format) ? "application/x-weather-binary" : "application/json";
+        request = Subjects.getRequest("/weather.json", "Accept", accept);
+        // A request from another cluster node is always answered with the streamed feed
+        forwardedRequest = Subjects.getRequest("/weather.json", "Accept", accept, "Cluster-Forwarded", "localhost:0");
+        changes = new Object[] {
+                Subjects.encodeFragment(Subjects.station(stations)),
+                Subjects.encodeFragment(Subjects.station(stations + 1))
+        };
+    }
+
+    // The feed of the current version, built once and shared by every GET until something changes
+    @Benchmark
+    public long cachedFeed() {
+        return Subjects.wireLength(Subjects.handleGetRequest(request));
+    }
+
+    // The first GET after a station changed, which assembles the feed again
+    @Benchmark
+    public long changedFeed() {
+        Subjects.feedPut(Subjects.id(0), changes[next++ & 1]);
+        return Subjects.wireLength(Subjects.handleGetRequest(request));
+    }
+
+    // The streamed feed served above --stream-threshold, written from the fragments for each GET
+    @Benchmark
+    public long streamedFeed() {
+        return Subjects.wireLength(Subjects.handleGetRequest(forwardedRequest));
+    }
+}
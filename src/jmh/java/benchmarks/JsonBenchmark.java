@@ -0,0 +1,65 @@
+package benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// One station through JSONParser: parsing a PUT body with either decoder (--json-decoder), and
+// convertToJSON
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonBenchmark {
+    private String json;
+    private Object station;
+
+    @State(Scope.Benchmark)
+    public static class Decoder {
+        @Param({"STREAMING", "GSON"})
+        String decoder;
+
+        byte[] body;
+
+        @Setup
+        public void setup() {
+            Subjects.setDecoder(decoder);
+            body = Subjects.stationJson(42).getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    @Setup
+    public void setup() {
+        json = Subjects.stationJson(42);
+        station = Subjects.station(42);
+    }
+
+    // The form PUT bodies arrive in
+    @Benchmark
+    public Object parseWeatherDataBytes(Decoder decoder) {
+        return Subjects.parseWeatherData(decoder.body);
+    }
+
+    // Always Gson, whichever decoder is selected
+    @Benchmark
+    public Object parseWeatherDataString() {
+        return Subjects.parseWeatherData(json);
+    }
+
+    @Benchmark
+    public String convertToJSON() {
+        return Subjects.convertToJSON(station);
+    }
+}
@@ -0,0 +1,58 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The lock-free LamportClock against the old synchronized one, with every thread sharing one clock as
+// request threads do. The old server took a timestamp in two locked calls, increment() then
+// getClock(), so that is what the synchronized variants do. Run with -t to change the thread count.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(4)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LamportClockBenchmark {
+    private Object atomic;
+    private SynchronizedLamportClock synchronizedClock;
+
+    @Setup
+    public void setup() {
+        atomic = Subjects.newLamportClock();
+        synchronizedClock = new SynchronizedLamportClock();
+    }
+
+    @Benchmark
+    public long atomicTick() {
+        return Subjects.tick(atomic);
+    }
+
+    // Received clocks trail the local one, as they mostly do
+    @Benchmark
+    public long atomicReceive() {
+        return Subjects.receive(atomic, 1);
+    }
+
+    @Benchmark
+    public int synchronizedTick() {
+        synchronizedClock.increment();
+        return synchronizedClock.getClock();
+    }
+
+    @Benchmark
+    public int synchronizedReceive() {
+        synchronizedClock.update(1);
+        return synchronizedClock.getClock();
+    }
+}
@@ -0,0 +1,82 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Writing and reading the snapshot file. persistData writes it with writeSnapshot and renames it into
+// place; loadPersistedData reads it with readSnapshot before replaying the write-ahead log. Both of
+// those work on weatherData.dat in the working directory, so the benchmark calls the parts that take
+// a file. Each operation is one whole snapshot, fsync included.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PersistenceBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    int stations;
+
+    private Map<String, Object> data;
+    private Map<String, Long> timestamps;
+    private File written;
+    private File snapshot;
+
+    // Store the snapshot is loaded into (--store)
+    @State(Scope.Benchmark)
+    public static class Target {
+        @Param({"map", "columnar"})
+        String store;
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        data = new HashMap<>();
+        timestamps = new HashMap<>();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < stations; i++) {
+            data.put(Subjects.id(i), Subjects.station(i));
+            timestamps.put(Subjects.id(i), now);
+        }
+        written = File.createTempFile("persist", ".dat");
+        snapshot = File.createTempFile("load", ".dat");
+        Subjects.writeSnapshot(snapshot, data, timestamps, 1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        written.delete();
+        snapshot.delete();
+    }
+
+    @Benchmark
+    public File persistData() {
+        Subjects.writeSnapshot(written, data, timestamps, 1);
+        return written;
+    }
+
+    @Benchmark
+    public Object loadPersistedData(Target target) {
+        Object loaded = Subjects.createStore(target.store);
+        Subjects.readSnapshot(snapshot, loaded);
+        if (Subjects.storeSize(loaded) != stations) {
+            throw new IllegalStateException("Loaded " + Subjects.storeSize(loaded) + " of " + stations + " stations");
+        }
+        return loaded;
+    }
+}
@@ -0,0 +1,402 @@
+package benchmarks;
+
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+// The server's classes are in the unnamed package, which code in a named package cannot import, and
+// JMH refuses benchmarks in the unnamed package. Benchmarks therefore reach the server through these
+// method handles. Held in static finals they are constants to the JIT, so calls through them are
+// inlined like direct calls. Server types appear as Object.
+final class Subjects {
+    static final Class<?> WEATHER_DATA = type("WeatherData");
+    static final Class<?> STATION_STORE = type("StationStore");
+    static final Class<?> HTTP_REQUEST = type("HttpRequest");
+    static final Class<?> HTTP_RESPONSE = type("HttpResponse");
+    static final Class<?> FEED_CACHE = type("FeedCache");
+    static final Class<?> FRAGMENT = type("FeedCache$Fragment");
+
+    private static final String[] STATES = {"SA", "NSW", "VIC", "QLD", "WA", "TAS", "NT", "ACT"};
+    private static final String[] ZONES = {"CST", "EST", "EST", "EST", "WST", "EST", "CST", "EST"};
+    private static final String[] CLOUD = {"Clear", "Partly cloudy", "Mostly cloudy", "Cloudy", "Fog"};
+    private static final String[] WIND = {"N", "NE", "E", "SE", "S", "SW", "W", "NW", "CALM"};
+
+    private static final MethodHandle PARSE_STRING =
+            staticMethod("JSONParser", "parseWeatherData", WEATHER_DATA, String.class);
+    private static final MethodHandle PARSE_BYTES =
+            staticMethod("JSONParser", "parseWeatherData", WEATHER_DATA, byte[].class);
+    private static final MethodHandle PARSE_BATCH =
+            staticMethod("JSONParser", "parseWeatherDataBatch", List.class, byte[].class, boolean.class);
+    private static final MethodHandle TO_JSON =
+            staticMethod("JSONParser", "convertToJSON", String.class, WEATHER_DATA);
+    private static final MethodHandle SET_DECODER = setDecoder();
+    private static final MethodHandle CONVERT_TEXT_FILE =
+            staticMethod("ContentServer", "convertTextFileToJson", String.class, String.class);
+    private static final MethodHandle BINARY_ENCODE =
+            staticMethod("BinaryWeatherFormat", "encode", byte[].class, List.class);
+    private static final MethodHandle BINARY_DECODE =
+            staticMethod("BinaryWeatherFormat", "decode", List.class, byte[].class);
+    private static final MethodHandle CREATE_STORE =
+            staticMethod("AggregationServer", "createStationStore", STATION_STORE, String.class);
+    private static final MethodHandle STORE_PUT =
+            virtualMethod(STATION_STORE, "put", boolean.class, WEATHER_DATA, long.class);
+    private static final MethodHandle STORE_SIZE = virtualMethod(STATION_STORE, "size", int.class);
+    private static final MethodHandle READ_SNAPSHOT = staticMethod("AggregationServer", "readSnapshot",
+            long.class, File.class, STATION_STORE);
+    private static final MethodHandle WRITE_SNAPSHOT = staticMethod("AggregationServer", "writeSnapshot",
+            void.class, File.class, Map.class, Map.class, long.class);
+    private static final MethodHandle ENCODE_FRAGMENT =
+            staticMethod("FeedCache", "encode", FRAGMENT, WEATHER_DATA);
+    private static final MethodHandle HANDLE_GET =
+            staticMethod("AggregationServer", "handleGetRequest", HTTP_RESPONSE, HTTP_REQUEST);
+    private static final MethodHandle NEW_REQUEST = constructor(HTTP_REQUEST,
+            String.class, String.class, Map.class, byte[].class);
+    private static final MethodHandle NEW_HEADER_MAP =
+            staticMethod("HttpRequest", "newHeaderMap", Map.class);
+    private static final MethodHandle RESPONSE_PARTS =
+            virtualMethod(HTTP_RESPONSE, "encodedParts", Iterator.class);
+    private static final MethodHandle ENCODE_FEED =
+            staticMethod("FeedCache", "encodeFeed", byte[].class, List.class, boolean.class);
+    private static final MethodHandle PARSE_CONFIG =
+            staticMethod("ServerConfig", "parse", type("ServerConfig"), String[].class);
+    private static final MethodHandle NEW_CHANGE_LOG = constructor(type("ChangeLog"), int.class, long.class);
+    private static final MethodHandle NEW_CLOCK = constructor(type("LamportClock"));
+    private static final MethodHandle CLOCK_TICK = virtualMethod(type("LamportClock"), "tick", long.class);
+    private static final MethodHandle CLOCK_RECEIVE =
+            virtualMethod(type("LamportClock"), "receive", long.class, long.class);
+    private static final VarHandle FEED_CACHE_FIELD = staticField("feedCache", FEED_CACHE);
+    private static final MethodHandle FEED_PUT =
+            virtualMethod(FEED_CACHE, "put", void.class, String.class, FRAGMENT);
+
+    private Subjects() {
+    }
+
+    static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // Handles are adapted to Object for server types, so callers can invoke them exactly
+    private static MethodHandle staticMethod(String owner, String name, Class<?> returnType, Class<?>... parameters) {
+        try {
+            Class<?> ownerType = type(owner);
+            MethodHandle handle = MethodHandles.privateLookupIn(ownerType, MethodHandles.lookup())
+                    .findStatic(ownerType, name, MethodType.methodType(returnType, parameters));
+            return handle.asType(handle.type().erase());
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle virtualMethod(Class<?> owner, String name, Class<?> returnType, Class<?>... parameters) {
+        try {
+            MethodHandle handle = MethodHandles.privateLookupIn(owner, MethodHandles.lookup())
+                    .findVirtual(owner, name, MethodType.methodType(returnType, parameters));
+            return handle.asType(handle.type().erase());
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle constructor(Class<?> owner, Class<?>... parameters) {
+        try {
+            MethodHandle handle = MethodHandles.privateLookupIn(owner, MethodHandles.lookup())
+                    .findConstructor(owner, MethodType.methodType(void.class, parameters));
+            return handle.asType(handle.type().erase());
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static VarHandle staticField(String name, Class<?> fieldType) {
+        try {
+            Class<?> server = type("AggregationServer");
+            return MethodHandles.privateLookupIn(server, MethodHandles.lookup()).findStaticVarHandle(server, name, fieldType);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle setDecoder() {
+        try {
+            Class<?> decoder = type("JSONParser$Decoder");
+            return MethodHandles.lookup().findStatic(type("JSONParser"), "setDecoder",
+                    MethodType.methodType(void.class, decoder));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // Sets a private static field of AggregationServer
+    static void setServerField(String name, Object value) {
+        try {
+            Class<?> server = type("AggregationServer");
+            Field field = server.getDeclaredField(name);
+            field.setAccessible(true);
+            field.set(null, value);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Sets up what handleGetRequest reads besides the feed cache, as main would with these options
+    static void initServer(String... options) {
+        try {
+            setServerField("config", (Object) PARSE_CONFIG.invokeExact((Object) options));
+            setServerField("changeLog", (Object) NEW_CHANGE_LOG.invokeExact(10000, 0L));
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    // Station i of a synthetic set, as JSON. Ids are unique; the other fields vary the way real
+    // observations do, with repetitive state, time zone, cloud and wind values.
+    static String stationJson(int i) {
+        Random random = new Random(i);
+        int state = random.nextInt(STATES.length);
+        return String.format(Locale.ROOT, "{\"id\":\"IDS%06d\",\"name\":\"Station %d\",\"state\":\"%s\","
+                        + "\"timeZone\":\"%s\",\"lat\":%.1f,\"lon\":%.1f,\"localDateTime\":\"15/04:00pm\","
+                        + "\"localDateTimeFull\":\"20230715160000\",\"airTemp\":%.1f,\"apparentTemp\":%.1f,"
+                        + "\"cloud\":\"%s\",\"dewPoint\":%.1f,\"pressure\":%.1f,\"relHum\":%d,\"windDir\":\"%s\","
+                        + "\"windSpeedKmh\":%d,\"windSpeedKt\":%d}",
+                i, i, STATES[state], ZONES[state], -10 - random.nextDouble() * 30, 115 + random.nextDouble() * 35,
+                random.nextDouble() * 40, random.nextDouble() * 40, CLOUD[random.nextInt(CLOUD.length)],
+                random.nextDouble() * 20, 990 + random.nextDouble() * 40, random.nextInt(101),
+                WIND[random.nextInt(WIND.length)], random.nextInt(60), random.nextInt(32));
+    }
+
+    static Object station(int i) {
+        return parseWeatherData(stationJson(i));
+    }
+
+    static List<Object> stations(int count) {
+        List<Object> stations = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            stations.add(station(i));
+        }
+        return stations;
+    }
+
+    // The station's key as WeatherData.getId() returns it
+    static String id(int i) {
+        return String.format(Locale.ROOT, "IDS%06d", i);
+    }
+
+    static Object parseWeatherData(String json) {
+        try {
+            return (Object) PARSE_STRING.invokeExact((Object) json);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static Object parseWeatherData(byte[] json) {
+        try {
+            return (Object) PARSE_BYTES.invokeExact((Object) json);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static List<?> parseWeatherDataBatch(byte[] json, boolean ndjson) {
+        try {
+            return (List<?>) (Object) PARSE_BATCH.invokeExact((Object) json, ndjson);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static String convertToJSON(Object data) {
+        try {
+            return (String) (Object) TO_JSON.invokeExact(data);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    // STREAMING or GSON
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static void setDecoder(String name) {
+        try {
+            Object decoder = Enum.valueOf((Class) type("JSONParser$Decoder"), name);
+            SET_DECODER.invoke(decoder);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static String convertTextFileToJson(String fileName) {
+        try {
+            return (String) (Object) CONVERT_TEXT_FILE.invokeExact((Object) fileName);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static byte[] binaryEncode(List<?> stations) {
+        try {
+            return (byte[]) (Object) BINARY_ENCODE.invokeExact((Object) stations);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static List<?> binaryDecode(byte[] message) {
+        try {
+            return (List<?>) (Object) BINARY_DECODE.invokeExact((Object) message);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    // "map" or "columnar"
+    static Object createStore(String kind) {
+        try {
+            return (Object) CREATE_STORE.invokeExact((Object) kind);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static void storePut(Object store, Object data, long timestamp) {
+        try {
+            boolean added = (boolean) STORE_PUT.invokeExact(store, data, timestamp); // Exact calls cannot drop the result
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static int storeSize(Object store) {
+        try {
+            return (int) STORE_SIZE.invokeExact(store);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static long readSnapshot(File file, Object store) {
+        try {
+            return (long) READ_SNAPSHOT.invokeExact((Object) file, store);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static void writeSnapshot(File file, Map<String, ?> data, Map<String, Long> timestamps,
+                              long firstSegment) {
+        try {
+            WRITE_SNAPSHOT.invokeExact((Object) file, (Object) data, (Object) timestamps, firstSegment);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static Object encodeFragment(Object data) {
+        try {
+            return (Object) ENCODE_FRAGMENT.invokeExact(data);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    // A whole feed as the server sends it, JSON or binary
+    static byte[] encodeFeed(List<?> stations, boolean binary) {
+        try {
+            return (byte[]) (Object) ENCODE_FEED.invokeExact((Object) stations, binary);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static Object newLamportClock() {
+        try {
+            return (Object) NEW_CLOCK.invokeExact();
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static long tick(Object clock) {
+        try {
+            return (long) CLOCK_TICK.invokeExact(clock);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static long receive(Object clock, long receivedClock) {
+        try {
+            return (long) CLOCK_RECEIVE.invokeExact(clock, receivedClock);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    // The server's own feed cache, which handleGetRequest serves from
+    static void feedPut(String id, Object fragment) {
+        try {
+            FEED_PUT.invokeExact(FEED_CACHE_FIELD.get(), (Object) id, fragment);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    // A GET with the given header names and values, e.g. "Accept", "application/x-weather-binary"
+    @SuppressWarnings("unchecked")
+    static Object getRequest(String target, String... headers) {
+        try {
+            Map<String, String> headerMap = (Map<String, String>) (Object) NEW_HEADER_MAP.invokeExact();
+            for (int i = 0; i < headers.length; i += 2) {
+                headerMap.put(headers[i].toLowerCase(Locale.ROOT), headers[i + 1]);
+            }
+            return (Object) NEW_REQUEST.invokeExact((Object) "GET", (Object) target, (Object) headerMap, (Object) null);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static Object handleGetRequest(Object request) {
+        try {
+            return (Object) HANDLE_GET.invokeExact(request);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    // Bytes of the response as it goes on the wire. A streamed body is produced part by part, as the
+    // server writes it.
+    static long wireLength(Object response) {
+        try {
+            Iterator<?> parts = (Iterator<?>) (Object) RESPONSE_PARTS.invokeExact(response);
+            long length = 0;
+            while (parts.hasNext()) {
+                length += ((byte[]) parts.next()).length;
+            }
+            return length;
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable e) {
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        throw new IllegalStateException(e);
+    }
+}
@@ -0,0 +1,31 @@
+package benchmarks;
+
+// The LamportClock the server used before it moved to AtomicLong, kept as the baseline for
+// LamportClockBenchmark. Unchanged apart from the name.
+public class SynchronizedLamportClock {
+    private int clock;
+    
+    public SynchronizedLamportClock() {
+        this.clock = 0;
+    }
+
+    // Increments the local lamport clock
+    public synchronized void increment() {
+        clock++;
+    }
+
+    // Updates the clock based on the received timestamp
+    public synchronized void update(int receivedClock) {
+        clock = Math.max(clock, receivedClock) + 1;
+    }
+
+    // Gets the current clock value
+    public synchronized int getClock() {
+        return clock;
+    }
+
+    // Sets the current clock value
+    public synchronized void setClock(int clock) {
+        this.clock = clock;
+    }
+}
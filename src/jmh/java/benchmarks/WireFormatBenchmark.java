@@ -0,0 +1,68 @@
+package benchmarks;
+
+import com.google.gson.JsonParser;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// JSON against the binary format (application/x-weather-binary) for a batch or feed of stations:
+// encoding, the server decoding a batch PUT, and the Gson tree GETClient builds from a JSON feed.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WireFormatBenchmark {
+    @Param({"500", "10000"})
+    int stations;
+
+    private List<Object> batch;
+    private byte[] json;
+    private byte[] binary;
+
+    @Setup
+    public void setup() {
+        Subjects.setDecoder("STREAMING");
+        batch = Subjects.stations(stations);
+        json = Subjects.encodeFeed(batch, false);
+        binary = Subjects.binaryEncode(batch);
+    }
+
+    @Benchmark
+    public byte[] encodeJson() {
+        return Subjects.encodeFeed(batch, false);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        return Subjects.binaryEncode(batch);
+    }
+
+    @Benchmark
+    public List<?> decodeJson() {
+        return Subjects.parseWeatherDataBatch(json, false);
+    }
+
+    @Benchmark
+    public List<?> decodeBinary() {
+        return Subjects.binaryDecode(binary);
+    }
+
+    // What GETClient does with a JSON feed
+    @Benchmark
+    public Object parseJsonTree() {
+        return JsonParser.parseString(new String(json, StandardCharsets.UTF_8));
+    }
+}